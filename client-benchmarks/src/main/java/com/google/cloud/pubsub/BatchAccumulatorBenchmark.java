@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.cloud.pubsub.BatchAccumulator.Batch;
+import com.google.cloud.pubsub.BatchAccumulator.BatchListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks appending messages to the lock-free {@link BatchAccumulator} of the publisher, against
+ * a baseline appending them to a list under a lock, as the publisher used to. Batches are only
+ * sealed by their number of messages, as the bytes limit is never reached, and are read on the
+ * sealing thread so both pay for handing their elements over.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class BatchAccumulatorBenchmark {
+  private static final int MESSAGE_BYTES = 1000;
+  private static final int MAX_BATCH_BYTES = 10 * 1000 * 1000;
+
+  @Param({"10", "100", "1000"})
+  public int maxBatchMessages;
+
+  private final Object message = new Object();
+  private BatchAccumulator<Object> accumulator;
+  private LockedBatchAccumulator lockedAccumulator;
+  // Keeps the sealed batches from being optimized away.
+  private volatile List<Object> lastBatch;
+
+  @Setup
+  public void setUp() {
+    accumulator =
+        new BatchAccumulator<>(
+            maxBatchMessages,
+            MAX_BATCH_BYTES,
+            new BatchListener<Object>() {
+              @Override
+              public void batchStarted(Batch<Object> batch) {}
+
+              @Override
+              public void batchSealed(Batch<Object> batch) {
+                lastBatch = batch.getElements();
+              }
+            });
+    lockedAccumulator = new LockedBatchAccumulator();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void append() {
+    accumulator.append(message, MESSAGE_BYTES);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void append_4Threads() {
+    accumulator.append(message, MESSAGE_BYTES);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void append_16Threads() {
+    accumulator.append(message, MESSAGE_BYTES);
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void lockedAppend() {
+    lockedAccumulator.append(message);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void lockedAppend_4Threads() {
+    lockedAccumulator.append(message);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public void lockedAppend_16Threads() {
+    lockedAccumulator.append(message);
+  }
+
+  /** Baseline batching messages into a list under a single lock. */
+  private final class LockedBatchAccumulator {
+    private List<Object> batch = new ArrayList<>();
+
+    void append(Object element) {
+      List<Object> sealedBatch = null;
+      synchronized (this) {
+        batch.add(element);
+        if (batch.size() >= maxBatchMessages) {
+          sealedBatch = batch;
+          batch = new ArrayList<>();
+        }
+      }
+      if (sealedBatch != null) {
+        lastBatch = sealedBatch;
+      }
+    }
+  }
+}
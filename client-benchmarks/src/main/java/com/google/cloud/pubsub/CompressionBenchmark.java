@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks the {@link MessageCodecs} over JSON payloads, to help choosing the threshold passed to
+ * {@link Publisher.Builder#setCompression}: encoding messages as publishers do, with the threshold
+ * applied, and decoding them as subscribers do.
+ *
+ * <p>Each message is encoded and decoded on a single thread, so the time per message is the CPU
+ * cost of the codec. Compression pays off for the sizes where that cost is worth the bytes saved on
+ * the wire, which {@code -prof gc} helps to weigh against the allocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(1)
+public class CompressionBenchmark {
+  @Param({"gzip", "deflate"})
+  public String codec;
+
+  @Param({"128", "1024", "4096", "16384", "65536"})
+  public int payloadSize;
+
+  /** Messages under this size are sent as they are, 0 compresses every message. */
+  @Param({"0", "1024", "4096"})
+  public int threshold;
+
+  private MessageCodec messageCodec;
+  private PubsubMessage message;
+  private PubsubMessage encodedMessage;
+
+  @Setup
+  public void setUp() throws IOException {
+    messageCodec = MessageCodecs.DEFAULT_CODECS.get(codec);
+    message = PubsubMessage.newBuilder().setData(jsonPayload(payloadSize)).build();
+    encodedMessage = MessageCodecs.encode(message, messageCodec, threshold);
+  }
+
+  @Benchmark
+  public PubsubMessage encode() throws IOException {
+    return MessageCodecs.encode(message, messageCodec, threshold);
+  }
+
+  @Benchmark
+  public PubsubMessage decode() throws IOException {
+    return MessageCodecs.decode(encodedMessage, MessageCodecs.DEFAULT_CODECS);
+  }
+
+  /** Returns JSON records of the given size, with some randomness so they are not trivial. */
+  private static ByteString jsonPayload(int size) {
+    Random random = new Random(size);
+    StringBuilder json = new StringBuilder(size + 100);
+    json.append('[');
+    while (json.length() < size) {
+      json.append(
+          String.format(
+              "{\"id\": %d, \"user\": \"user-%d\", \"event\": \"%s\", \"value\": %.3f},",
+              random.nextInt(1000000),
+              random.nextInt(1000),
+              random.nextBoolean() ? "click" : "view",
+              random.nextDouble()));
+    }
+    json.setLength(size - 1);
+    json.append(']');
+    return ByteString.copyFromUtf8(json.toString());
+  }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.cloud.pubsub.Publisher.CloudPubsubFlowControlException;
+import com.google.common.base.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks a reservation and its release on a {@link FlowController}, which publishers and
+ * subscribers do for every message. The limits are never reached, so the threads only contend on
+ * the accounting.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class FlowControllerBenchmark {
+  private static final int MESSAGE_BYTES = 1000;
+
+  private final FlowController flowController =
+      new FlowController(Optional.of(1000000), Optional.of(1000000000), false);
+
+  @Benchmark
+  @Threads(1)
+  public void reserveRelease() throws CloudPubsubFlowControlException {
+    flowController.reserve(1, MESSAGE_BYTES);
+    flowController.release(1, MESSAGE_BYTES);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void reserveRelease_4Threads() throws CloudPubsubFlowControlException {
+    flowController.reserve(1, MESSAGE_BYTES);
+    flowController.release(1, MESSAGE_BYTES);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks recording latencies in a {@link Distribution} and in the {@link LatencyHistogram}
+ * that replaces it, as publishers and subscribers do for every batch and ack.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@SuppressWarnings("deprecation")
+public class HistogramBenchmark {
+  private static final int DISTRIBUTION_BUCKETS = 1000;
+
+  private final Distribution distribution = new Distribution(DISTRIBUTION_BUCKETS);
+  private final LatencyHistogram histogram = new LatencyHistogram();
+
+  /** Latencies recorded by each thread, cycled through so they spread over the buckets. */
+  @State(Scope.Thread)
+  public static class Latencies {
+    private final int[] values = new int[1024];
+    private int next;
+
+    public Latencies() {
+      Random random = new Random(0);
+      for (int i = 0; i < values.length; i++) {
+        values[i] = random.nextInt(DISTRIBUTION_BUCKETS);
+      }
+    }
+
+    int next() {
+      next = (next + 1) & (values.length - 1);
+      return values[next];
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void distributionRecord(Latencies latencies) {
+    distribution.record(latencies.next());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void distributionRecord_4Threads(Latencies latencies) {
+    distribution.record(latencies.next());
+  }
+
+  @Benchmark
+  @Threads(1)
+  public void latencyHistogramRecord(Latencies latencies) {
+    histogram.record(latencies.next());
+  }
+
+  @Benchmark
+  @Threads(4)
+  public void latencyHistogramRecord_4Threads(Latencies latencies) {
+    histogram.record(latencies.next());
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.internal.ServerImpl;
+import java.util.concurrent.TimeUnit;
+import org.joda.time.Duration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link Publisher#publish} against an in-process {@link FakePublisherServiceImpl},
+ * from batching to the publish results being set.
+ *
+ * <p>The outstanding messages are bounded by flow control, so the publishing threads are held
+ * back at the rate the batches complete, and the score is the sustained publish rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PublisherBenchmark {
+  private static final String SERVER_NAME = "publisher-benchmark";
+  private static final String TOPIC = "projects/benchmark-project/topics/benchmark-topic";
+
+  @Param({"100", "1000", "10000"})
+  public int messageSize;
+
+  @Param({"10", "100", "1000"})
+  public int maxBatchMessages;
+
+  private ServerImpl server;
+  private Publisher publisher;
+  private PubsubMessage message;
+
+  @Setup
+  public void setUp() throws Exception {
+    server =
+        InProcessServerBuilder.forName(SERVER_NAME)
+            .addService(new FakePublisherServiceImpl().setRespondToAll(true))
+            .build()
+            .start();
+    publisher =
+        Publisher.Builder.newBuilder(TOPIC)
+            .setCredentials(new FakeCredentials())
+            .setChannelBuilder(InProcessChannelBuilder.forName(SERVER_NAME))
+            .setMaxBatchMessages(maxBatchMessages)
+            .setMaxBatchDuration(Duration.millis(1))
+            .setMaxOutstandingMessages(10 * maxBatchMessages)
+            .build();
+    message =
+        PubsubMessage.newBuilder().setData(ByteString.copyFrom(new byte[messageSize])).build();
+  }
+
+  @TearDown
+  public void tearDown() {
+    publisher.shutdown();
+    server.shutdownNow();
+  }
+
+  @Benchmark
+  @Threads(1)
+  public ListenableFuture<String> publish() {
+    return publisher.publish(message);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public ListenableFuture<String> publish_4Threads() {
+    return publisher.publish(message);
+  }
+
+  @Benchmark
+  @Threads(16)
+  public ListenableFuture<String> publish_16Threads() {
+    return publisher.publish(message);
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.cloud.pubsub.Subscriber.MessageReceiver;
+import com.google.cloud.pubsub.Subscriber.MessageReceiver.AckReply;
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.ReceivedMessage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.joda.time.Duration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link AbstractSubscriberConnection#processReceivedMessages} and the ack path: each
+ * received message is tracked for deadline extensions, handed to a receiver that acks it right
+ * away, and its ack batched and flushed.
+ *
+ * <p>The receiver runs on the calling thread and the acks are not sent anywhere, so the score is
+ * the cost of the client itself, in batches of received messages per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SubscriberConnectionBenchmark {
+  private static final String SUBSCRIPTION =
+      "projects/benchmark-project/subscriptions/benchmark-subscription";
+
+  @Param({"1", "100", "1000"})
+  public int batchMessages;
+
+  @Param({"100", "10000"})
+  public int messageSize;
+
+  /** A connection that receives what it is given and only counts the acks it sends. */
+  static final class BenchmarkConnection extends AbstractSubscriberConnection {
+    final AtomicLong sentAcks = new AtomicLong();
+
+    BenchmarkConnection(ScheduledExecutorService executor) {
+      super(
+          SUBSCRIPTION,
+          new MessageReceiver() {
+            @Override
+            public ListenableFuture<AckReply> receiveMessage(PubsubMessage message) {
+              return Futures.immediateFuture(AckReply.ACK);
+            }
+          },
+          null,
+          MessageCodecs.DEFAULT_CODECS,
+          Duration.millis(500),
+          new LatencyHistogram(),
+          new AckFlushPolicy(
+              MAX_PENDING_ACKS,
+              MIN_PENDING_ACKS_SEND_DELAY,
+              PENDING_ACKS_SEND_DELAY,
+              System.nanoTime()),
+          new AckCounters(),
+          null,
+          new FlowController(Optional.<Integer>absent(), Optional.<Integer>absent(), false),
+          executor,
+          MoreExecutors.newDirectExecutorService(),
+          AlarmScheduler.of(executor));
+    }
+
+    @Override
+    void initialize() {}
+
+    @Override
+    void sendAckOperations(
+        List<ByteString> acksToSend, List<PendingModifyAckDeadline> ackDeadlineExtensions) {
+      sentAcks.addAndGet(acksToSend.size());
+    }
+  }
+
+  private ScheduledExecutorService executor;
+  private BenchmarkConnection connection;
+  private List<ReceivedMessage> messages;
+
+  @Setup
+  public void setUp() {
+    executor = Executors.newScheduledThreadPool(1);
+    connection = new BenchmarkConnection(executor);
+    connection.startAsync().awaitRunning();
+    PubsubMessage message =
+        PubsubMessage.newBuilder().setData(ByteString.copyFrom(new byte[messageSize])).build();
+    messages = new ArrayList<>(batchMessages);
+    for (int i = 0; i < batchMessages; i++) {
+      messages.add(
+          ReceivedMessage.newBuilder().setAckId("ack-" + i).setMessage(message).build());
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    connection.stopAsync().awaitTerminated();
+    executor.shutdownNow();
+  }
+
+  @Benchmark
+  public long processReceivedMessages() {
+    connection.processReceivedMessages(messages);
+    return connection.sentAcks.get();
+  }
+}
@@ -16,35 +16,38 @@
 
 package com.google.cloud.pubsub;
 
-import com.google.cloud.pubsub.Publisher.CloudPubsubFlowControlException;
+import com.google.cloud.pubsub.MessageTraceListener.Event;
+import com.google.cloud.pubsub.Subscriber.BatchMessageReceiver;
 import com.google.cloud.pubsub.Subscriber.MessageReceiver;
 import com.google.cloud.pubsub.Subscriber.MessageReceiver.AckReply;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Lists;
-import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.AbstractService;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Timestamp;
 import com.google.pubsub.v1.PubsubMessage;
 import com.google.pubsub.v1.ReceivedMessage;
 import io.grpc.Status;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
 import org.joda.time.Duration;
 import org.joda.time.Instant;
-import org.joda.time.Interval;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -57,138 +60,131 @@ abstract class AbstractSubscriberConnection extends AbstractService {
 
   private static final int INITIAL_ACK_DEADLINE_EXTENSION_SECONDS = 2;
   @VisibleForTesting static final Duration PENDING_ACKS_SEND_DELAY = Duration.millis(100);
+  static final Duration MIN_PENDING_ACKS_SEND_DELAY = Duration.millis(10);
+  static final int MAX_PENDING_ACKS = 1000;
   private static final int MAX_ACK_DEADLINE_EXTENSION_SECS = 10 * 60;  // 10m
+  // Bounds how long stopping waits for the ack operations sent when stopping to complete.
+  private static final Duration STOP_ACK_OPERATIONS_TIMEOUT = Duration.standardSeconds(30);
 
   protected final String subscription;
   protected final ScheduledExecutorService executor;
+  // Runs the receiver calls, which may be the executor itself.
+  private final ExecutorService receiverExecutor;
+  private final AlarmScheduler alarmScheduler;
 
   private final Duration ackExpirationPadding;
-  private final MessageReceiver receiver;
+  // Only one of the receivers is set.
+  @Nullable private final MessageReceiver receiver;
+  @Nullable private final BatchMessageReceiver batchReceiver;
+  private final Map<String, MessageCodec> codecs;
 
-  private final FlowController flowController;
+  protected final FlowController flowController;
   private final MessagesWaiter messagesWaiter;
 
-  // Map of outstanding messages (value) ordered by expiration time (key) in ascending order.
-  private final Map<ExpirationInfo, List<AckHandler>> outstandingAckHandlers;
-  private final Set<String> pendingAcks;
-  private final Set<String> pendingNacks;
+  // Outstanding messages by ack deadline.
+  private final AckDeadlineIndex ackDeadlines;
+  // Acked and nacked messages to send, as lock-free stacks linked through their handlers.
+  private final AtomicReference<AckHandler> pendingAcks;
+  private final AtomicReference<AckHandler> pendingNacks;
+  // Number of acks and nacks pushed and not yet sent.
+  private final AtomicInteger pendingAckOperations;
+  private final AtomicBoolean immediateAckFlushScheduled;
+  private final AckFlushPolicy ackFlushPolicy;
+  protected final AckCounters ackCounters;
+  // Only set with a trace listener.
+  @Nullable private final MessageTracing tracing;
+  // Serializes the sending of ack operations, as the streams can only be written by one thread.
+  protected final Object ackSendLock;
 
   private final Lock alarmsLock;
   private int messageDeadlineSeconds;
-  private ScheduledFuture<?> ackDeadlineExtensionAlarm;
+  private Future<?> ackDeadlineExtensionAlarm;
   private Instant nextAckDeadlineExtensionAlarmTime;
-  private ScheduledFuture<?> pendingAcksAlarm;
+  private Future<?> pendingAcksAlarm;
 
-  // To keep track of number of seconds the receiver takes to process messages.
-  private final Distribution ackLatencyDistribution;
-
-  private static class ExpirationInfo implements Comparable<ExpirationInfo> {
-    Instant expiration;
-    int nextExtensionSeconds;
-
-    ExpirationInfo(Instant expiration, int initialAckDeadlineExtension) {
-      this.expiration = expiration;
-      nextExtensionSeconds = initialAckDeadlineExtension;
-    }
-
-    void extendExpiration() {
-      expiration = Instant.now().plus(Duration.standardSeconds(nextExtensionSeconds));
-      nextExtensionSeconds = 2 * nextExtensionSeconds;
-      if (nextExtensionSeconds > MAX_ACK_DEADLINE_EXTENSION_SECS) {
-        nextExtensionSeconds = MAX_ACK_DEADLINE_EXTENSION_SECS;
-      }
-    }
-
-    @Override
-    public int hashCode() {
-      return expiration.hashCode();
-    }
-
-    @Override
-    public boolean equals(Object obj) {
-      if (!(obj instanceof ExpirationInfo)) {
-        return false;
-      }
-
-      ExpirationInfo other = (ExpirationInfo) obj;
-      return expiration.equals(other.expiration);
-    }
-
-    @Override
-    public int compareTo(ExpirationInfo other) {
-      return expiration.compareTo(other.expiration);
-    }
-  }
+  // Time the receiver takes to process messages, in microseconds.
+  private final LatencyHistogram ackLatencies;
+  // The same, over the last few minutes only, to extend the ack deadlines from.
+  private final WindowedLatencyHistogram recentAckLatencies;
 
   /** Stores the data needed to asynchronously modify acknowledgement deadlines. */
   static class PendingModifyAckDeadline {
-    final List<String> ackIds;
+    final List<ByteString> ackIds;
     final int deadlineExtensionSeconds;
 
     PendingModifyAckDeadline(int deadlineExtensionSeconds) {
-      this.ackIds = new ArrayList<String>();
+      this.ackIds = new ArrayList<ByteString>();
       this.deadlineExtensionSeconds = deadlineExtensionSeconds;
     }
 
-    PendingModifyAckDeadline(String ackId, int deadlineExtensionSeconds) {
+    PendingModifyAckDeadline(ByteString ackId, int deadlineExtensionSeconds) {
       this(deadlineExtensionSeconds);
       addAckId(ackId);
     }
 
-    public void addAckId(String ackId) {
+    public void addAckId(ByteString ackId) {
       ackIds.add(ackId);
     }
   }
 
-  /** Handles callbacks for acking/nacking messages from the {@link MessageReceiver}. */
-  private class AckHandler implements FutureCallback<AckReply> {
-    private final String ackId;
+  /**
+   * Handles callbacks for acking/nacking messages from the {@link MessageReceiver}.
+   *
+   * <p>This is the only object kept per outstanding message: it is also its entry in the ack
+   * deadlines index and its node in the stack of pending acks or nacks.
+   */
+  private class AckHandler extends AckDeadlineIndex.Entry implements FutureCallback<AckReply> {
     private final int outstandingBytes;
-    private final AtomicBoolean acked;
-    private final Instant receivedTime;
+    private final long receivedNanos;
+    private final long spanId;
+    // Next handler in the stack of pending acks or nacks, published by pushing this handler.
+    private AckHandler nextPending;
 
-    AckHandler(String ackId, int outstandingBytes) {
-      this.ackId = ackId;
+    AckHandler(ByteString ackId, int outstandingBytes) {
+      super(ackId);
       this.outstandingBytes = outstandingBytes;
-      acked = new AtomicBoolean(false);
-      receivedTime = Instant.now();
+      receivedNanos = System.nanoTime();
+      spanId = tracing == null ? MessageTracing.NOT_SAMPLED : tracing.startSpan(Event.RECEIVED);
+    }
+
+    void trace(Event event) {
+      if (tracing != null) {
+        tracing.record(spanId, event);
+      }
     }
 
     @Override
     public void onFailure(Throwable t) {
+      trace(Event.RECEIVER_DONE);
+      ackDeadlines.remove(this);
       logger.warn(
-          "MessageReceiver failed to processes ack ID: " + ackId + ", the message will be nacked.",
+          "MessageReceiver failed to processes ack ID: "
+              + ackId.toStringUtf8()
+              + ", the message will be nacked.",
           t);
-      synchronized (pendingNacks) {
-        pendingNacks.add(ackId);
-      }
-      setupPendingAcksAlarm();
+      addPending(pendingNacks, this);
       flowController.release(1, outstandingBytes);
+      ackCounters.nackedMessages.increment();
       messagesWaiter.incrementPendingMessages(-1);
     }
 
     @Override
     public void onSuccess(AckReply reply) {
-      acked.getAndSet(true);
+      trace(Event.RECEIVER_DONE);
+      ackDeadlines.remove(this);
       switch (reply) {
         case ACK:
-          synchronized (pendingAcks) {
-            pendingAcks.add(ackId);
-          }
-          setupPendingAcksAlarm();
+          addPending(pendingAcks, this);
           flowController.release(1, outstandingBytes);
-          // Record the latency rounded to the next closest integer.
-          ackLatencyDistribution.record(
-              Ints.saturatedCast(
-                  (long) Math.ceil(new Duration(receivedTime, Instant.now()).getMillis() / 1000D)));
+          long ackLatencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - receivedNanos);
+          ackLatencies.record(ackLatencyMicros);
+          recentAckLatencies.record(ackLatencyMicros);
           messagesWaiter.incrementPendingMessages(-1);
           return;
         case NACK:
-          synchronized (pendingNacks) {
-            pendingNacks.add(ackId);
-          }
-          setupPendingAcksAlarm();
+          addPending(pendingNacks, this);
           flowController.release(1, outstandingBytes);
+          ackCounters.nackedMessages.increment();
           messagesWaiter.incrementPendingMessages(-1);
           return;
         default:
@@ -199,21 +195,43 @@ abstract class AbstractSubscriberConnection extends AbstractService {
 
   AbstractSubscriberConnection(
       String subscription,
-      MessageReceiver receiver,
+      @Nullable MessageReceiver receiver,
+      @Nullable BatchMessageReceiver batchReceiver,
+      Map<String, MessageCodec> codecs,
       Duration ackExpirationPadding,
-      Distribution ackLatencyDistribution,
+      LatencyHistogram ackLatencies,
+      WindowedLatencyHistogram recentAckLatencies,
+      AckFlushPolicy ackFlushPolicy,
+      AckCounters ackCounters,
+      @Nullable MessageTracing tracing,
       FlowController flowController,
-      ScheduledExecutorService executor) {
+      ScheduledExecutorService executor,
+      ExecutorService receiverExecutor,
+      AlarmScheduler alarmScheduler) {
     this.executor = executor;
+    this.receiverExecutor = receiverExecutor;
+    this.alarmScheduler = alarmScheduler;
     this.ackExpirationPadding = ackExpirationPadding;
     this.receiver = receiver;
+    this.batchReceiver = batchReceiver;
+    this.codecs = codecs;
     this.subscription = subscription;
     this.flowController = flowController;
-    outstandingAckHandlers = new HashMap<>();
-    pendingAcks = new HashSet<>();
-    pendingNacks = new HashSet<>();
-    // 601 buckets of 1s resolution from 0s to MAX_ACK_DEADLINE_SECONDS
-    this.ackLatencyDistribution = ackLatencyDistribution;
+    ackDeadlines =
+        new AckDeadlineIndex(
+            INITIAL_ACK_DEADLINE_EXTENSION_SECONDS,
+            MAX_ACK_DEADLINE_EXTENSION_SECS,
+            recentAckLatencies);
+    pendingAcks = new AtomicReference<>();
+    pendingNacks = new AtomicReference<>();
+    pendingAckOperations = new AtomicInteger();
+    immediateAckFlushScheduled = new AtomicBoolean();
+    this.ackFlushPolicy = ackFlushPolicy;
+    this.ackCounters = ackCounters;
+    this.tracing = tracing;
+    ackSendLock = new Object();
+    this.ackLatencies = ackLatencies;
+    this.recentAckLatencies = recentAckLatencies;
     alarmsLock = new ReentrantLock();
     nextAckDeadlineExtensionAlarmTime = new Instant(Long.MAX_VALUE);
     messagesWaiter = new MessagesWaiter();
@@ -241,6 +259,10 @@ abstract class AbstractSubscriberConnection extends AbstractService {
       alarmsLock.unlock();
     }
     processOutstandingAckOperations();
+    // The subscriber releases the channels and the executor once its connections are stopped.
+    if (!waitForAckOperations(STOP_ACK_OPERATIONS_TIMEOUT)) {
+      logger.warn("Stopped before all the ack operations completed, messages may be redelivered.");
+    }
     notifyStopped();
   }
 
@@ -267,51 +289,146 @@ abstract class AbstractSubscriberConnection extends AbstractService {
 
   protected void processReceivedMessages(
       List<com.google.pubsub.v1.ReceivedMessage> responseMessages) {
-    int receivedMessagesCount = responseMessages.size();
-    if (receivedMessagesCount == 0) {
+    if (responseMessages.isEmpty()) {
       return;
     }
     Instant now = Instant.now();
-    int totalByteCount = 0;
     final List<AckHandler> ackHandlers = new ArrayList<>(responseMessages.size());
     for (ReceivedMessage pubsubMessage : responseMessages) {
       int messageSize = pubsubMessage.getMessage().getSerializedSize();
-      totalByteCount += messageSize;
-      ackHandlers.add(new AckHandler(pubsubMessage.getAckId(), messageSize));
-    }
-    ExpirationInfo expiration =
-        new ExpirationInfo(
-            now.plus(messageDeadlineSeconds * 1000), INITIAL_ACK_DEADLINE_EXTENSION_SECONDS);
-    synchronized (outstandingAckHandlers) {
-      addOutstadingAckHandlers(expiration, ackHandlers);
+      // Reserved before the message is handed to the receiver, which may release it right away.
+      // The messages are already received, so they may take the capacity over the limits: the
+      // connections only ask for more messages once it is back under them.
+      flowController.forceReserve(1, messageSize);
+      // Kept as bytes, as they are only sent back.
+      ackHandlers.add(new AckHandler(pubsubMessage.getAckIdBytes(), messageSize));
+      if (pubsubMessage.getMessage().hasPublishTime()) {
+        Timestamp publishTime = pubsubMessage.getMessage().getPublishTime();
+        // Only as precise as the clock of this host, which has milliseconds.
+        ackCounters.endToEndLatencies.record(
+            now.getMillis() * 1000
+                - publishTime.getSeconds() * 1000000
+                - publishTime.getNanos() / 1000);
+      }
     }
+    Instant expiration = now.plus(messageDeadlineSeconds * 1000);
+    ackDeadlines.addAll(ackHandlers, now.getMillis(), expiration.getMillis());
+    ackCounters.receivedMessages.add(responseMessages.size());
     logger.debug("Received {} messages at {}", responseMessages.size(), now);
     setupNextAckDeadlineExtensionAlarm(expiration);
 
     messagesWaiter.incrementPendingMessages(responseMessages.size());
+    if (batchReceiver != null) {
+      dispatchBatch(responseMessages, ackHandlers);
+    } else {
+      dispatchEach(responseMessages, ackHandlers);
+    }
+  }
+
+  /** Hands each message to the receiver in its own task. */
+  private void dispatchEach(List<ReceivedMessage> responseMessages, List<AckHandler> ackHandlers) {
     Iterator<AckHandler> acksIterator = ackHandlers.iterator();
     for (ReceivedMessage userMessage : responseMessages) {
       final PubsubMessage message = userMessage.getMessage();
       final AckHandler ackHandler = acksIterator.next();
-      executor.submit(
+      final long submittedNanos = System.nanoTime();
+      receiverExecutor.submit(
           new Runnable() {
             @Override
             public void run() {
-              Futures.addCallback(receiver.receiveMessage(message), ackHandler);
+              recordReceiverQueueing(submittedNanos);
+              // Decoded here rather than on the connection thread, which keeps receiving messages.
+              PubsubMessage decodedMessage;
+              try {
+                decodedMessage = MessageCodecs.decode(message, codecs);
+              } catch (IOException e) {
+                ackHandler.onFailure(e);
+                return;
+              }
+              ackHandler.trace(Event.DISPATCHED);
+              ListenableFuture<AckReply> reply =
+                  recordReceiverLatency(receiver.receiveMessage(decodedMessage));
+              Futures.addCallback(reply, ackHandler);
             }
           });
     }
-    try {
-      flowController.reserve(receivedMessagesCount, totalByteCount);
-    } catch (CloudPubsubFlowControlException unexpectedException) {
-      throw new IllegalStateException("Flow control unexpected exception", unexpectedException);
-    }
   }
 
-  private void addOutstadingAckHandlers(
-      ExpirationInfo expiration, final List<AckHandler> ackHandlers) {
-    outstandingAckHandlers.putIfAbsent(expiration, new ArrayList<AckHandler>(ackHandlers.size()));
-    outstandingAckHandlers.get(expiration).addAll(ackHandlers);
+  /** Hands all the messages to the batch receiver in a single task. */
+  private void dispatchBatch(
+      final List<ReceivedMessage> responseMessages, final List<AckHandler> ackHandlers) {
+    final long submittedNanos = System.nanoTime();
+    receiverExecutor.submit(
+        new Runnable() {
+          @Override
+          public void run() {
+            recordReceiverQueueing(submittedNanos);
+            final List<PubsubMessage> messages = new ArrayList<>(responseMessages.size());
+            final List<AckHandler> batchAckHandlers = new ArrayList<>(responseMessages.size());
+            for (int i = 0; i < responseMessages.size(); i++) {
+              try {
+                messages.add(MessageCodecs.decode(responseMessages.get(i).getMessage(), codecs));
+                batchAckHandlers.add(ackHandlers.get(i));
+              } catch (IOException e) {
+                // Only the messages that fail to decode are nacked, the others are still handed.
+                ackHandlers.get(i).onFailure(e);
+              }
+            }
+            if (messages.isEmpty()) {
+              return;
+            }
+            for (AckHandler ackHandler : batchAckHandlers) {
+              ackHandler.trace(Event.DISPATCHED);
+            }
+            Futures.addCallback(
+                recordReceiverLatency(batchReceiver.receiveMessages(messages)),
+                new FutureCallback<List<AckReply>>() {
+                  @Override
+                  public void onSuccess(List<AckReply> replies) {
+                    if (replies.size() != batchAckHandlers.size()) {
+                      onFailure(
+                          new IllegalStateException(
+                              String.format(
+                                  "BatchMessageReceiver replied to %d messages out of %d.",
+                                  replies.size(), batchAckHandlers.size())));
+                      return;
+                    }
+                    for (int i = 0; i < replies.size(); i++) {
+                      batchAckHandlers.get(i).onSuccess(replies.get(i));
+                    }
+                  }
+
+                  @Override
+                  public void onFailure(Throwable t) {
+                    for (AckHandler ackHandler : batchAckHandlers) {
+                      ackHandler.onFailure(t);
+                    }
+                  }
+                });
+          }
+        });
+  }
+
+  /** Records the time a receiver task waited for a thread, from its submission until now. */
+  private void recordReceiverQueueing(long submittedNanos) {
+    ackCounters.receiverTasks.increment();
+    ackCounters.receiverQueuedMicros.add(
+        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - submittedNanos));
+  }
+
+  /** Records the time the receiver takes to reply, from now until the reply completes. */
+  private <T> ListenableFuture<T> recordReceiverLatency(ListenableFuture<T> reply) {
+    final long startNanos = System.nanoTime();
+    reply.addListener(
+        new Runnable() {
+          @Override
+          public void run() {
+            ackCounters.receiverLatencies.record(
+                TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+          }
+        },
+        MoreExecutors.directExecutor());
+    return reply;
   }
 
   private void setupPendingAcksAlarm() {
@@ -319,7 +436,7 @@ abstract class AbstractSubscriberConnection extends AbstractService {
     try {
       if (pendingAcksAlarm == null) {
         pendingAcksAlarm =
-            executor.schedule(
+            alarmScheduler.schedule(
                 new Runnable() {
                   @Override
                   public void run() {
@@ -332,7 +449,7 @@ abstract class AbstractSubscriberConnection extends AbstractService {
                     processOutstandingAckOperations();
                   }
                 },
-                PENDING_ACKS_SEND_DELAY.getMillis(),
+                ackFlushPolicy.getDelayMillis(),
                 TimeUnit.MILLISECONDS);
       }
     } finally {
@@ -368,58 +485,29 @@ abstract class AbstractSubscriberConnection extends AbstractService {
           now,
           cutOverTime,
           ackExpirationPadding);
-      ExpirationInfo nextScheduleExpiration = null;
-      List<PendingModifyAckDeadline> modifyAckDeadlinesToSend = new ArrayList<>();
-
-      synchronized (outstandingAckHandlers) {
-        for (ExpirationInfo messageExpiration : outstandingAckHandlers.keySet()) {
-          if (messageExpiration.expiration.compareTo(cutOverTime) <= 0) {
-            Collection<AckHandler> expiringAcks = outstandingAckHandlers.get(messageExpiration);
-            outstandingAckHandlers.remove(messageExpiration);
-            List<AckHandler> renewedAckHandlers = new ArrayList<>(expiringAcks.size());
-            messageExpiration.extendExpiration();
-            int extensionSeconds =
-                Ints.saturatedCast(
-                    new Interval(now, messageExpiration.expiration)
-                        .toDuration()
-                        .getStandardSeconds());
-            PendingModifyAckDeadline pendingModAckDeadline =
-                new PendingModifyAckDeadline(extensionSeconds);
-            for (AckHandler ackHandler : expiringAcks) {
-              if (ackHandler.acked.get()) {
-                continue;
-              }
-              pendingModAckDeadline.addAckId(ackHandler.ackId);
-              renewedAckHandlers.add(ackHandler);
-            }
-            modifyAckDeadlinesToSend.add(pendingModAckDeadline);
-            if (!renewedAckHandlers.isEmpty()) {
-              addOutstadingAckHandlers(messageExpiration, renewedAckHandlers);
-            } else {
-              outstandingAckHandlers.remove(messageExpiration);
-            }
-          }
-          if (nextScheduleExpiration == null
-              || nextScheduleExpiration.expiration.isAfter(messageExpiration.expiration)) {
-            nextScheduleExpiration = messageExpiration;
-          }
-        }
-      }
+      List<PendingModifyAckDeadline> modifyAckDeadlinesToSend =
+          ackDeadlines.extendDue(now.getMillis(), cutOverTime.getMillis());
 
+      for (PendingModifyAckDeadline extension : modifyAckDeadlinesToSend) {
+        ackCounters.ackDeadlineExtensions.add(extension.ackIds.size());
+      }
+      ackCounters.expiredMessages.add(ackDeadlines.takeExpired());
       processOutstandingAckOperations(modifyAckDeadlinesToSend);
 
-      if (nextScheduleExpiration != null) {
+      long nextExpirationMillis = ackDeadlines.nextExpirationMillis();
+      if (nextExpirationMillis != Long.MAX_VALUE) {
+        Instant nextExpiration = new Instant(nextExpirationMillis);
         logger.debug(
             "Scheduling based on outstanding, now time: {}, " + "next schedule time: {}",
             now,
-            nextScheduleExpiration);
-        setupNextAckDeadlineExtensionAlarm(nextScheduleExpiration);
+            nextExpiration);
+        setupNextAckDeadlineExtensionAlarm(nextExpiration);
       }
     }
   }
 
-  private void setupNextAckDeadlineExtensionAlarm(ExpirationInfo messageExpiration) {
-    Instant possibleNextAlarmTime = messageExpiration.expiration.minus(ackExpirationPadding);
+  private void setupNextAckDeadlineExtensionAlarm(Instant messageExpiration) {
+    Instant possibleNextAlarmTime = messageExpiration.minus(ackExpirationPadding);
     alarmsLock.lock();
     try {
       if (nextAckDeadlineExtensionAlarmTime.isAfter(possibleNextAlarmTime)) {
@@ -435,7 +523,7 @@ abstract class AbstractSubscriberConnection extends AbstractService {
         nextAckDeadlineExtensionAlarmTime = possibleNextAlarmTime;
 
         ackDeadlineExtensionAlarm =
-            executor.schedule(
+            alarmScheduler.schedule(
                 new AckDeadlineAlarm(),
                 nextAckDeadlineExtensionAlarmTime.getMillis() - Instant.now().getMillis(),
                 TimeUnit.MILLISECONDS);
@@ -451,38 +539,74 @@ abstract class AbstractSubscriberConnection extends AbstractService {
   }
 
   private void processOutstandingAckOperations(
-      List<PendingModifyAckDeadline> ackDeadlineExtensions) {
-    List<PendingModifyAckDeadline> modifyAckDeadlinesToSend =
-        Lists.newArrayList(ackDeadlineExtensions);
-    List<String> acksToSend = new ArrayList<>(pendingAcks.size());
-    synchronized (pendingAcks) {
-      if (!pendingAcks.isEmpty()) {
-        try {
-          acksToSend = new ArrayList<>(pendingAcks);
-          logger.debug("Sending {} acks", acksToSend.size());
-        } finally {
-          pendingAcks.clear();
-        }
+      List<PendingModifyAckDeadline> modifyAckDeadlinesToSend) {
+    synchronized (ackSendLock) {
+      List<ByteString> acksToSend = new ArrayList<>();
+      for (AckHandler ack = pendingAcks.getAndSet(null); ack != null; ack = ack.nextPending) {
+        acksToSend.add(ack.ackId);
+        ack.trace(Event.ACK_FLUSHED);
       }
-    }
-    PendingModifyAckDeadline nacksToSend = new PendingModifyAckDeadline(0);
-    synchronized (pendingNacks) {
-      if (!pendingNacks.isEmpty()) {
-        try {
-          for (String ackId : pendingNacks) {
-            nacksToSend.addAckId(ackId);
-          }
-          logger.debug("Sending {} nacks", pendingNacks.size());
-        } finally {
-          pendingNacks.clear();
+      if (!acksToSend.isEmpty()) {
+        logger.debug("Sending {} acks", acksToSend.size());
+      }
+      int nacks = 0;
+      AckHandler nack = pendingNacks.getAndSet(null);
+      if (nack != null) {
+        PendingModifyAckDeadline nacksToSend = new PendingModifyAckDeadline(0);
+        for (; nack != null; nack = nack.nextPending) {
+          nacksToSend.addAckId(nack.ackId);
+          nack.trace(Event.ACK_FLUSHED);
         }
+        nacks = nacksToSend.ackIds.size();
+        logger.debug("Sending {} nacks", nacks);
         modifyAckDeadlinesToSend.add(nacksToSend);
       }
+      int ackOperations = acksToSend.size() + nacks;
+      if (ackOperations > 0) {
+        pendingAckOperations.addAndGet(-ackOperations);
+        ackFlushPolicy.onFlushed(ackOperations, System.nanoTime());
+      } else if (modifyAckDeadlinesToSend.isEmpty()) {
+        return;
+      }
+
+      sendAckOperations(acksToSend, modifyAckDeadlinesToSend);
     }
+  }
 
-    sendAckOperations(acksToSend, modifyAckDeadlinesToSend);
+  /**
+   * Adds an ack or nack to send, sending the pending ones right away if they fill a batch, or once
+   * the flush delay is over otherwise.
+   */
+  private void addPending(AtomicReference<AckHandler> stack, AckHandler handler) {
+    AckHandler head;
+    do {
+      head = stack.get();
+      handler.nextPending = head;
+    } while (!stack.compareAndSet(head, handler));
+    if (pendingAckOperations.incrementAndGet() >= ackFlushPolicy.getMaxBatchAcks()
+        && immediateAckFlushScheduled.compareAndSet(false, true)) {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              immediateAckFlushScheduled.set(false);
+              processOutstandingAckOperations();
+            }
+          });
+      return;
+    }
+    setupPendingAcksAlarm();
   }
 
   abstract void sendAckOperations(
-      List<String> acksToSend, List<PendingModifyAckDeadline> ackDeadlineExtensions);
+      List<ByteString> acksToSend, List<PendingModifyAckDeadline> ackDeadlineExtensions);
+
+  /**
+   * Waits for the ack operations handed to {@link #sendAckOperations} to complete, for at most the
+   * given timeout, and returns whether they all did. Connections that send them synchronously have
+   * none to wait for.
+   */
+  boolean waitForAckOperations(Duration timeout) {
+    return true;
+  }
 }
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+/**
+ * Counts the messages the connections of a subscriber receive, and the ack IDs they acknowledge
+ * or modify the deadline of, for its {@link SubscriberStats}. Also records how long the messages
+ * took to arrive, and how long the receiver took to process them.
+ *
+ * <p>Polling connections count the acks of each request once it succeeds, and the ack IDs of each
+ * request that fails for good. Streaming connections have no outcome per request, so they count
+ * acks as sent once written to the stream.
+ */
+final class AckCounters {
+  final StripedCounter receivedMessages = new StripedCounter();
+  // Nacked by the receiver, or because it failed.
+  final StripedCounter nackedMessages = new StripedCounter();
+  // Found past their deadline when extending it.
+  final StripedCounter expiredMessages = new StripedCounter();
+  // Planned by the connections, sent as deadline modifications.
+  final StripedCounter ackDeadlineExtensions = new StripedCounter();
+  final StripedCounter sentAcks = new StripedCounter();
+  final StripedCounter failedAcks = new StripedCounter();
+  final StripedCounter failedAckDeadlineModifications = new StripedCounter();
+  final StripedCounter retriedRequests = new StripedCounter();
+  // In microseconds, from the publish time of the messages to their reception.
+  final LatencyHistogram endToEndLatencies = new LatencyHistogram();
+  // In microseconds, from handing messages to the receiver to its reply.
+  final LatencyHistogram receiverLatencies = new LatencyHistogram();
+  // The receiver tasks, and the microseconds they waited in the receiver executor before running,
+  // taken by the stream scaling to tell whether the receivers keep up.
+  final StripedCounter receiverTasks = new StripedCounter();
+  final StripedCounter receiverQueuedMicros = new StripedCounter();
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.cloud.pubsub.AbstractSubscriberConnection.PendingModifyAckDeadline;
+import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Index of the ack deadlines of the outstanding messages, in buckets of one second sorted by
+ * expiration, so extending the deadlines only touches the messages that are due.
+ *
+ * <p>Each entry knows its bucket, so messages are removed as soon as they are acked or nacked,
+ * rather than rescanned until their deadline comes.
+ *
+ * <p>Deadlines are extended from the ack latencies of the subscriber: long enough for the message
+ * to be acked in the time {@value #EXTENSION_PERCENTILE}% of the messages take, so fast receivers
+ * get short extensions and slow ones few extensions. Messages already slower than that, or all of
+ * them while no latency is known, get extensions that double each time, up to a maximum. Only the
+ * recent latencies are used, so the extensions follow the receivers when they speed up.
+ */
+final class AckDeadlineIndex {
+  static final double EXTENSION_PERCENTILE = 99.0;
+
+  /** A message in the index. */
+  static class Entry {
+    final ByteString ackId;
+
+    // Guarded by the index.
+    private long receivedMillis;
+    private int lastExtensionSeconds;
+    private long bucketSeconds;
+    private Set<Entry> bucket;
+
+    Entry(ByteString ackId) {
+      this.ackId = Preconditions.checkNotNull(ackId);
+    }
+  }
+
+  private final int initialExtensionSeconds;
+  private final int maxExtensionSeconds;
+  // In microseconds.
+  @Nullable private final WindowedLatencyHistogram ackLatencies;
+
+  // Entries by expiration, rounded down to the second.
+  @GuardedBy("this")
+  private final TreeMap<Long, Set<Entry>> buckets = new TreeMap<>();
+
+  @GuardedBy("this")
+  private int size;
+
+  // Entries found past their deadline when extending it, since last taken.
+  @GuardedBy("this")
+  private int expired;
+
+  /** Creates an index that only extends deadlines exponentially. */
+  AckDeadlineIndex(int initialExtensionSeconds, int maxExtensionSeconds) {
+    this(initialExtensionSeconds, maxExtensionSeconds, null);
+  }
+
+  AckDeadlineIndex(
+      int initialExtensionSeconds,
+      int maxExtensionSeconds,
+      @Nullable WindowedLatencyHistogram ackLatencies) {
+    Preconditions.checkArgument(initialExtensionSeconds > 0);
+    Preconditions.checkArgument(maxExtensionSeconds >= initialExtensionSeconds);
+    this.initialExtensionSeconds = initialExtensionSeconds;
+    this.maxExtensionSeconds = maxExtensionSeconds;
+    this.ackLatencies = ackLatencies;
+  }
+
+  /** Adds messages received at the given time and expiring at the other. */
+  synchronized void addAll(
+      Collection<? extends Entry> entries, long receivedMillis, long expirationMillis) {
+    for (Entry entry : entries) {
+      Preconditions.checkArgument(entry.bucket == null, "Entry already added.");
+      entry.receivedMillis = receivedMillis;
+      entry.lastExtensionSeconds = 0;
+      addToBucket(entry, expirationMillis);
+    }
+  }
+
+  /** Removes a message, if it is still in the index. */
+  synchronized void remove(Entry entry) {
+    if (entry.bucket == null) {
+      return;
+    }
+    entry.bucket.remove(entry);
+    if (entry.bucket.isEmpty()) {
+      buckets.remove(entry.bucketSeconds);
+    }
+    entry.bucket = null;
+    size--;
+  }
+
+  /**
+   * Extends the deadline of the messages expiring at or before the cut over time, and returns the
+   * deadline modifications to send for them, one per extension.
+   */
+  List<PendingModifyAckDeadline> extendDue(long nowMillis, long cutOverMillis) {
+    // Read once and before taking the lock, as the percentile scans the whole histogram, which
+    // would hold back the acks meanwhile. Rounded up to the second.
+    long ackLatencySeconds =
+        ackLatencies == null
+            ? 0
+            : (ackLatencies.snapshot(nowMillis).getPercentile(EXTENSION_PERCENTILE) + 999999)
+                / 1000000;
+    synchronized (this) {
+      return extendDue(nowMillis, cutOverMillis, ackLatencySeconds);
+    }
+  }
+
+  @GuardedBy("this")
+  private List<PendingModifyAckDeadline> extendDue(
+      long nowMillis, long cutOverMillis, long ackLatencySeconds) {
+    Map<Integer, PendingModifyAckDeadline> extensions = new HashMap<>();
+    List<Entry> extended = new ArrayList<>();
+    List<Long> expirations = new ArrayList<>();
+    for (Iterator<Map.Entry<Long, Set<Entry>>> it =
+            buckets.headMap(cutOverMillis / 1000, true).entrySet().iterator();
+        it.hasNext(); ) {
+      Map.Entry<Long, Set<Entry>> bucket = it.next();
+      // Buckets round down, so only those a whole second in the past are surely expired.
+      if ((bucket.getKey() + 1) * 1000 <= nowMillis) {
+        expired += bucket.getValue().size();
+      }
+      for (Entry entry : bucket.getValue()) {
+        int extensionSeconds = nextExtensionSeconds(entry, nowMillis, ackLatencySeconds);
+        PendingModifyAckDeadline extension = extensions.get(extensionSeconds);
+        if (extension == null) {
+          extension = new PendingModifyAckDeadline(extensionSeconds);
+          extensions.put(extensionSeconds, extension);
+        }
+        extension.addAckId(entry.ackId);
+        entry.lastExtensionSeconds = extensionSeconds;
+        entry.bucket = null;
+        size--;
+        extended.add(entry);
+        expirations.add(nowMillis + extensionSeconds * 1000L);
+      }
+      it.remove();
+    }
+    // Added back once done iterating, as the new expirations may still be before the cut over.
+    for (int i = 0; i < extended.size(); i++) {
+      addToBucket(extended.get(i), expirations.get(i));
+    }
+    return new ArrayList<>(extensions.values());
+  }
+
+  /** Returns the earliest expiration of the messages, or {@link Long#MAX_VALUE} if none. */
+  synchronized long nextExpirationMillis() {
+    return buckets.isEmpty() ? Long.MAX_VALUE : buckets.firstKey() * 1000;
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Returns the number of messages found past their deadline by {@link #extendDue} since last
+   * called; the server may have redelivered them already.
+   */
+  synchronized int takeExpired() {
+    int taken = expired;
+    expired = 0;
+    return taken;
+  }
+
+  private int nextExtensionSeconds(Entry entry, long nowMillis, long ackLatencySeconds) {
+    long ageSeconds = (nowMillis - entry.receivedMillis) / 1000;
+    long extensionSeconds;
+    if (ackLatencySeconds > ageSeconds) {
+      // Until most messages are acked.
+      extensionSeconds = ackLatencySeconds - ageSeconds;
+    } else if (entry.lastExtensionSeconds == 0) {
+      extensionSeconds = initialExtensionSeconds;
+    } else {
+      // A straggler, or the latency is not known yet.
+      extensionSeconds = 2L * entry.lastExtensionSeconds;
+    }
+    return (int) Math.min(maxExtensionSeconds, Math.max(initialExtensionSeconds, extensionSeconds));
+  }
+
+  private void addToBucket(Entry entry, long expirationMillis) {
+    // Rounded down, so messages are never considered to expire later than they do.
+    long bucketSeconds = expirationMillis / 1000;
+    Set<Entry> bucket = buckets.get(bucketSeconds);
+    if (bucket == null) {
+      bucket = new HashSet<>();
+      buckets.put(bucketSeconds, bucket);
+    }
+    bucket.add(entry);
+    entry.bucket = bucket;
+    entry.bucketSeconds = bucketSeconds;
+    size++;
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.GuardedBy;
+import org.joda.time.Duration;
+
+/**
+ * Decides when the acks and nacks of a subscriber connection are sent.
+ *
+ * <p>Pending acks are sent as soon as there are {@link #getMaxBatchAcks()} of them, so requests
+ * stay small at high rates. Otherwise they are sent after a delay that follows the ack rate: it
+ * is the time the connection takes to ack a full batch scaled down to the maximum delay, so at low
+ * rates acks are sent after the minimum delay, rather than waiting for batches that would not fill.
+ */
+final class AckFlushPolicy {
+  private final int maxBatchAcks;
+  private final long minDelayMillis;
+  private final long maxDelayMillis;
+
+  @GuardedBy("this")
+  private long lastFlushNanos;
+
+  private volatile long delayMillis;
+
+  AckFlushPolicy(int maxBatchAcks, Duration minDelay, Duration maxDelay, long nowNanos) {
+    Preconditions.checkArgument(maxBatchAcks > 0);
+    Preconditions.checkArgument(minDelay.getMillis() >= 0);
+    Preconditions.checkArgument(maxDelay.getMillis() >= minDelay.getMillis());
+    this.maxBatchAcks = maxBatchAcks;
+    minDelayMillis = minDelay.getMillis();
+    maxDelayMillis = maxDelay.getMillis();
+    lastFlushNanos = nowNanos;
+    // Start from the maximum delay until the ack rate is known.
+    delayMillis = maxDelayMillis;
+  }
+
+  /** Number of pending acks and nacks that are sent right away. */
+  int getMaxBatchAcks() {
+    return maxBatchAcks;
+  }
+
+  /** Delay after which pending acks and nacks are sent, in milliseconds. */
+  long getDelayMillis() {
+    return delayMillis;
+  }
+
+  /** Records the acks and nacks sent, and updates the delay from the rate they came at. */
+  synchronized void onFlushed(int acks, long nowNanos) {
+    long elapsedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(nowNanos - lastFlushNanos));
+    lastFlushNanos = nowNanos;
+    // The delay reaches the maximum once a full batch is acked within the maximum delay.
+    double acksPerMaxDelay = (double) acks * maxDelayMillis / elapsedMillis;
+    long delay = (long) (maxDelayMillis * Math.min(1, acksPerMaxDelay / maxBatchAcks));
+    delayMillis = Math.max(minDelayMillis, delay);
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Ints;
+import java.util.concurrent.atomic.AtomicLong;
+import org.joda.time.Duration;
+
+/**
+ * Chooses the batch size and delay of a publisher, within the configured maximums, so that the
+ * given percentile of the publish latency stays under a target.
+ *
+ * <p>Every {@link #UPDATE_PERIOD} the controller looks at the publish RPC latencies and at the
+ * message arrival rate observed in the period. The delay is set to the part of the latency target
+ * not already taken by the RPCs, and the batch size to the number of messages expected to arrive
+ * within that delay, so at low rates messages are sent right away and at high rates batches grow up
+ * to the maximums.
+ *
+ * <p>Batches shrink by at most half per period. While the RPCs alone take the whole target they are
+ * the bottleneck, and smaller batches would only mean more RPCs slowing them down further, so the
+ * batches grow back twice as large per period instead, up to the maximums.
+ */
+final class AdaptiveBatchingController {
+  @VisibleForTesting static final Duration UPDATE_PERIOD = Duration.standardSeconds(1);
+  private static final double LATENCY_PERCENTILE = 99.0;
+  // Part of the remaining latency budget used for batching, leaves room for scheduling noise.
+  private static final double BATCHING_BUDGET_RATIO = 0.8;
+
+  private final long latencyTargetMillis;
+  private final int maxBatchMessages;
+  private final long maxBatchDurationMillis;
+
+  // Publish RPC latencies in milliseconds, recorded since the last update.
+  private final LatencyHistogram rpcLatencies;
+  private final AtomicLong sealedMessages;
+  private final AtomicLong nextUpdateTime;
+  private long lastUpdateTime;
+
+  private volatile int batchMessages;
+  private volatile long batchDurationMillis;
+
+  AdaptiveBatchingController(
+      Duration latencyTarget, int maxBatchMessages, Duration maxBatchDuration, long now) {
+    Preconditions.checkArgument(latencyTarget.getMillis() > 0);
+    Preconditions.checkArgument(maxBatchMessages > 0);
+    latencyTargetMillis = latencyTarget.getMillis();
+    this.maxBatchMessages = maxBatchMessages;
+    maxBatchDurationMillis = maxBatchDuration.getMillis();
+    rpcLatencies = new LatencyHistogram();
+    sealedMessages = new AtomicLong();
+    lastUpdateTime = now;
+    nextUpdateTime = new AtomicLong(now + UPDATE_PERIOD.getMillis());
+    // Start from the configured settings until there is something to learn from.
+    batchMessages = maxBatchMessages;
+    batchDurationMillis = maxBatchDurationMillis;
+  }
+
+  /** Batch size currently chosen. */
+  int getBatchMessages() {
+    return batchMessages;
+  }
+
+  /** Batch delay currently chosen. */
+  Duration getBatchDuration() {
+    return new Duration(batchDurationMillis);
+  }
+
+  void recordBatchSealed(int messages) {
+    sealedMessages.addAndGet(messages);
+  }
+
+  /**
+   * Records the latency of a publish RPC, failed ones and timeouts included.
+   *
+   * @return whether the batching parameters have been updated as a result
+   */
+  boolean recordPublishLatency(long latencyMillis, long now) {
+    rpcLatencies.record(latencyMillis);
+    long updateTime = nextUpdateTime.get();
+    if (now < updateTime
+        || !nextUpdateTime.compareAndSet(updateTime, now + UPDATE_PERIOD.getMillis())) {
+      return false;
+    }
+    update(now);
+    return true;
+  }
+
+  @VisibleForTesting
+  synchronized void update(long now) {
+    long elapsedMillis = Math.max(1, now - lastUpdateTime);
+    lastUpdateTime = now;
+    long messages = sealedMessages.getAndSet(0);
+    HistogramSnapshot latencies = rpcLatencies.snapshotAndReset();
+    if (latencies.getCount() == 0) {
+      return;
+    }
+    long rpcLatencyMillis = latencies.getPercentile(LATENCY_PERCENTILE);
+    if (rpcLatencyMillis >= latencyTargetMillis) {
+      batchMessages = (int) Math.min(maxBatchMessages, 2L * batchMessages);
+      batchDurationMillis = Math.min(maxBatchDurationMillis, Math.max(1, 2 * batchDurationMillis));
+      return;
+    }
+
+    long batchingBudgetMillis =
+        (long) ((latencyTargetMillis - rpcLatencyMillis) * BATCHING_BUDGET_RATIO);
+    long targetDurationMillis = Math.min(maxBatchDurationMillis, batchingBudgetMillis);
+    // Smooth the changes, so a single slow period does not collapse the batches.
+    long newDurationMillis = (batchDurationMillis + targetDurationMillis) / 2;
+
+    double messagesPerMilli = (double) messages / elapsedMillis;
+    long expectedMessages = (long) Math.ceil(messagesPerMilli * newDurationMillis);
+    batchMessages =
+        Ints.saturatedCast(
+            Math.max(
+                Math.max(1, batchMessages / 2), Math.min(maxBatchMessages, expectedMessages)));
+    batchDurationMillis = newDurationMillis;
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.base.Preconditions;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the alarms of publishers and subscribers, such as batch flushes, retries and ack
+ * deadline extensions, which are scheduled and cancelled at a high rate.
+ */
+abstract class AlarmScheduler {
+  /** Runs the task once the delay has passed, unless the returned future is cancelled first. */
+  abstract Future<?> schedule(Runnable task, long delay, TimeUnit unit);
+
+  /** Schedules the alarms on the given executor, which also runs them. */
+  static AlarmScheduler of(final ScheduledExecutorService executor) {
+    Preconditions.checkNotNull(executor);
+    return new AlarmScheduler() {
+      @Override
+      Future<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return executor.schedule(task, delay, unit);
+      }
+    };
+  }
+
+  /** Schedules the alarms on the {@link HashedTimingWheel#getShared() shared timing wheel}. */
+  static AlarmScheduler onTimingWheel(final Executor executor) {
+    Preconditions.checkNotNull(executor);
+    final HashedTimingWheel wheel = HashedTimingWheel.getShared();
+    return new AlarmScheduler() {
+      @Override
+      Future<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return wheel.schedule(task, delay, unit, executor);
+      }
+    };
+  }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import javax.annotation.Nullable;
+
+/**
+ * Lock-free accumulator of elements into batches bounded by a number of elements and a number of
+ * bytes, safe to be appended to by many threads concurrently.
+ *
+ * <p>Producers claim a slot in the current batch with a single compare-and-set over a packed
+ * (sealed, count, bytes) state word and then store their element in the claimed slot. The thread
+ * whose claim fills the batch, or whose element would overflow its bytes limit, seals the batch,
+ * swaps in a fresh one and hands the sealed batch to the {@link BatchListener}.
+ *
+ * <p>Slots are allocated in chunks as they are claimed rather than up front, as most batches are
+ * sealed by their delay well before they are full.
+ */
+final class BatchAccumulator<T> {
+  private static final long SEALED_BIT = 1L << 63;
+  private static final int COUNT_SHIFT = 32;
+  private static final long COUNT_MASK = 0x7FFFFFFFL;
+  private static final long BYTES_MASK = 0xFFFFFFFFL;
+  private static final int CHUNK_SHIFT = 5;
+  private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  /** Receives the lifecycle events of the batches created by a {@link BatchAccumulator}. */
+  interface BatchListener<T> {
+    /** Called when the first element is appended to a batch that does not get sealed by it. */
+    void batchStarted(Batch<T> batch);
+
+    /**
+     * Called, only once per batch and on the thread that sealed it, when a non-empty batch is not
+     * going to receive any more elements.
+     */
+    void batchSealed(Batch<T> batch);
+  }
+
+  /** A batch of elements, open to appends until it gets sealed. */
+  static final class Batch<T> {
+    private final int maxElements;
+    private final int maxBytes;
+    private final AtomicLong state;
+    // Chunks of CHUNK_SIZE slots, allocated by the first producer claiming one of their slots.
+    private final AtomicReferenceArray<AtomicReferenceArray<T>> chunks;
+    // Written by the producer of the first element before storing it, see getElements().
+    private long startNanos;
+    private volatile Future<?> alarm;
+
+    Batch(int maxElements, int maxBytes) {
+      this.maxElements = maxElements;
+      this.maxBytes = maxBytes;
+      state = new AtomicLong();
+      chunks = new AtomicReferenceArray<>((maxElements + CHUNK_MASK) >>> CHUNK_SHIFT);
+    }
+
+    /** Number of elements that have been appended to the batch. */
+    int size() {
+      return count(state.get());
+    }
+
+    /** Number of bytes that have been appended to the batch. */
+    int getBytes() {
+      return bytes(state.get());
+    }
+
+    boolean isSealed() {
+      return isSealed(state.get());
+    }
+
+    /**
+     * Value of {@link System#nanoTime()} when the first element was appended, only meaningful once
+     * {@link #getElements()} has returned.
+     */
+    long getStartNanos() {
+      return startNanos;
+    }
+
+    /**
+     * Returns the elements of a sealed batch in the order they claimed their slots, waiting for any
+     * producer that claimed a slot but has not stored its element yet.
+     */
+    List<T> getElements() {
+      Preconditions.checkState(isSealed(), "The batch has not been sealed yet.");
+      int count = size();
+      List<T> result = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        T element;
+        while ((element = getElement(i)) == null) {
+          Thread.yield();
+        }
+        result.add(element);
+      }
+      return result;
+    }
+
+    /** Attaches the alarm that flushes this batch, so it can be cancelled once it is sealed. */
+    void setAlarm(Future<?> alarm) {
+      this.alarm = alarm;
+      if (isSealed()) {
+        alarm.cancel(false);
+      }
+    }
+
+    void cancelAlarm() {
+      Future<?> currentAlarm = alarm;
+      if (currentAlarm != null) {
+        currentAlarm.cancel(false);
+      }
+    }
+
+    private void setElement(int index, T element) {
+      int chunkIndex = index >>> CHUNK_SHIFT;
+      AtomicReferenceArray<T> chunk = chunks.get(chunkIndex);
+      if (chunk == null) {
+        chunk =
+            new AtomicReferenceArray<>(
+                Math.min(CHUNK_SIZE, maxElements - (chunkIndex << CHUNK_SHIFT)));
+        if (!chunks.compareAndSet(chunkIndex, null, chunk)) {
+          chunk = chunks.get(chunkIndex);
+        }
+      }
+      chunk.set(index & CHUNK_MASK, element);
+    }
+
+    @Nullable
+    private T getElement(int index) {
+      AtomicReferenceArray<T> chunk = chunks.get(index >>> CHUNK_SHIFT);
+      return chunk == null ? null : chunk.get(index & CHUNK_MASK);
+    }
+
+    private boolean trySeal() {
+      while (true) {
+        long current = state.get();
+        if (isSealed(current)) {
+          return false;
+        }
+        if (state.compareAndSet(current, current | SEALED_BIT)) {
+          return true;
+        }
+      }
+    }
+
+    private static boolean isSealed(long state) {
+      return (state & SEALED_BIT) != 0;
+    }
+
+    private static int count(long state) {
+      return (int) ((state >>> COUNT_SHIFT) & COUNT_MASK);
+    }
+
+    private static int bytes(long state) {
+      return (int) (state & BYTES_MASK);
+    }
+
+    private static long pack(boolean sealed, int count, int bytes) {
+      return (sealed ? SEALED_BIT : 0) | ((long) count << COUNT_SHIFT) | (bytes & BYTES_MASK);
+    }
+  }
+
+  private final BatchListener<T> listener;
+  private final AtomicReference<Batch<T>> currentBatch;
+  private volatile int maxBatchElements;
+  private volatile int maxBatchBytes;
+
+  BatchAccumulator(int maxBatchElements, int maxBatchBytes, BatchListener<T> listener) {
+    setLimits(maxBatchElements, maxBatchBytes);
+    this.listener = Preconditions.checkNotNull(listener);
+    currentBatch = new AtomicReference<>(newBatch());
+  }
+
+  /** Sets the limits of the batches created from now on; the current batch is not affected. */
+  void setLimits(int maxBatchElements, int maxBatchBytes) {
+    Preconditions.checkArgument(maxBatchElements > 0);
+    Preconditions.checkArgument(maxBatchBytes > 0);
+    this.maxBatchElements = maxBatchElements;
+    this.maxBatchBytes = maxBatchBytes;
+  }
+
+  /**
+   * Appends an element to the current batch.
+   *
+   * <p>If the element does not fit in the bytes left in the current batch, the current batch gets
+   * sealed and the element goes into the next one. An element that is by itself greater or equal to
+   * the max batch bytes is never batched: the current batch gets sealed, to keep the ordering of
+   * the elements, and the element is sealed in its own batch.
+   */
+  void append(T element, int bytes) {
+    Preconditions.checkArgument(bytes >= 0);
+    while (true) {
+      Batch<T> batch = currentBatch.get();
+      long state = batch.state.get();
+      if (Batch.isSealed(state)) {
+        // Another producer sealed the batch and is about to swap it, help it to do so.
+        rollOver(batch);
+        continue;
+      }
+      int count = Batch.count(state);
+      long batchBytes = Batch.bytes(state);
+      if (bytes >= batch.maxBytes) {
+        if (count > 0) {
+          sealAndRollOver(batch);
+        }
+        Batch<T> singleElementBatch = new Batch<>(1, Integer.MAX_VALUE);
+        singleElementBatch.state.set(Batch.pack(true, 1, bytes));
+        singleElementBatch.startNanos = System.nanoTime();
+        singleElementBatch.setElement(0, element);
+        listener.batchSealed(singleElementBatch);
+        return;
+      }
+      if (count > 0 && batchBytes + bytes >= batch.maxBytes) {
+        sealAndRollOver(batch);
+        continue;
+      }
+      boolean full = count + 1 >= batch.maxElements;
+      long newState = Batch.pack(full, count + 1, (int) batchBytes + bytes);
+      if (!batch.state.compareAndSet(state, newState)) {
+        continue;
+      }
+      if (count == 0) {
+        batch.startNanos = System.nanoTime();
+      }
+      batch.setElement(count, element);
+      if (full) {
+        rollOver(batch);
+        listener.batchSealed(batch);
+      } else if (count == 0) {
+        listener.batchStarted(batch);
+      }
+      return;
+    }
+  }
+
+  /** Seals the current batch, if it has any elements. */
+  void flush() {
+    flush(currentBatch.get());
+  }
+
+  /** Seals the given batch, if it has not been sealed yet and has any elements. */
+  void flush(Batch<T> batch) {
+    if (batch.size() > 0) {
+      sealAndRollOver(batch);
+    }
+  }
+
+  private void sealAndRollOver(Batch<T> batch) {
+    if (batch.trySeal()) {
+      rollOver(batch);
+      listener.batchSealed(batch);
+    }
+  }
+
+  private void rollOver(Batch<T> sealedBatch) {
+    if (currentBatch.get() == sealedBatch) {
+      currentBatch.compareAndSet(sealedBatch, newBatch());
+    }
+  }
+
+  private Batch<T> newBatch() {
+    return new Batch<>(maxBatchElements, maxBatchBytes);
+  }
+}
@@ -24,7 +24,11 @@ import java.util.concurrent.atomic.AtomicLong;
 /**
  * Takes measurements and stores them in linear buckets from 0 to totalBuckets - 1, along with 
  * utilities to calculate percentiles for analysis of results.
+ *
+ * @deprecated No longer used by the client, which records latencies in lock-free log-linear
+ *     histograms, exposed as {@link HistogramSnapshot}.
  */
+@Deprecated
 public class Distribution {
 
   private final AtomicLong[] bucketCounts;
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PublishResponse;
+import com.google.pubsub.v1.PublisherGrpc;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+import io.grpc.protobuf.ProtoUtils;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A {@link PublishRequest} encoded in its wire format as it is sent.
+ *
+ * <p>Messages are written straight from the batch into the gRPC output stream, relying on the
+ * sizes protobuf memoized when they were published, without building an intermediate request or
+ * buffer. The request is sent through {@link #PUBLISH_METHOD}, which hands the encoding to gRPC.
+ * A request being retried is {@link #buffered buffered} once, so the retries send the same bytes
+ * rather than encoding the messages again.
+ */
+@Immutable
+final class EncodedPublishRequest {
+  /** The Publish method of the Publisher service, taking already encoded requests. */
+  static final MethodDescriptor<EncodedPublishRequest, PublishResponse> PUBLISH_METHOD =
+      MethodDescriptor.create(
+          MethodDescriptor.MethodType.UNARY,
+          PublisherGrpc.METHOD_PUBLISH.getFullMethodName(),
+          new RequestMarshaller(),
+          ProtoUtils.marshaller(PublishResponse.getDefaultInstance()));
+
+  // Size of the buffer encoding the requests into the gRPC stream, like protobuf's own.
+  private static final int MAX_BUFFER_SIZE = 4096;
+
+  // Either the request contents, encoded when sent, or the bytes encoded already.
+  @Nullable private final ByteString topic;
+  private final ImmutableList<PubsubMessage> messages;
+  @Nullable private final byte[] bytes;
+  private final int size;
+
+  private EncodedPublishRequest(ByteString topic, ImmutableList<PubsubMessage> messages) {
+    this.topic = topic;
+    this.messages = messages;
+    bytes = null;
+    int size = CodedOutputStream.computeBytesSize(PublishRequest.TOPIC_FIELD_NUMBER, topic);
+    for (PubsubMessage message : messages) {
+      size += CodedOutputStream.computeMessageSize(PublishRequest.MESSAGES_FIELD_NUMBER, message);
+    }
+    this.size = size;
+  }
+
+  private EncodedPublishRequest(byte[] bytes) {
+    topic = null;
+    messages = ImmutableList.of();
+    this.bytes = bytes;
+    size = bytes.length;
+  }
+
+  /**
+   * Returns a request publishing the given messages, in order, to the given topic. It is encoded
+   * when sent.
+   */
+  static EncodedPublishRequest encode(ByteString topic, Iterable<PubsubMessage> messages) {
+    return new EncodedPublishRequest(topic, ImmutableList.copyOf(messages));
+  }
+
+  /** Returns the same request holding its encoded bytes, to be sent several times. */
+  EncodedPublishRequest buffered() {
+    return bytes != null ? this : new EncodedPublishRequest(toByteArray());
+  }
+
+  @VisibleForTesting
+  boolean isBuffered() {
+    return bytes != null;
+  }
+
+  @VisibleForTesting
+  PublishRequest decode() throws IOException {
+    return PublishRequest.parseFrom(toByteArray());
+  }
+
+  private byte[] toByteArray() {
+    if (bytes != null) {
+      return bytes;
+    }
+    byte[] encoded = new byte[size];
+    CodedOutputStream output = CodedOutputStream.newInstance(encoded);
+    try {
+      writeTo(output);
+      output.checkNoSpaceLeft();
+    } catch (IOException e) {
+      // Only thrown if the computed size is wrong, which would be a bug.
+      throw new IllegalStateException("Failed to encode the publish request.", e);
+    }
+    return encoded;
+  }
+
+  private void writeTo(CodedOutputStream output) throws IOException {
+    output.writeBytes(PublishRequest.TOPIC_FIELD_NUMBER, topic);
+    for (PubsubMessage message : messages) {
+      output.writeMessage(PublishRequest.MESSAGES_FIELD_NUMBER, message);
+    }
+  }
+
+  private static final class RequestMarshaller
+      implements MethodDescriptor.Marshaller<EncodedPublishRequest> {
+    @Override
+    public InputStream stream(EncodedPublishRequest request) {
+      return request.bytes != null
+          ? new EncodedInputStream(request.bytes)
+          : new EncodingInputStream(request);
+    }
+
+    @Override
+    public EncodedPublishRequest parse(InputStream stream) {
+      try {
+        return new EncodedPublishRequest(ByteStreams.toByteArray(stream));
+      } catch (IOException e) {
+        throw new IllegalArgumentException("Failed to read the publish request.", e);
+      }
+    }
+  }
+
+  /**
+   * Lets gRPC know the size of the request upfront and write the whole buffer in one go, rather
+   * than reading it chunk by chunk.
+   */
+  private static final class EncodedInputStream extends ByteArrayInputStream
+      implements KnownLength, Drainable {
+    EncodedInputStream(byte[] bytes) {
+      super(bytes);
+    }
+
+    @Override
+    public synchronized int drainTo(OutputStream target) throws IOException {
+      int drained = count - pos;
+      target.write(buf, pos, drained);
+      pos = count;
+      return drained;
+    }
+  }
+
+  /**
+   * Encodes the request straight into the stream gRPC drains it to. Only buffers the request if it
+   * is read instead, which gRPC does not do for streams it can drain.
+   */
+  private static final class EncodingInputStream extends InputStream
+      implements KnownLength, Drainable {
+    private final EncodedPublishRequest request;
+    // Set once the request is drained or read from.
+    @Nullable private InputStream remaining;
+
+    EncodingInputStream(EncodedPublishRequest request) {
+      this.request = request;
+    }
+
+    @Override
+    public int drainTo(OutputStream target) throws IOException {
+      if (remaining != null) {
+        return (int) ByteStreams.copy(remaining, target);
+      }
+      remaining = new ByteArrayInputStream(new byte[0]);
+      CodedOutputStream output =
+          CodedOutputStream.newInstance(target, Math.min(request.size, MAX_BUFFER_SIZE));
+      request.writeTo(output);
+      output.flush();
+      return request.size;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return remaining != null ? remaining.available() : request.size;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return remaining().read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      return remaining().read(b, off, len);
+    }
+
+    private InputStream remaining() {
+      if (remaining == null) {
+        remaining = new ByteArrayInputStream(request.toByteArray());
+      }
+      return remaining;
+    }
+  }
+}
@@ -21,16 +21,68 @@ import com.google.cloud.pubsub.Publisher.MaxOutstandingBytesReachedException;
 import com.google.cloud.pubsub.Publisher.MaxOutstandingMessagesReachedException;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
-import java.util.concurrent.Semaphore;
-import javax.annotation.Nullable;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.concurrent.GuardedBy;
 
-/** Provides flow control capability for Pub/Sub client classes. */
+/**
+ * Provides flow control capability for Pub/Sub client classes.
+ *
+ * <p>Publishers {@link #reserve} capacity before sending messages, blocking or failing at the
+ * limits, or {@link #reserveAsync reserve it asynchronously} so no thread waits for it.
+ * Reservations that do not fit wait in a single FIFO queue across both limits, so a large
+ * reservation is not starved by smaller ones, and are granted in order as capacity is released.
+ *
+ * <p>Subscribers {@link #forceReserve} capacity for the messages they already received, and only
+ * ask for more messages {@link #whenCapacity once capacity is back} under the limits.
+ */
 class FlowController {
-  @Nullable private final Semaphore outstandingMessageCount;
-  @Nullable private final Semaphore outstandingByteCount;
+  /** A reservation waiting for capacity. */
+  private static final class Waiter {
+    final int messages;
+    final int bytes;
+    final SettableFuture<Void> reserved = SettableFuture.create();
+
+    Waiter(int messages, int bytes) {
+      this.messages = messages;
+      this.bytes = bytes;
+    }
+  }
+
+  private static final ListenableFuture<Void> RESERVED = Futures.immediateFuture(null);
+
   private final boolean failOnLimits;
   private final Optional<Integer> maxOutstandingMessages;
   private final Optional<Integer> maxOutstandingBytes;
+  // Without any limit, the default, there is nothing to count and no lock is taken.
+  private final boolean unlimited;
+  private final StripedCounter blockedNanos;
+
+  // Capacity left under the limits, negative when forced over them. Unused without a limit.
+  @GuardedBy("this")
+  private long availableMessages;
+
+  @GuardedBy("this")
+  private long availableBytes;
+
+  @GuardedBy("this")
+  private final Queue<Waiter> waiters;
+
+  // Granted reservations, completed in order by a single thread at a time.
+  @GuardedBy("this")
+  private final Queue<Waiter> granted;
+
+  @GuardedBy("this")
+  private boolean completingGranted;
+
+  // Callbacks waiting for the outstanding messages and bytes to be back under the limits.
+  private final Queue<Runnable> capacityWaiters;
 
   FlowController(
       Optional<Integer> maxOutstandingMessages,
@@ -38,46 +90,209 @@ class FlowController {
       boolean failOnFlowControlLimits) {
     this.maxOutstandingMessages = Preconditions.checkNotNull(maxOutstandingMessages);
     this.maxOutstandingBytes = Preconditions.checkNotNull(maxOutstandingBytes);
-    outstandingMessageCount =
-        maxOutstandingMessages.isPresent() ? new Semaphore(maxOutstandingMessages.get()) : null;
-    outstandingByteCount =
-        maxOutstandingBytes.isPresent() ? new Semaphore(maxOutstandingBytes.get()) : null;
+    unlimited = !maxOutstandingMessages.isPresent() && !maxOutstandingBytes.isPresent();
+    availableMessages = maxOutstandingMessages.or(0);
+    availableBytes = maxOutstandingBytes.or(0);
     this.failOnLimits = failOnFlowControlLimits;
+    blockedNanos = new StripedCounter();
+    waiters = new ArrayDeque<>();
+    granted = new ArrayDeque<>();
+    capacityWaiters = new ConcurrentLinkedQueue<>();
   }
 
   void reserve(int messages, int bytes) throws CloudPubsubFlowControlException {
-    Preconditions.checkArgument(messages > 0);
-    
-    if (outstandingMessageCount != null) {
-      if (!failOnLimits) {
-        outstandingMessageCount.acquireUninterruptibly(messages);
-      } else if (!outstandingMessageCount.tryAcquire(messages)) {
-        throw new MaxOutstandingMessagesReachedException(maxOutstandingMessages.get());
-      }
+    ListenableFuture<Void> reserved = reserveAsync(messages, bytes);
+    // Only time the calls that actually block, so the common path stays cheap.
+    if (reserved.isDone()) {
+      getReservation(reserved);
+      return;
     }
+    long startNanos = System.nanoTime();
+    getReservation(reserved);
+    blockedNanos.add(System.nanoTime() - startNanos);
+  }
 
+  /**
+   * Reserves capacity without blocking, returning a future completed once it is reserved, or
+   * failed right away with a {@link CloudPubsubFlowControlException} if set to fail on the limits.
+   *
+   * <p>Reservations are granted in the order they were asked for. The future may complete on the
+   * thread releasing the capacity, so its listeners must be short.
+   */
+  ListenableFuture<Void> reserveAsync(int messages, int bytes) {
+    Preconditions.checkArgument(messages > 0);
+    Preconditions.checkArgument(bytes >= 0);
+    if (unlimited) {
+      return RESERVED;
+    }
     // Will always allow to send a message even if it is larger than the flow control limit,
     // if it doesn't then it will deadlock the thread.
-    if (outstandingByteCount != null) {
-      int permitsToDraw = Math.min(bytes, maxOutstandingBytes.get());
-      if (!failOnLimits) {
-        outstandingByteCount.acquireUninterruptibly(permitsToDraw);
-      } else if (!outstandingByteCount.tryAcquire(permitsToDraw)) {
-        throw new MaxOutstandingBytesReachedException(maxOutstandingBytes.get());
+    int permitBytes = permitBytes(bytes);
+    Waiter waiter;
+    synchronized (this) {
+      // Reservations granted but not completed yet also go first, so they resume in order.
+      if (waiters.isEmpty()
+          && granted.isEmpty()
+          && !completingGranted
+          && fits(messages, permitBytes)) {
+        take(messages, permitBytes);
+        return RESERVED;
+      }
+      if (failOnLimits) {
+        return Futures.immediateFailedFuture(
+            maxOutstandingMessages.isPresent() && availableMessages < messages
+                ? new MaxOutstandingMessagesReachedException(maxOutstandingMessages.get())
+                : new MaxOutstandingBytesReachedException(maxOutstandingBytes.get()));
       }
+      waiter = new Waiter(messages, permitBytes);
+      waiters.add(waiter);
+    }
+    return waiter.reserved;
+  }
+
+  /**
+   * Reserves capacity without blocking nor failing, going over the limits if needed, for messages
+   * that are already in memory. Must be released as with {@link #reserve}.
+   */
+  void forceReserve(int messages, int bytes) {
+    Preconditions.checkArgument(messages > 0);
+    if (unlimited) {
+      return;
+    }
+    int permitBytes = permitBytes(bytes);
+    synchronized (this) {
+      take(messages, permitBytes);
     }
   }
 
   void release(int messages, int bytes) {
     Preconditions.checkArgument(messages > 0);
-    
-    if (outstandingMessageCount != null) {
-      outstandingMessageCount.release(messages);
-    }
-    if (outstandingByteCount != null) {
-      // Need to return at most as much bytes as it can be drawn.
-      int permitsToReturn = Math.min(bytes, maxOutstandingBytes.get());
-      outstandingByteCount.release(permitsToReturn);
+    if (unlimited) {
+      return;
+    }
+    // Need to return at most as much bytes as it can be drawn.
+    int permitBytes = permitBytes(bytes);
+    synchronized (this) {
+      availableMessages += messages;
+      availableBytes += permitBytes;
+      grantWaiters();
+    }
+    completeGranted();
+    if (!capacityWaiters.isEmpty()) {
+      runCapacityWaiters();
+    }
+  }
+
+  /** Whether the outstanding messages and bytes are under the limits. */
+  boolean hasCapacity() {
+    if (unlimited) {
+      return true;
+    }
+    synchronized (this) {
+      return (!maxOutstandingMessages.isPresent() || availableMessages > 0)
+          && (!maxOutstandingBytes.isPresent() || availableBytes > 0);
+    }
+  }
+
+  /** Number of messages that can be reserved under the limit, {@code MAX_VALUE} without one. */
+  int getAvailableMessages() {
+    if (!maxOutstandingMessages.isPresent()) {
+      return Integer.MAX_VALUE;
+    }
+    synchronized (this) {
+      return (int) Math.max(0, availableMessages);
+    }
+  }
+
+  /**
+   * Runs the callback as soon as the outstanding messages and bytes are under the limits, right
+   * away if they already are. The callback runs on the thread releasing the capacity, so it must
+   * be short.
+   */
+  void whenCapacity(Runnable callback) {
+    capacityWaiters.add(Preconditions.checkNotNull(callback));
+    // Checked after queueing the callback, so a concurrent release cannot miss it.
+    runCapacityWaiters();
+  }
+
+  /** Drops a callback passed to {@link #whenCapacity} that has not run yet. */
+  void cancelWhenCapacity(Runnable callback) {
+    capacityWaiters.remove(callback);
+  }
+
+  /** Total time threads have been blocked in {@link #reserve}, in nanoseconds. */
+  long getBlockedNanos() {
+    return blockedNanos.sum();
+  }
+
+  private int permitBytes(int bytes) {
+    return maxOutstandingBytes.isPresent() ? Math.min(bytes, maxOutstandingBytes.get()) : 0;
+  }
+
+  @GuardedBy("this")
+  private boolean fits(int messages, int bytes) {
+    return (!maxOutstandingMessages.isPresent() || availableMessages >= messages)
+        && (!maxOutstandingBytes.isPresent() || availableBytes >= bytes);
+  }
+
+  /** Grants the waiting reservations from the head of the queue, as long as they fit. */
+  @GuardedBy("this")
+  private void grantWaiters() {
+    Waiter next;
+    while ((next = waiters.peek()) != null && fits(next.messages, next.bytes)) {
+      take(next.messages, next.bytes);
+      granted.add(waiters.poll());
+    }
+  }
+
+  @GuardedBy("this")
+  private void take(int messages, int bytes) {
+    availableMessages -= messages;
+    availableBytes -= bytes;
+  }
+
+  /**
+   * Completes the granted reservations in the order they were granted, even when capacity is
+   * released by several threads at once, so callers waiting on them resume in order.
+   */
+  private void completeGranted() {
+    synchronized (this) {
+      if (completingGranted || granted.isEmpty()) {
+        return;
+      }
+      completingGranted = true;
+    }
+    while (true) {
+      Waiter next;
+      synchronized (this) {
+        // Reservations queued while completing may fit, as they could not be granted right away.
+        grantWaiters();
+        next = granted.poll();
+        if (next == null) {
+          completingGranted = false;
+          return;
+        }
+      }
+      next.reserved.set(null);
+    }
+  }
+
+  private void runCapacityWaiters() {
+    Runnable waiter;
+    while (hasCapacity() && (waiter = capacityWaiters.poll()) != null) {
+      waiter.run();
+    }
+  }
+
+  private static void getReservation(ListenableFuture<Void> reserved)
+      throws CloudPubsubFlowControlException {
+    try {
+      Uninterruptibles.getUninterruptibly(reserved);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CloudPubsubFlowControlException) {
+        throw (CloudPubsubFlowControlException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
     }
   }
 }
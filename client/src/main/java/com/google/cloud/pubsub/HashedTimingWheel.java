@@ -0,0 +1,296 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AbstractFuture;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel, in the spirit of Netty's {@code HashedWheelTimer}, driven by a single
+ * thread.
+ *
+ * <p>Timeouts are hashed by their deadline into a ring of buckets that the worker thread visits one
+ * tick at a time, so scheduling and cancelling are O(1), regardless of how many timeouts are
+ * pending, and all the timeouts of a tick expire together. Schedules and cancellations only go
+ * through lock-free queues that the worker drains on every tick. Expired tasks run on the executor
+ * given when scheduling them, never on the worker thread, and deadlines are rounded up to the tick
+ * duration. The worker parks while there are no pending timeouts.
+ */
+final class HashedTimingWheel {
+  private static final Logger logger = LoggerFactory.getLogger(HashedTimingWheel.class);
+
+  private static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+  private static final int DEFAULT_WHEEL_SIZE = 512;
+
+  private static final class SharedHolder {
+    static final HashedTimingWheel SHARED = newShared();
+
+    private static HashedTimingWheel newShared() {
+      HashedTimingWheel wheel = new HashedTimingWheel(DEFAULT_TICK_NANOS, DEFAULT_WHEEL_SIZE);
+      wheel.start("cloud-pubsub-timing-wheel");
+      return wheel;
+    }
+  }
+
+  /** A scheduled task, which is its own future. */
+  private final class Timeout extends AbstractFuture<Void> implements Runnable {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    final Runnable task;
+    final Executor executor;
+    final long deadlineNanos;
+    final AtomicInteger state = new AtomicInteger(PENDING);
+    // Only accessed by the worker thread.
+    long remainingRounds;
+    @Nullable Bucket bucket;
+    @Nullable Timeout previous;
+    @Nullable Timeout next;
+
+    Timeout(Runnable task, Executor executor, long deadlineNanos) {
+      this.task = task;
+      this.executor = executor;
+      this.deadlineNanos = deadlineNanos;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      if (!state.compareAndSet(PENDING, CANCELLED)) {
+        return false;
+      }
+      super.cancel(false);
+      cancelledTimeouts.add(this);
+      return true;
+    }
+
+    /** Hands the timeout to its executor, which runs it. */
+    void dispatch() {
+      try {
+        executor.execute(this);
+      } catch (RejectedExecutionException e) {
+        logger.warn("Executor rejected an expired timeout, it will not run.", e);
+        if (state.compareAndSet(PENDING, EXPIRED)) {
+          setException(e);
+        }
+      }
+    }
+
+    /** Runs the task, unless it got cancelled meanwhile. */
+    @Override
+    public void run() {
+      if (!state.compareAndSet(PENDING, EXPIRED)) {
+        return;
+      }
+      try {
+        task.run();
+        set(null);
+      } catch (Throwable t) {
+        logger.warn("Scheduled task failed.", t);
+        setException(t);
+      }
+    }
+  }
+
+  /** Doubly linked list of the timeouts hashed to a slot of the wheel. */
+  private final class Bucket {
+    @Nullable Timeout head;
+    @Nullable Timeout tail;
+
+    void add(Timeout timeout) {
+      timeout.bucket = this;
+      timeout.previous = tail;
+      if (tail == null) {
+        head = timeout;
+      } else {
+        tail.next = timeout;
+      }
+      tail = timeout;
+    }
+
+    void remove(Timeout timeout) {
+      if (timeout.previous == null) {
+        head = timeout.next;
+      } else {
+        timeout.previous.next = timeout.next;
+      }
+      if (timeout.next == null) {
+        tail = timeout.previous;
+      } else {
+        timeout.next.previous = timeout.previous;
+      }
+      timeout.bucket = null;
+      timeout.previous = null;
+      timeout.next = null;
+      pendingTimeouts.decrementAndGet();
+    }
+
+    /** Expires the timeouts due in this round and counts down the rounds of the others. */
+    void expire() {
+      Timeout timeout = head;
+      while (timeout != null) {
+        Timeout next = timeout.next;
+        if (timeout.remainingRounds <= 0) {
+          remove(timeout);
+          timeout.dispatch();
+        } else {
+          timeout.remainingRounds--;
+        }
+        timeout = next;
+      }
+    }
+  }
+
+  private final long tickNanos;
+  private final Bucket[] buckets;
+  private final int mask;
+  private final long startNanos;
+  private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+  private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+  // Scheduled timeouts that have neither expired nor been removed after a cancellation.
+  private final AtomicLong pendingTimeouts = new AtomicLong();
+  private volatile Thread worker;
+  // Next tick to process, only accessed by the worker thread.
+  private long tick;
+
+  @VisibleForTesting
+  HashedTimingWheel(long tickNanos, int wheelSize) {
+    Preconditions.checkArgument(tickNanos > 0);
+    Preconditions.checkArgument(
+        wheelSize > 0 && Integer.bitCount(wheelSize) == 1, "The wheel size must be a power of 2.");
+    this.tickNanos = tickNanos;
+    buckets = new Bucket[wheelSize];
+    for (int i = 0; i < wheelSize; i++) {
+      buckets[i] = new Bucket();
+    }
+    mask = wheelSize - 1;
+    startNanos = System.nanoTime();
+  }
+
+  /** The wheel shared by all the publishers and subscribers of the JVM, with a 1ms tick. */
+  static HashedTimingWheel getShared() {
+    return SharedHolder.SHARED;
+  }
+
+  /** Runs the task on the given executor once the delay has passed, unless cancelled first. */
+  Future<?> schedule(Runnable task, long delay, TimeUnit unit, Executor executor) {
+    Timeout timeout =
+        new Timeout(
+            Preconditions.checkNotNull(task),
+            Preconditions.checkNotNull(executor),
+            System.nanoTime() - startNanos + Math.max(0, unit.toNanos(delay)));
+    newTimeouts.add(timeout);
+    if (pendingTimeouts.getAndIncrement() == 0) {
+      Thread currentWorker = worker;
+      if (currentWorker != null) {
+        LockSupport.unpark(currentWorker);
+      }
+    }
+    return timeout;
+  }
+
+  @VisibleForTesting
+  long getPendingTimeouts() {
+    return pendingTimeouts.get();
+  }
+
+  private void start(String threadName) {
+    Thread thread =
+        new Thread(
+            new Runnable() {
+              @Override
+              public void run() {
+                runWorker();
+              }
+            },
+            threadName);
+    thread.setDaemon(true);
+    worker = thread;
+    thread.start();
+  }
+
+  private void runWorker() {
+    while (true) {
+      if (pendingTimeouts.get() == 0) {
+        LockSupport.park(this);
+        // Nothing was pending, so there are no skipped ticks to go over.
+        tick = Math.max(tick, elapsedNanos() / tickNanos);
+        continue;
+      }
+      long waitNanos = (tick + 1) * tickNanos - elapsedNanos();
+      if (waitNanos > 0) {
+        LockSupport.parkNanos(this, waitNanos);
+        continue;
+      }
+      advanceTo(elapsedNanos());
+    }
+  }
+
+  /** Processes every tick that ended up to the given time, relative to the wheel start. */
+  @VisibleForTesting
+  void advanceTo(long elapsedNanos) {
+    long lastTick = elapsedNanos / tickNanos;
+    while (tick < lastTick) {
+      removeCancelledTimeouts();
+      transferNewTimeouts();
+      buckets[(int) (tick & mask)].expire();
+      tick++;
+    }
+  }
+
+  @VisibleForTesting
+  long elapsedNanos() {
+    return System.nanoTime() - startNanos;
+  }
+
+  private void removeCancelledTimeouts() {
+    Timeout timeout;
+    while ((timeout = cancelledTimeouts.poll()) != null) {
+      // Cancelled timeouts not transferred yet are dropped, and counted, by the transfer.
+      if (timeout.bucket != null) {
+        timeout.bucket.remove(timeout);
+      }
+    }
+  }
+
+  private void transferNewTimeouts() {
+    Timeout timeout;
+    while ((timeout = newTimeouts.poll()) != null) {
+      if (timeout.isCancelled()) {
+        pendingTimeouts.decrementAndGet();
+        continue;
+      }
+      // Rounded up, so a timeout never expires before its deadline.
+      long deadlineTick = Math.max(tick, (timeout.deadlineNanos + tickNanos - 1) / tickNanos - 1);
+      timeout.remainingRounds = (deadlineTick - tick) / buckets.length;
+      buckets[(int) (deadlineTick & mask)].add(timeout);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.base.Preconditions;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * A snapshot of a histogram of latencies. Values are in microseconds, for every statistic of the
+ * publishers and subscribers, and are tracked with a relative error of about 3%.
+ */
+@Immutable
+public final class HistogramSnapshot {
+  private final long[] bucketCounts;
+  private final long count;
+  private final long sum;
+  private final long max;
+
+  HistogramSnapshot(long[] bucketCounts, long sum, long max) {
+    this.bucketCounts = bucketCounts;
+    long count = 0;
+    for (long bucketCount : bucketCounts) {
+      count += bucketCount;
+    }
+    this.count = count;
+    this.sum = sum;
+    this.max = max;
+  }
+
+  /**
+   * Returns a snapshot of the values recorded in both snapshots, e.g. to add up the statistics of
+   * several publishers or subscribers.
+   */
+  public HistogramSnapshot merge(HistogramSnapshot other) {
+    long[] counts = new long[bucketCounts.length];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = bucketCounts[i] + other.bucketCounts[i];
+    }
+    return new HistogramSnapshot(counts, sum + other.sum, Math.max(max, other.max));
+  }
+
+  /** Number of recorded values. */
+  public long getCount() {
+    return count;
+  }
+
+  /** Mean of the recorded values, or 0 if there are none. */
+  public double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /** Highest recorded value, or 0 if there are none. */
+  public long getMax() {
+    return max;
+  }
+
+  /**
+   * Returns the value under which the given percentage of the recorded values falls, or 0 if there
+   * are none.
+   */
+  public long getPercentile(double percentile) {
+    Preconditions.checkArgument(percentile > 0.0 && percentile <= 100.0);
+    if (count == 0) {
+      return 0;
+    }
+    long threshold = (long) Math.ceil(count * percentile / 100.0);
+    long seen = 0;
+    for (int i = 0; i < bucketCounts.length; i++) {
+      seen += bucketCounts[i];
+      if (seen >= threshold) {
+        return Math.min(max, LatencyHistogram.bucketUpperBound(i));
+      }
+    }
+    return max;
+  }
+}
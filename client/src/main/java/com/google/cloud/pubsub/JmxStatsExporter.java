@@ -0,0 +1,378 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.base.Preconditions;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link StatsExporter} exposing the latest statistics of each publisher and subscriber as an
+ * MXBean, named {@code com.google.cloud.pubsub:type=Publisher,topic="<topic>",id="<id>"} or {@code
+ * com.google.cloud.pubsub:type=Subscriber,subscription="<subscription>",id="<id>"}.
+ *
+ * <p>The MXBeans are registered with the first snapshot, and unregistered once the publisher or
+ * subscriber shuts down or the exporter is closed. Latencies are in milliseconds.
+ */
+public final class JmxStatsExporter implements StatsExporter, Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(JmxStatsExporter.class);
+
+  static final String DOMAIN = "com.google.cloud.pubsub";
+
+  /** Statistics of a publisher, as exposed over JMX. */
+  public interface PublisherStatsMXBean {
+    long getSentMessages();
+
+    long getAckedMessages();
+
+    long getFailedMessages();
+
+    long getPendingMessages();
+
+    long getSentBytes();
+
+    long getAckedBytes();
+
+    long getFailedBytes();
+
+    long getSentBatches();
+
+    long getRetriedBatches();
+
+    long getFlowControlBlockedMillis();
+
+    double getPublishLatency50thPercentile();
+
+    double getPublishLatency99thPercentile();
+
+    double getBatchQueueLatency99thPercentile();
+
+    int getMaxBatchMessages();
+  }
+
+  /** Statistics of a subscriber, as exposed over JMX. */
+  public interface SubscriberStatsMXBean {
+    long getReceivedMessages();
+
+    long getAckedMessages();
+
+    long getNackedMessages();
+
+    long getExpiredMessages();
+
+    long getAckDeadlineExtensions();
+
+    long getFailedAcks();
+
+    long getFailedAckDeadlineModifications();
+
+    long getRetriedAckRequests();
+
+    long getStreamRestarts();
+
+    double getAckLatency50thPercentile();
+
+    double getAckLatency99thPercentile();
+
+    double getEndToEndLatency50thPercentile();
+
+    double getEndToEndLatency99thPercentile();
+
+    double getReceiverLatency99thPercentile();
+  }
+
+  private static final class PublisherStatsBean implements PublisherStatsMXBean {
+    private final ObjectName name;
+    private volatile PublisherStats stats;
+
+    PublisherStatsBean(ObjectName name, PublisherStats stats) {
+      this.name = name;
+      this.stats = stats;
+    }
+
+    @Override
+    public long getSentMessages() {
+      return stats.getSentMessages();
+    }
+
+    @Override
+    public long getAckedMessages() {
+      return stats.getAckedMessages();
+    }
+
+    @Override
+    public long getFailedMessages() {
+      return stats.getFailedMessages();
+    }
+
+    @Override
+    public long getPendingMessages() {
+      return stats.getPendingMessages();
+    }
+
+    @Override
+    public long getSentBytes() {
+      return stats.getSentBytes();
+    }
+
+    @Override
+    public long getAckedBytes() {
+      return stats.getAckedBytes();
+    }
+
+    @Override
+    public long getFailedBytes() {
+      return stats.getFailedBytes();
+    }
+
+    @Override
+    public long getSentBatches() {
+      return stats.getSentBatches();
+    }
+
+    @Override
+    public long getRetriedBatches() {
+      return stats.getRetriedBatches();
+    }
+
+    @Override
+    public long getFlowControlBlockedMillis() {
+      return stats.getFlowControlBlockedTime().getMillis();
+    }
+
+    // The publisher latencies are in microseconds.
+    @Override
+    public double getPublishLatency50thPercentile() {
+      return stats.getPublishLatency().getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getPublishLatency99thPercentile() {
+      return stats.getPublishLatency().getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getBatchQueueLatency99thPercentile() {
+      return stats.getBatchQueueLatency().getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public int getMaxBatchMessages() {
+      return stats.getMaxBatchMessages();
+    }
+  }
+
+  private static final class SubscriberStatsBean implements SubscriberStatsMXBean {
+    private final ObjectName name;
+    private volatile SubscriberStats stats;
+
+    SubscriberStatsBean(ObjectName name, SubscriberStats stats) {
+      this.name = name;
+      this.stats = stats;
+    }
+
+    @Override
+    public long getReceivedMessages() {
+      return stats.getReceivedMessages();
+    }
+
+    @Override
+    public long getAckedMessages() {
+      return stats.getAckedMessages();
+    }
+
+    @Override
+    public long getNackedMessages() {
+      return stats.getNackedMessages();
+    }
+
+    @Override
+    public long getExpiredMessages() {
+      return stats.getExpiredMessages();
+    }
+
+    @Override
+    public long getAckDeadlineExtensions() {
+      return stats.getNumberOfAutoExtendedAckDeadlines();
+    }
+
+    @Override
+    public long getFailedAcks() {
+      return stats.getFailedAcks();
+    }
+
+    @Override
+    public long getFailedAckDeadlineModifications() {
+      return stats.getFailedAckDeadlineModifications();
+    }
+
+    @Override
+    public long getRetriedAckRequests() {
+      return stats.getRetriedAckRequests();
+    }
+
+    @Override
+    public long getStreamRestarts() {
+      return stats.getStreamRestarts();
+    }
+
+    // The subscriber latencies are in milliseconds, exposed as doubles as the publisher ones.
+    @Override
+    public double getAckLatency50thPercentile() {
+      return stats.getAckLatencies().getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getAckLatency99thPercentile() {
+      return stats.getAckLatencies().getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getEndToEndLatency50thPercentile() {
+      return stats.getEndToEndLatencies().getPercentile(50) / 1000.0;
+    }
+
+    @Override
+    public double getEndToEndLatency99thPercentile() {
+      return stats.getEndToEndLatencies().getPercentile(99) / 1000.0;
+    }
+
+    @Override
+    public double getReceiverLatency99thPercentile() {
+      return stats.getReceiverLatencies().getPercentile(99) / 1000.0;
+    }
+  }
+
+  private final MBeanServer server;
+  private final ConcurrentMap<String, PublisherStatsBean> publishers = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, SubscriberStatsBean> subscribers = new ConcurrentHashMap<>();
+
+  /** Creates an exporter registering its MXBeans with the platform MBean server. */
+  public JmxStatsExporter() {
+    this(ManagementFactory.getPlatformMBeanServer());
+  }
+
+  public JmxStatsExporter(MBeanServer server) {
+    this.server = Preconditions.checkNotNull(server);
+  }
+
+  @Override
+  public void exportPublisherStats(String publisherId, String topic, PublisherStats stats) {
+    PublisherStatsBean bean = publishers.get(publisherId);
+    if (bean != null) {
+      bean.stats = stats;
+      return;
+    }
+    bean = new PublisherStatsBean(publisherName(publisherId, topic), stats);
+    PublisherStatsBean existing = publishers.putIfAbsent(publisherId, bean);
+    if (existing != null) {
+      existing.stats = stats;
+      return;
+    }
+    register(bean.name, bean);
+  }
+
+  @Override
+  public void exportSubscriberStats(
+      String subscriberId, String subscription, SubscriberStats stats) {
+    SubscriberStatsBean bean = subscribers.get(subscriberId);
+    if (bean != null) {
+      bean.stats = stats;
+      return;
+    }
+    bean = new SubscriberStatsBean(subscriberName(subscriberId, subscription), stats);
+    SubscriberStatsBean existing = subscribers.putIfAbsent(subscriberId, bean);
+    if (existing != null) {
+      existing.stats = stats;
+      return;
+    }
+    register(bean.name, bean);
+  }
+
+  @Override
+  public void removePublisher(String publisherId) {
+    PublisherStatsBean bean = publishers.remove(publisherId);
+    if (bean != null) {
+      unregister(bean.name);
+    }
+  }
+
+  @Override
+  public void removeSubscriber(String subscriberId) {
+    SubscriberStatsBean bean = subscribers.remove(subscriberId);
+    if (bean != null) {
+      unregister(bean.name);
+    }
+  }
+
+  /** Unregisters the MXBeans of the publishers and subscribers exported so far. */
+  @Override
+  public void close() {
+    for (String publisherId : publishers.keySet()) {
+      removePublisher(publisherId);
+    }
+    for (String subscriberId : subscribers.keySet()) {
+      removeSubscriber(subscriberId);
+    }
+  }
+
+  static ObjectName publisherName(String publisherId, String topic) {
+    return newObjectName(
+        "type=Publisher,topic=" + ObjectName.quote(topic) + ",id=" + ObjectName.quote(publisherId));
+  }
+
+  static ObjectName subscriberName(String subscriberId, String subscription) {
+    return newObjectName(
+        "type=Subscriber,subscription="
+            + ObjectName.quote(subscription)
+            + ",id="
+            + ObjectName.quote(subscriberId));
+  }
+
+  private static ObjectName newObjectName(String properties) {
+    try {
+      return new ObjectName(DOMAIN + ":" + properties);
+    } catch (JMException e) {
+      // The values are quoted, so the names are always valid.
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  private void register(ObjectName name, Object bean) {
+    try {
+      server.registerMBean(bean, name);
+    } catch (JMException e) {
+      // Not fatal, the statistics are only not exposed.
+      logger.warn("Failed to register the statistics MXBean " + name, e);
+    }
+  }
+
+  private void unregister(ObjectName name) {
+    try {
+      server.unregisterMBean(name);
+    } catch (JMException e) {
+      logger.warn("Failed to unregister the statistics MXBean " + name, e);
+    }
+  }
+}
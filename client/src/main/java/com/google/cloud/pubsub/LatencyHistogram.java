@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies, with log-linear buckets in the style of HdrHistogram.
+ *
+ * <p>Every power of two range is split in {@link #SUB_BUCKETS} linear buckets, so values are
+ * tracked with a relative error under 1 / {@link #SUB_BUCKETS} across the whole range, in a fixed
+ * number of buckets. Values under {@link #SUB_BUCKETS} are tracked exactly, so the precision is
+ * picked by the unit values are recorded in. Recording a value is a couple of atomic increments
+ * and never allocates.
+ *
+ * <p>Threads record in one of a few stripes of buckets, added up when read, so threads recording
+ * the same latencies do not contend on the same bucket.
+ */
+final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 5;
+  @VisibleForTesting static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Values from 2^MAX_VALUE_BITS on are recorded in the last bucket.
+  private static final int MAX_VALUE_BITS = 40;
+  @VisibleForTesting static final long MAX_VALUE = (1L << MAX_VALUE_BITS) - 1;
+  private static final int BUCKETS = bucketIndex(MAX_VALUE) + 1;
+  // A power of two, kept small as each stripe holds all the buckets.
+  private static final int STRIPES =
+      Math.min(8, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())));
+
+  // Stripe after stripe, so each stripe has its own cache lines.
+  private final AtomicLongArray buckets = new AtomicLongArray(STRIPES * BUCKETS);
+  private final StripedCounter sum = new StripedCounter();
+  private final AtomicLong max = new AtomicLong();
+
+  /** Records a value, negative values are recorded as 0. */
+  void record(long value) {
+    value = Math.min(MAX_VALUE, Math.max(0, value));
+    int stripe = StripedCounter.threadHash() & (STRIPES - 1);
+    buckets.incrementAndGet(stripe * BUCKETS + bucketIndex(value));
+    sum.add(value);
+    long currentMax;
+    while (value > (currentMax = max.get())) {
+      if (max.compareAndSet(currentMax, value)) {
+        break;
+      }
+    }
+  }
+
+  /**
+   * Returns a copy of the recorded values. Values recorded while the snapshot is taken may or may
+   * not be included.
+   */
+  HistogramSnapshot snapshot() {
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < STRIPES * BUCKETS; i++) {
+      counts[i % BUCKETS] += buckets.get(i);
+    }
+    return new HistogramSnapshot(counts, sum.sum(), max.get());
+  }
+
+  /**
+   * Returns a copy of the recorded values and resets the histogram. Each value recorded
+   * concurrently is in either this snapshot or the next one, though the sum and maximum may be
+   * accounted in a different one than the bucket.
+   */
+  HistogramSnapshot snapshotAndReset() {
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < STRIPES * BUCKETS; i++) {
+      counts[i % BUCKETS] += buckets.getAndSet(i, 0);
+    }
+    return new HistogramSnapshot(counts, sum.sumThenReset(), max.getAndSet(0));
+  }
+
+  @VisibleForTesting
+  static int bucketIndex(long value) {
+    Preconditions.checkArgument(value >= 0);
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    // The top SUB_BUCKET_BITS + 1 bits of the value, which start with a 1, pick the sub-bucket.
+    return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+  }
+
+  /** Returns the highest value that falls in the given bucket. */
+  static long bucketUpperBound(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long lowerBound = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+}
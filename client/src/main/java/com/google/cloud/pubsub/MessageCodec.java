@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+
+/**
+ * Encodes the data of the messages sent by a {@link Publisher}, typically to compress it, and
+ * decodes it back in the {@link Subscriber} before it reaches the {@link
+ * Subscriber.MessageReceiver}.
+ *
+ * <p>Encoded messages are tagged with the {@link #getName() name} of their codec in the {@link
+ * MessageCodecs#CONTENT_ENCODING_ATTRIBUTE} attribute, so subscribers need a codec of the same name
+ * to decode them. {@link MessageCodecs} provides the codecs available out of the box.
+ *
+ * <p>Implementations must be thread-safe.
+ */
+public interface MessageCodec {
+  /** Name of the codec, identifying it between publishers and subscribers. */
+  String getName();
+
+  ByteString encode(ByteString data) throws IOException;
+
+  ByteString decode(ByteString data) throws IOException;
+}
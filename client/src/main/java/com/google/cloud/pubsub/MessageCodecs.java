@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The {@link MessageCodec message codecs} available out of the box, based on the JDK.
+ *
+ * <p>They refuse to decode data larger than {@link #MAX_DECODED_BYTES}, the maximum size of a
+ * message, so a small message crafted to decode to gigabytes fails instead of exhausting the memory
+ * of the subscribers.
+ */
+public final class MessageCodecs {
+  /** Attribute holding the name of the codec the data of a message was encoded with. */
+  public static final String CONTENT_ENCODING_ATTRIBUTE = "cloud-pubsub-content-encoding";
+
+  /** Maximum size of the decoded data, the 10MB maximum size of a Cloud Pub/Sub message. */
+  @VisibleForTesting static final int MAX_DECODED_BYTES = 10 * 1024 * 1024;
+
+  /** Compresses the data in the gzip format. */
+  public static final MessageCodec GZIP =
+      new StreamCodec("gzip") {
+        @Override
+        OutputStream newEncoder(OutputStream output) throws IOException {
+          return new GZIPOutputStream(output);
+        }
+
+        @Override
+        InputStream newDecoder(InputStream input) throws IOException {
+          return new GZIPInputStream(input);
+        }
+      };
+
+  /** Compresses the data in the zlib format, which is lighter than gzip on small messages. */
+  public static final MessageCodec DEFLATE =
+      new StreamCodec("deflate") {
+        @Override
+        OutputStream newEncoder(OutputStream output) {
+          return new DeflaterOutputStream(output);
+        }
+
+        @Override
+        InputStream newDecoder(InputStream input) {
+          return new InflaterInputStream(input);
+        }
+      };
+
+  /** Codecs known to subscribers by default. */
+  static final Map<String, MessageCodec> DEFAULT_CODECS =
+      ImmutableMap.of(GZIP.getName(), GZIP, DEFLATE.getName(), DEFLATE);
+
+  private MessageCodecs() {}
+
+  /**
+   * Encodes the data of a message, if it has at least the given number of bytes and gets smaller
+   * once encoded, returning the message as is otherwise.
+   */
+  static PubsubMessage encode(PubsubMessage message, MessageCodec codec, int minBytes)
+      throws IOException {
+    ByteString data = message.getData();
+    if (data.size() < minBytes || message.containsAttributes(CONTENT_ENCODING_ATTRIBUTE)) {
+      return message;
+    }
+    ByteString encoded = codec.encode(data);
+    if (encoded.size() >= data.size()) {
+      return message;
+    }
+    return message
+        .toBuilder()
+        .setData(encoded)
+        .putAttributes(CONTENT_ENCODING_ATTRIBUTE, codec.getName())
+        .build();
+  }
+
+  /**
+   * Decodes the data of a message with the codec it was encoded with. Messages not encoded, or
+   * encoded with a codec not in the given ones, are returned as is.
+   */
+  static PubsubMessage decode(PubsubMessage message, Map<String, MessageCodec> codecs)
+      throws IOException {
+    String codecName = message.getAttributesOrDefault(CONTENT_ENCODING_ATTRIBUTE, null);
+    if (codecName == null) {
+      return message;
+    }
+    MessageCodec codec = codecs.get(codecName);
+    if (codec == null) {
+      return message;
+    }
+    return message
+        .toBuilder()
+        .setData(codec.decode(message.getData()))
+        .removeAttributes(CONTENT_ENCODING_ATTRIBUTE)
+        .build();
+  }
+
+  private abstract static class StreamCodec implements MessageCodec {
+    private final String name;
+
+    StreamCodec(String name) {
+      this.name = name;
+    }
+
+    abstract OutputStream newEncoder(OutputStream output) throws IOException;
+
+    abstract InputStream newDecoder(InputStream input) throws IOException;
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public ByteString encode(ByteString data) throws IOException {
+      // Sized for the compression ratios of text payloads, it grows as needed otherwise.
+      ByteString.Output output = ByteString.newOutput(Math.max(64, data.size() / 4));
+      try (OutputStream encoder = newEncoder(output)) {
+        data.writeTo(encoder);
+      }
+      return output.toByteString();
+    }
+
+    @Override
+    public ByteString decode(ByteString data) throws IOException {
+      try (InputStream decoder = newDecoder(data.newInput())) {
+        // One byte past the maximum, to tell data of the maximum size from larger data.
+        ByteString decoded =
+            ByteString.readFrom(ByteStreams.limit(decoder, MAX_DECODED_BYTES + 1L));
+        if (decoded.size() > MAX_DECODED_BYTES) {
+          throw new IOException(
+              "The " + name + " data decodes to more than " + MAX_DECODED_BYTES + " bytes.");
+        }
+        return decoded;
+      }
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+/**
+ * Listener of the steps a sample of the messages go through in publishers and subscribers, set
+ * with {@link Publisher.Builder#setTraceListener} or {@link Subscriber.Builder#setTraceListener}.
+ *
+ * <p>Each sampled message gets a span ID, and the listener is told each step of the message with
+ * the {@link System#nanoTime()} it happened at, so the time in between steps tells whether it is
+ * spent batching, on the network or in the receiver. Steps are reported from the publishing and
+ * receiving threads, so implementations must only record them, without blocking.
+ */
+public interface MessageTraceListener {
+  /** Steps of a message. */
+  enum Event {
+    /** The message is accepted by the publisher, past flow control, and waits to be batched. */
+    PUBLISH_ENQUEUED,
+    /** The batch of the message is complete and waits to be sent. */
+    PUBLISH_BATCH_SEALED,
+    /** The publish call of the message is sent, once per attempt. */
+    PUBLISH_RPC_SENT,
+    /** The publish call of the message completed, successfully or not, once per attempt. */
+    PUBLISH_RPC_COMPLETED,
+    /** The message is received by the subscriber. */
+    RECEIVED,
+    /** The message is handed to the receiver. */
+    DISPATCHED,
+    /** The receiver replied to the message, or failed to process it. */
+    RECEIVER_DONE,
+    /** The ack or nack of the message is sent. */
+    ACK_FLUSHED
+  }
+
+  /** Called for each step of a sampled message. */
+  void onEvent(long spanId, Event event, long nanoTime);
+}
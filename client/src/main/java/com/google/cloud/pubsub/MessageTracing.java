@@ -0,0 +1,75 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.cloud.pubsub.MessageTraceListener.Event;
+import com.google.common.base.Preconditions;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples the messages to trace and reports their steps to a {@link MessageTraceListener}.
+ *
+ * <p>Publishers and subscribers without a listener have no instance, so tracing costs them a null
+ * check per step. Messages that are not sampled have the {@link #NOT_SAMPLED} span ID, and cost a
+ * comparison per step.
+ */
+final class MessageTracing {
+  private static final Logger logger = LoggerFactory.getLogger(MessageTracing.class);
+
+  static final long NOT_SAMPLED = 0;
+
+  // Shared, so the spans of publishers and subscribers sharing a listener do not collide.
+  private static final AtomicLong lastSpanId = new AtomicLong();
+
+  private final MessageTraceListener listener;
+  private final double samplingRate;
+
+  MessageTracing(MessageTraceListener listener, double samplingRate) {
+    Preconditions.checkArgument(samplingRate > 0 && samplingRate <= 1);
+    this.listener = Preconditions.checkNotNull(listener);
+    this.samplingRate = samplingRate;
+  }
+
+  /**
+   * Starts the span of a message with the given step, and returns its ID, or {@link #NOT_SAMPLED}
+   * if the message is not sampled.
+   */
+  long startSpan(Event event) {
+    if (samplingRate < 1 && ThreadLocalRandom.current().nextDouble() >= samplingRate) {
+      return NOT_SAMPLED;
+    }
+    long spanId = lastSpanId.incrementAndGet();
+    record(spanId, event);
+    return spanId;
+  }
+
+  /** Reports a step of a message, if it is sampled. */
+  void record(long spanId, Event event) {
+    if (spanId == NOT_SAMPLED) {
+      return;
+    }
+    try {
+      listener.onEvent(spanId, event, System.nanoTime());
+    } catch (RuntimeException e) {
+      // Not propagated, as it would fail the message.
+      logger.warn("MessageTraceListener failed on " + event, e);
+    }
+  }
+}
@@ -17,7 +17,9 @@
 package com.google.cloud.pubsub;
 
 import com.google.common.annotations.VisibleForTesting;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import org.joda.time.Duration;
 
 /**
  * A barrier kind of object that helps to keep track and synchronously wait on pending messages.
@@ -60,6 +62,34 @@ class MessagesWaiter {
     }
   }
   
+  /**
+   * Waits until there are no pending messages, for at most the given timeout. Returns whether
+   * there are no pending messages.
+   */
+  public synchronized boolean waitNoMessages(Duration timeout) {
+    long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout.getMillis());
+    boolean interrupted = false;
+    try {
+      while (pendingMessages > 0) {
+        long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+        if (remainingMillis <= 0) {
+          return false;
+        }
+        try {
+          wait(remainingMillis);
+        } catch (InterruptedException e) {
+          // Ignored, uninterruptibly.
+          interrupted = true;
+        }
+      }
+      return true;
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
   @VisibleForTesting
   public int pendingMessages() {
     return pendingMessages;
@@ -0,0 +1,284 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.joda.time.Duration;
+
+/**
+ * Batches elements per ordering key, keeping at most one batch in flight per key, so the elements
+ * of a key are sent in the order they were appended.
+ *
+ * <p>Each key gets its own lane. While a lane has no batch in flight, its elements are batched up
+ * to the batching limits or the batch duration, as with unordered elements. While a batch is in
+ * flight, including while it is being retried, the lane only queues the new elements, and sends
+ * them as the next batch as soon as the one in flight completes. Lanes of different keys never wait
+ * on each other. Lanes are dropped once they are idle, so keys cost nothing once published.
+ *
+ * <p>The next batch of a lane is sent from the executor, as batches complete on the RPC callbacks,
+ * which should not encode and start the next RPC themselves.
+ */
+final class OrderingLanes<T> {
+  /** Sends a batch of a lane, must call {@link #onBatchCompleted} once done. */
+  interface BatchSender<T> {
+    /**
+     * @param startNanos value of {@link System#nanoTime()} when the first element of the batch was
+     *     appended
+     */
+    void send(String key, List<T> batch, int bytes, long startNanos);
+  }
+
+  private static final class Entry<T> {
+    final T element;
+    final int bytes;
+    final long appendNanos;
+
+    Entry(T element, int bytes, long appendNanos) {
+      this.element = element;
+      this.bytes = bytes;
+      this.appendNanos = appendNanos;
+    }
+  }
+
+  private final class Lane implements Runnable {
+    final String key;
+    final Deque<Entry<T>> queue = new ArrayDeque<>();
+    int queuedBytes;
+    boolean inFlight;
+    // Set once the lane is dropped from the lanes map, appends must then go to a new lane.
+    boolean removed;
+    @Nullable Future<?> alarm;
+
+    Lane(String key) {
+      this.key = key;
+    }
+
+    /** Alarm sending the queued elements once the batch duration has passed. */
+    @Override
+    public void run() {
+      PendingBatch batch;
+      synchronized (this) {
+        alarm = null;
+        if (inFlight || queue.isEmpty()) {
+          return;
+        }
+        batch = takeBatch(this);
+      }
+      batch.send();
+    }
+  }
+
+  /** A batch taken from a lane, to be sent outside of the lane lock. */
+  private final class PendingBatch {
+    final String key;
+    final List<T> elements;
+    final int bytes;
+    final long startNanos;
+
+    PendingBatch(String key, List<T> elements, int bytes, long startNanos) {
+      this.key = key;
+      this.elements = elements;
+      this.bytes = bytes;
+      this.startNanos = startNanos;
+    }
+
+    void send() {
+      sender.send(key, elements, bytes, startNanos);
+    }
+  }
+
+  private final ConcurrentMap<String, Lane> lanes;
+  private final int maxBatchElements;
+  private final int maxBatchBytes;
+  private final Duration maxBatchDuration;
+  private final AlarmScheduler alarmScheduler;
+  private final Executor executor;
+  private final BatchSender<T> sender;
+
+  OrderingLanes(
+      int maxBatchElements,
+      int maxBatchBytes,
+      Duration maxBatchDuration,
+      AlarmScheduler alarmScheduler,
+      Executor executor,
+      BatchSender<T> sender) {
+    Preconditions.checkArgument(maxBatchElements > 0);
+    Preconditions.checkArgument(maxBatchBytes > 0);
+    this.maxBatchElements = maxBatchElements;
+    this.maxBatchBytes = maxBatchBytes;
+    this.maxBatchDuration = Preconditions.checkNotNull(maxBatchDuration);
+    this.alarmScheduler = Preconditions.checkNotNull(alarmScheduler);
+    this.executor = Preconditions.checkNotNull(executor);
+    this.sender = Preconditions.checkNotNull(sender);
+    lanes = new ConcurrentHashMap<>();
+  }
+
+  /** Appends an element to the lane of the given key. */
+  void append(String key, T element, int bytes) {
+    Preconditions.checkNotNull(key);
+    Preconditions.checkArgument(bytes >= 0);
+    Entry<T> entry = new Entry<>(element, bytes, System.nanoTime());
+    PendingBatch batch = null;
+    while (true) {
+      Lane lane = getOrCreateLane(key);
+      synchronized (lane) {
+        if (lane.removed) {
+          continue;
+        }
+        lane.queue.addLast(entry);
+        lane.queuedBytes += bytes;
+        if (!lane.inFlight) {
+          if (lane.queue.size() >= maxBatchElements || lane.queuedBytes >= maxBatchBytes) {
+            batch = takeBatch(lane);
+          } else if (lane.alarm == null) {
+            lane.alarm =
+                alarmScheduler.schedule(lane, maxBatchDuration.getMillis(), TimeUnit.MILLISECONDS);
+          }
+        }
+      }
+      break;
+    }
+    if (batch != null) {
+      batch.send();
+    }
+  }
+
+  /** Sends the queued elements of every lane that has no batch in flight. */
+  void flush() {
+    for (Lane lane : lanes.values()) {
+      PendingBatch batch = null;
+      synchronized (lane) {
+        if (!lane.inFlight && !lane.queue.isEmpty()) {
+          batch = takeBatch(lane);
+        }
+      }
+      if (batch != null) {
+        batch.send();
+      }
+    }
+  }
+
+  /**
+   * Releases the lane of a batch that completed, for good, and sends the elements queued meanwhile
+   * as the next batch, if any.
+   */
+  void onBatchCompleted(String key) {
+    Lane lane = lanes.get(key);
+    Preconditions.checkState(lane != null, "No batch in flight for key %s.", key);
+    PendingBatch batch = null;
+    synchronized (lane) {
+      Preconditions.checkState(lane.inFlight, "No batch in flight for key %s.", key);
+      if (!lane.queue.isEmpty()) {
+        batch = takeBatch(lane);
+      } else {
+        lane.inFlight = false;
+        if (lane.alarm == null) {
+          lane.removed = true;
+          lanes.remove(key, lane);
+        }
+      }
+    }
+    if (batch == null) {
+      return;
+    }
+    final PendingBatch nextBatch = batch;
+    try {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              nextBatch.send();
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // The executor is shutting down, the batch is still sent rather than lost.
+      nextBatch.send();
+    }
+  }
+
+  /**
+   * Removes the elements queued behind the batch in flight of the given key, so they can be failed
+   * along with it rather than sent out of order.
+   */
+  List<T> removeQueued(String key) {
+    Lane lane = lanes.get(key);
+    if (lane == null) {
+      return Collections.emptyList();
+    }
+    synchronized (lane) {
+      List<T> removed = new ArrayList<>(lane.queue.size());
+      for (Entry<T> entry : lane.queue) {
+        removed.add(entry.element);
+      }
+      lane.queue.clear();
+      lane.queuedBytes = 0;
+      return removed;
+    }
+  }
+
+  @VisibleForTesting
+  int getLanes() {
+    return lanes.size();
+  }
+
+  private Lane getOrCreateLane(String key) {
+    Lane lane = lanes.get(key);
+    if (lane != null) {
+      return lane;
+    }
+    Lane newLane = new Lane(key);
+    lane = lanes.putIfAbsent(key, newLane);
+    return lane != null ? lane : newLane;
+  }
+
+  /** Takes the next batch from the head of a lane and marks the lane as in flight. */
+  private PendingBatch takeBatch(Lane lane) {
+    List<T> elements = new ArrayList<>(Math.min(lane.queue.size(), maxBatchElements));
+    long startNanos = lane.queue.peekFirst().appendNanos;
+    int bytes = 0;
+    while (!lane.queue.isEmpty() && elements.size() < maxBatchElements) {
+      Entry<T> next = lane.queue.peekFirst();
+      // Same as unordered batches, an element that does not fit goes into the next batch.
+      if (!elements.isEmpty() && bytes + next.bytes >= maxBatchBytes) {
+        break;
+      }
+      lane.queue.pollFirst();
+      elements.add(next.element);
+      bytes += next.bytes;
+    }
+    lane.queuedBytes -= bytes;
+    lane.inFlight = true;
+    if (lane.alarm != null) {
+      lane.alarm.cancel(false);
+      lane.alarm = null;
+    }
+    return new PendingBatch(lane.key, elements, bytes, startNanos);
+  }
+}
@@ -17,11 +17,15 @@
 package com.google.cloud.pubsub;
 
 import com.google.auth.Credentials;
+import com.google.cloud.pubsub.Subscriber.BatchMessageReceiver;
 import com.google.cloud.pubsub.Subscriber.MessageReceiver;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
 import com.google.pubsub.v1.AcknowledgeRequest;
 import com.google.pubsub.v1.GetSubscriptionRequest;
 import com.google.pubsub.v1.ModifyAckDeadlineRequest;
@@ -31,12 +35,25 @@ import com.google.pubsub.v1.SubscriberGrpc;
 import com.google.pubsub.v1.SubscriberGrpc.SubscriberFutureStub;
 import com.google.pubsub.v1.Subscription;
 import io.grpc.Channel;
+import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.auth.MoreCallCredentials;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
 import org.joda.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -49,29 +66,73 @@ final class PollingSubscriberConnection extends AbstractSubscriberConnection {
   private static final int MAX_PER_REQUEST_CHANGES = 1000;
   private static final Duration DEFAULT_TIMEOUT = Duration.standardSeconds(10);
   private static final int DEFAULT_MAX_MESSAGES = 1000;
+  // Pulls wait on the server for messages, so several are kept in flight to overlap round trips.
+  @VisibleForTesting static final int MAX_PULLS_IN_FLIGHT = 4;
+  private static final Duration PULL_TIMEOUT = Duration.standardSeconds(60);
   private static final Duration INITIAL_BACKOFF = Duration.millis(100); // 100ms
   private static final Duration MAX_BACKOFF = Duration.standardSeconds(10); // 10s
+  private static final int MAX_ACK_REQUESTS_IN_FLIGHT = 8;
+  private static final int MAX_ACK_REQUEST_ATTEMPTS = 5;
 
   private static final Logger logger = LoggerFactory.getLogger(PollingSubscriberConnection.class);
 
   private final SubscriberFutureStub stub;
+  private final AtomicInteger pullsInFlight = new AtomicInteger();
+  // The pulls in flight, cancelled when stopping as they may wait on the server for a while.
+  private final Set<ListenableFuture<PullResponse>> pulls =
+      Collections.newSetFromMap(new ConcurrentHashMap<ListenableFuture<PullResponse>, Boolean>());
+  private final Runnable startPulls =
+      new Runnable() {
+        @Override
+        public void run() {
+          startPulls();
+        }
+      };
+  // The restart of the pulls waiting for flow control capacity, if any. Dropped when stopping, so
+  // the flow controller does not keep the stopped connection around.
+  private final AtomicReference<Runnable> pendingPulls = new AtomicReference<>();
+
+  // Ack requests waiting for one of the slots in flight, and the slots in use.
+  private final Queue<AckRequest> pendingAckRequests = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger ackRequestsInFlight = new AtomicInteger();
+  // Ack requests not completed yet, either queued, in flight or waiting to be retried.
+  private final MessagesWaiter ackRequestsWaiter = new MessagesWaiter();
+
+  // Backoff before pulling again after a failed pull, reset by any successful pull.
+  private volatile Duration backoff = INITIAL_BACKOFF;
 
   public PollingSubscriberConnection(
       String subscription,
       Credentials credentials,
-      MessageReceiver receiver,
+      @Nullable MessageReceiver receiver,
+      @Nullable BatchMessageReceiver batchReceiver,
+      Map<String, MessageCodec> codecs,
       Duration ackExpirationPadding,
-      Distribution ackLatencyDistribution,
+      LatencyHistogram ackLatencies,
+      WindowedLatencyHistogram recentAckLatencies,
+      AckFlushPolicy ackFlushPolicy,
+      AckCounters ackCounters,
+      @Nullable MessageTracing tracing,
       Channel channel,
       FlowController flowController,
-      ScheduledExecutorService executor) {
+      ScheduledExecutorService executor,
+      ExecutorService receiverExecutor,
+      AlarmScheduler alarmScheduler) {
     super(
         subscription,
         receiver,
+        batchReceiver,
+        codecs,
         ackExpirationPadding,
-        ackLatencyDistribution,
+        ackLatencies,
+        recentAckLatencies,
+        ackFlushPolicy,
+        ackCounters,
+        tracing,
         flowController,
-        executor);
+        executor,
+        receiverExecutor,
+        alarmScheduler);
     stub =
         SubscriberGrpc.newFutureStub(channel)
             .withCallCredentials(MoreCallCredentials.from(credentials));
@@ -90,7 +151,7 @@ final class PollingSubscriberConnection extends AbstractSubscriberConnection {
           @Override
           public void onSuccess(Subscription result) {
             setMessageDeadlineSeconds(result.getAckDeadlineSeconds());
-            pullMessages(INITIAL_BACKOFF);
+            startPulls();
           }
 
           @Override
@@ -100,61 +161,127 @@ final class PollingSubscriberConnection extends AbstractSubscriberConnection {
         });
   }
 
-  private void pullMessages(final Duration backoff) {
-    ListenableFuture<PullResponse> pullResult =
-        stub.withDeadlineAfter(DEFAULT_TIMEOUT.getMillis(), TimeUnit.MILLISECONDS)
+  /**
+   * Starts pulls until {@link #MAX_PULLS_IN_FLIGHT} are in flight, as long as the outstanding
+   * messages are under the flow control limits. Otherwise pulls start again once they are.
+   */
+  private void startPulls() {
+    while (isAlive()) {
+      if (!flowController.hasCapacity()) {
+        waitForCapacity();
+        return;
+      }
+      int availableMessages = flowController.getAvailableMessages();
+      // Pulls in flight share the capacity, so they do not go far over the limits together. Fewer
+      // pulls are kept in flight when there is only room for a few messages.
+      int maxPulls = Math.max(1, Math.min(MAX_PULLS_IN_FLIGHT, availableMessages));
+      int inFlight = pullsInFlight.get();
+      if (inFlight >= maxPulls) {
+        return;
+      }
+      if (pullsInFlight.compareAndSet(inFlight, inFlight + 1)) {
+        pullMessages(Math.min(DEFAULT_MAX_MESSAGES, Math.max(1, availableMessages / maxPulls)));
+      }
+    }
+  }
+
+  /** Starts the pulls again once the outstanding messages are back under the flow limits. */
+  private void waitForCapacity() {
+    Runnable restartPulls =
+        new Runnable() {
+          @Override
+          public void run() {
+            if (pendingPulls.compareAndSet(this, null)) {
+              startPulls();
+            }
+          }
+        };
+    // A single restart waits at a time, the pulls completing meanwhile have nothing to add.
+    if (pendingPulls.compareAndSet(null, restartPulls)) {
+      flowController.whenCapacity(restartPulls);
+      if (!isAlive()) {
+        // Stopping may have dropped the pending restart before this one was set.
+        dropPendingPulls();
+      }
+    }
+  }
+
+  private void dropPendingPulls() {
+    Runnable restartPulls = pendingPulls.getAndSet(null);
+    if (restartPulls != null) {
+      flowController.cancelWhenCapacity(restartPulls);
+    }
+  }
+
+  private boolean isAlive() {
+    return state() == State.RUNNING || state() == State.STARTING;
+  }
+
+  @Override
+  protected void doStop() {
+    dropPendingPulls();
+    for (ListenableFuture<PullResponse> pull : pulls) {
+      pull.cancel(true);
+    }
+    super.doStop();
+  }
+
+  private void pullMessages(int maxMessages) {
+    // Waits on the server for messages rather than returning right away, so an idle
+    // subscription neither polls in a loop nor backs off away from new messages.
+    final ListenableFuture<PullResponse> pullResult =
+        stub.withDeadlineAfter(PULL_TIMEOUT.getMillis(), TimeUnit.MILLISECONDS)
             .pull(
                 PullRequest.newBuilder()
                     .setSubscription(subscription)
-                    .setMaxMessages(DEFAULT_MAX_MESSAGES)
-                    .setReturnImmediately(true)
+                    .setMaxMessages(maxMessages)
+                    .setReturnImmediately(false)
                     .build());
+    pulls.add(pullResult);
+    if (!isAlive()) {
+      // Stopping may have cancelled the pulls in flight before this one was added.
+      pullResult.cancel(true);
+    }
 
     Futures.addCallback(
         pullResult,
         new FutureCallback<PullResponse>() {
           @Override
           public void onSuccess(PullResponse pullResponse) {
-            processReceivedMessages(pullResponse.getReceivedMessagesList());
-            if (pullResponse.getReceivedMessagesCount() == 0) {
-              // No messages in response, possibly caught up in backlog, we backoff to avoid 
-              // slamming the server.
-              executor.schedule(
-                  new Runnable() {
-                    @Override
-                    public void run() {
-                      Duration newBackoff = backoff.multipliedBy(2);
-                      if (newBackoff.isLongerThan(MAX_BACKOFF)) {
-                        newBackoff = MAX_BACKOFF;
-                      }
-                      pullMessages(newBackoff);
-                    }
-                  },
-                  backoff.getMillis(),
-                  TimeUnit.MILLISECONDS);
+            pulls.remove(pullResult);
+            pullsInFlight.decrementAndGet();
+            if (!isAlive()) {
+              // Dropped once stopping, as their acks could not be sent. The messages are
+              // redelivered once their ack deadline expires.
               return;
             }
-            pullMessages(INITIAL_BACKOFF);
+            backoff = INITIAL_BACKOFF;
+            processReceivedMessages(pullResponse.getReceivedMessagesList());
+            startPulls();
           }
 
           @Override
           public void onFailure(Throwable cause) {
+            pulls.remove(pullResult);
+            pullsInFlight.decrementAndGet();
+            if (!isAlive()) {
+              // Cancelled when stopping.
+              return;
+            }
+            if (cause instanceof StatusRuntimeException
+                && ((StatusRuntimeException) cause).getStatus().getCode()
+                    == Status.Code.DEADLINE_EXCEEDED) {
+              // No messages came while waiting.
+              startPulls();
+              return;
+            }
             if (!(cause instanceof StatusRuntimeException)
                 || isRetryable(((StatusRuntimeException) cause).getStatus())) {
               logger.error("Failed to pull messages (recoverable): " + cause.getMessage(), cause);
-              executor.schedule(
-                  new Runnable() {
-                    @Override
-                    public void run() {
-                      Duration newBackoff = backoff.multipliedBy(2);
-                      if (newBackoff.isLongerThan(MAX_BACKOFF)) {
-                        newBackoff = MAX_BACKOFF;
-                      }
-                      pullMessages(newBackoff);
-                    }
-                  },
-                  backoff.getMillis(),
-                  TimeUnit.MILLISECONDS);
+              long backoffMillis = backoff.getMillis();
+              Duration newBackoff = backoff.multipliedBy(2);
+              backoff = newBackoff.isLongerThan(MAX_BACKOFF) ? MAX_BACKOFF : newBackoff;
+              executor.schedule(startPulls, backoffMillis, TimeUnit.MILLISECONDS);
               return;
             }
             notifyFailed(cause);
@@ -164,33 +291,162 @@ final class PollingSubscriberConnection extends AbstractSubscriberConnection {
 
   @Override
   void sendAckOperations(
-      List<String> acksToSend, List<PendingModifyAckDeadline> ackDeadlineExtensions) {
+      List<ByteString> acksToSend, List<PendingModifyAckDeadline> ackDeadlineExtensions) {
+    // Groups with the same deadline, nacks included, are merged into the same requests.
+    Map<Integer, List<ByteString>> ackIdsByDeadline = new HashMap<>();
+    for (PendingModifyAckDeadline modifyAckDeadline : ackDeadlineExtensions) {
+      List<ByteString> ackIds = ackIdsByDeadline.get(modifyAckDeadline.deadlineExtensionSeconds);
+      if (ackIds == null) {
+        ackIds = new ArrayList<>();
+        ackIdsByDeadline.put(modifyAckDeadline.deadlineExtensionSeconds, ackIds);
+      }
+      ackIds.addAll(modifyAckDeadline.ackIds);
+    }
     // Send the modify ack deadlines in batches as not to exceed the max request
     // size.
-    List<List<PendingModifyAckDeadline>> modifyAckDeadlineChunks =
-        Lists.partition(ackDeadlineExtensions, MAX_PER_REQUEST_CHANGES);
-    for (List<PendingModifyAckDeadline> modAckChunk : modifyAckDeadlineChunks) {
-      for (PendingModifyAckDeadline modifyAckDeadline : modAckChunk) {
-        stub.withDeadlineAfter(DEFAULT_TIMEOUT.getMillis(), TimeUnit.MILLISECONDS)
-            .modifyAckDeadline(
+    for (Map.Entry<Integer, List<ByteString>> deadline : ackIdsByDeadline.entrySet()) {
+      for (List<ByteString> ackIds :
+          Lists.partition(deadline.getValue(), MAX_PER_REQUEST_CHANGES)) {
+        queueAckRequest(
+            new AckRequest(
+                null,
                 ModifyAckDeadlineRequest.newBuilder()
                     .setSubscription(subscription)
-                    .addAllAckIds(modifyAckDeadline.ackIds)
-                    .setAckDeadlineSeconds(modifyAckDeadline.deadlineExtensionSeconds)
-                    .build());
+                    .setAckDeadlineSeconds(deadline.getKey())
+                    .addAllAckIdsBytes(ackIds)
+                    .build()));
       }
     }
-
-    List<List<String>> ackChunks = Lists.partition(acksToSend, MAX_PER_REQUEST_CHANGES);
-    Iterator<List<String>> ackChunksIt = ackChunks.iterator();
-    while (ackChunksIt.hasNext()) {
-      List<String> ackChunk = ackChunksIt.next();
-      stub.withDeadlineAfter(DEFAULT_TIMEOUT.getMillis(), TimeUnit.MILLISECONDS)
-          .acknowledge(
+    for (List<ByteString> ackIds : Lists.partition(acksToSend, MAX_PER_REQUEST_CHANGES)) {
+      queueAckRequest(
+          new AckRequest(
               AcknowledgeRequest.newBuilder()
                   .setSubscription(subscription)
-                  .addAllAckIds(ackChunk)
-                  .build());
+                  .addAllAckIdsBytes(ackIds)
+                  .build(),
+              null));
+    }
+    sendPendingAckRequests();
+  }
+
+  private void queueAckRequest(AckRequest request) {
+    ackRequestsWaiter.incrementPendingMessages(1);
+    pendingAckRequests.add(request);
+  }
+
+  @Override
+  boolean waitForAckOperations(Duration timeout) {
+    return ackRequestsWaiter.waitNoMessages(timeout);
+  }
+
+  /** Sends the pending ack requests while fewer than the maximum are in flight. */
+  private void sendPendingAckRequests() {
+    while (true) {
+      int inFlight = ackRequestsInFlight.get();
+      if (inFlight >= MAX_ACK_REQUESTS_IN_FLIGHT) {
+        return;
+      }
+      if (!ackRequestsInFlight.compareAndSet(inFlight, inFlight + 1)) {
+        continue;
+      }
+      AckRequest request = pendingAckRequests.poll();
+      if (request == null) {
+        ackRequestsInFlight.decrementAndGet();
+        // A request queued while the slot was held may have found no free slot.
+        if (pendingAckRequests.isEmpty()) {
+          return;
+        }
+        continue;
+      }
+      Futures.addCallback(request.send(), request);
+    }
+  }
+
+  /**
+   * An acknowledge or modify ack deadline request, retried with backoff on retryable failures.
+   * Requests that fail for good are counted and logged, as their messages will be redelivered.
+   */
+  private final class AckRequest implements FutureCallback<Empty> {
+    @Nullable private final AcknowledgeRequest ackRequest;
+    @Nullable private final ModifyAckDeadlineRequest modifyAckDeadlineRequest;
+    // Only accessed by the thread handling the outcome of the previous attempt.
+    private int attempt = 1;
+    private Duration backoff = INITIAL_BACKOFF;
+
+    AckRequest(
+        @Nullable AcknowledgeRequest ackRequest,
+        @Nullable ModifyAckDeadlineRequest modifyAckDeadlineRequest) {
+      this.ackRequest = ackRequest;
+      this.modifyAckDeadlineRequest = modifyAckDeadlineRequest;
+    }
+
+    ListenableFuture<Empty> send() {
+      SubscriberFutureStub deadlineStub =
+          stub.withDeadlineAfter(DEFAULT_TIMEOUT.getMillis(), TimeUnit.MILLISECONDS);
+      return ackRequest != null
+          ? deadlineStub.acknowledge(ackRequest)
+          : deadlineStub.modifyAckDeadline(modifyAckDeadlineRequest);
+    }
+
+    @Override
+    public void onSuccess(Empty result) {
+      ackRequestsInFlight.decrementAndGet();
+      if (ackRequest != null) {
+        ackCounters.sentAcks.add(ackRequest.getAckIdsCount());
+      }
+      ackRequestsWaiter.incrementPendingMessages(-1);
+      sendPendingAckRequests();
+    }
+
+    @Override
+    public void onFailure(Throwable cause) {
+      ackRequestsInFlight.decrementAndGet();
+      if (attempt < MAX_ACK_REQUEST_ATTEMPTS
+          && (!(cause instanceof StatusRuntimeException)
+              || isRetryable(((StatusRuntimeException) cause).getStatus()))
+          && scheduleRetry()) {
+        ackCounters.retriedRequests.increment();
+      } else {
+        if (ackRequest != null) {
+          logger.warn(
+              "Failed to acknowledge {} messages, they will be redelivered.",
+              ackRequest.getAckIdsCount(),
+              cause);
+          ackCounters.failedAcks.add(ackRequest.getAckIdsCount());
+        } else {
+          logger.warn(
+              "Failed to modify the ack deadline of {} messages.",
+              modifyAckDeadlineRequest.getAckIdsCount(),
+              cause);
+          ackCounters.failedAckDeadlineModifications.add(
+              modifyAckDeadlineRequest.getAckIdsCount());
+        }
+        ackRequestsWaiter.incrementPendingMessages(-1);
+      }
+      sendPendingAckRequests();
+    }
+
+    /** Queues the request again after the backoff, returns false if it can no longer be. */
+    private boolean scheduleRetry() {
+      try {
+        executor.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                pendingAckRequests.add(AckRequest.this);
+                sendPendingAckRequests();
+              }
+            },
+            backoff.getMillis(),
+            TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // The executor is shut down once stopping gave up waiting for the ack requests.
+        return false;
+      }
+      attempt++;
+      Duration newBackoff = backoff.multipliedBy(2);
+      backoff = newBackoff.isLongerThan(MAX_BACKOFF) ? MAX_BACKOFF : newBackoff;
+      return true;
     }
   }
 }
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * A {@link StatsExporter} serving the latest statistics of each publisher and subscriber in the
+ * Prometheus text format, on {@code http://localhost:<port>/metrics}.
+ *
+ * <p>Publishers are labelled by topic and subscribers by subscription, along with their id to tell
+ * apart those to the same topic or subscription. Counters are cumulative since the publisher or
+ * subscriber was built, and latencies are summaries in seconds. Publishers and subscribers are no
+ * longer served once shut down. Scrapes only read the last snapshots pushed, so they never reach
+ * into the publishers or subscribers.
+ */
+public final class PrometheusStatsExporter implements StatsExporter, Closeable {
+  static final String PATH = "/metrics";
+  static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+  // The latency histograms are in microseconds.
+  private static final double MICROS_PER_SECOND = 1e6;
+
+  // Last snapshots by publisher or subscriber id, along with their labels.
+  private final ConcurrentMap<String, Snapshot<PublisherStats>> publishers =
+      new ConcurrentSkipListMap<>();
+  private final ConcurrentMap<String, Snapshot<SubscriberStats>> subscribers =
+      new ConcurrentSkipListMap<>();
+  private final HttpServer server;
+
+  private static final class Snapshot<T> {
+    final String labels;
+    final T stats;
+
+    Snapshot(String labels, T stats) {
+      this.labels = labels;
+      this.stats = stats;
+    }
+  }
+
+  /**
+   * Creates an exporter serving the statistics on the loopback interface.
+   *
+   * @param port port to listen on, or 0 to pick a free one, see {@link #getPort()}
+   */
+  public PrometheusStatsExporter(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext(
+        PATH,
+        new HttpHandler() {
+          @Override
+          public void handle(HttpExchange exchange) throws IOException {
+            try {
+              if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+              }
+              byte[] body = render().getBytes(StandardCharsets.UTF_8);
+              exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+              exchange.sendResponseHeaders(200, body.length);
+              try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+              }
+            } finally {
+              exchange.close();
+            }
+          }
+        });
+    server.start();
+  }
+
+  /** Port the statistics are served on. */
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  @Override
+  public void exportPublisherStats(String publisherId, String topic, PublisherStats stats) {
+    publishers.put(
+        publisherId,
+        new Snapshot<>(label("topic", topic) + "," + label("id", publisherId), stats));
+  }
+
+  @Override
+  public void exportSubscriberStats(
+      String subscriberId, String subscription, SubscriberStats stats) {
+    subscribers.put(
+        subscriberId,
+        new Snapshot<>(
+            label("subscription", subscription) + "," + label("id", subscriberId), stats));
+  }
+
+  @Override
+  public void removePublisher(String publisherId) {
+    publishers.remove(publisherId);
+  }
+
+  @Override
+  public void removeSubscriber(String subscriberId) {
+    subscribers.remove(subscriberId);
+  }
+
+  /** Stops serving the statistics. */
+  @Override
+  public void close() {
+    server.stop(0);
+  }
+
+  /** Renders the last statistics pushed, in the Prometheus text format. */
+  String render() {
+    MetricsWriter writer = new MetricsWriter();
+    for (Snapshot<PublisherStats> publisher : publishers.values()) {
+      String labels = publisher.labels;
+      PublisherStats stats = publisher.stats;
+      writer.counter(
+          "pubsub_publisher_sent_messages_total",
+          "Messages sent.",
+          labels,
+          stats.getSentMessages());
+      writer.counter(
+          "pubsub_publisher_acked_messages_total",
+          "Messages successfully published.",
+          labels,
+          stats.getAckedMessages());
+      writer.counter(
+          "pubsub_publisher_failed_messages_total",
+          "Messages that failed to publish.",
+          labels,
+          stats.getFailedMessages());
+      writer.counter(
+          "pubsub_publisher_sent_bytes_total",
+          "Serialized size of the messages sent.",
+          labels,
+          stats.getSentBytes());
+      writer.counter(
+          "pubsub_publisher_sent_batches_total",
+          "Publish calls made, including retries.",
+          labels,
+          stats.getSentBatches());
+      writer.counter(
+          "pubsub_publisher_retried_batches_total",
+          "Publish calls retried after a failure.",
+          labels,
+          stats.getRetriedBatches());
+      writer.counter(
+          "pubsub_publisher_flow_control_blocked_seconds_total",
+          "Time publishing threads have been blocked by flow control.",
+          labels,
+          stats.getFlowControlBlockedTime().getMillis() / 1000.0);
+      writer.gauge(
+          "pubsub_publisher_pending_messages",
+          "Messages pending to publish.",
+          labels,
+          stats.getPendingMessages());
+      writer.gauge(
+          "pubsub_publisher_max_batch_messages",
+          "Number of messages that triggers a publish call.",
+          labels,
+          stats.getMaxBatchMessages());
+      writer.summary(
+          "pubsub_publisher_publish_latency_seconds",
+          "Round trip time of the publish calls.",
+          labels,
+          stats.getPublishLatency());
+      writer.summary(
+          "pubsub_publisher_batch_queue_latency_seconds",
+          "Time from the first message of a batch being published to the batch being sent.",
+          labels,
+          stats.getBatchQueueLatency());
+    }
+    for (Snapshot<SubscriberStats> subscriber : subscribers.values()) {
+      String labels = subscriber.labels;
+      SubscriberStats stats = subscriber.stats;
+      writer.counter(
+          "pubsub_subscriber_received_messages_total",
+          "Messages received, including redeliveries.",
+          labels,
+          stats.getReceivedMessages());
+      writer.counter(
+          "pubsub_subscriber_acked_messages_total",
+          "Messages acked.",
+          labels,
+          stats.getAckedMessages());
+      writer.counter(
+          "pubsub_subscriber_nacked_messages_total",
+          "Messages nacked.",
+          labels,
+          stats.getNackedMessages());
+      writer.counter(
+          "pubsub_subscriber_expired_messages_total",
+          "Messages found past their deadline when extending it.",
+          labels,
+          stats.getExpiredMessages());
+      writer.counter(
+          "pubsub_subscriber_ack_deadline_extensions_total",
+          "Ack deadline extensions sent.",
+          labels,
+          stats.getNumberOfAutoExtendedAckDeadlines());
+      writer.counter(
+          "pubsub_subscriber_failed_acks_total",
+          "Acks that could not be sent.",
+          labels,
+          stats.getFailedAcks());
+      writer.counter(
+          "pubsub_subscriber_failed_ack_deadline_modifications_total",
+          "Ack deadline extensions and nacks that could not be sent.",
+          labels,
+          stats.getFailedAckDeadlineModifications());
+      writer.counter(
+          "pubsub_subscriber_retried_ack_requests_total",
+          "Ack and ack deadline requests retried.",
+          labels,
+          stats.getRetriedAckRequests());
+      writer.counter(
+          "pubsub_subscriber_stream_restarts_total",
+          "Streams reopened.",
+          labels,
+          stats.getStreamRestarts());
+      writer.summary(
+          "pubsub_subscriber_ack_latency_seconds",
+          "Time from the messages being received to being acked.",
+          labels,
+          stats.getAckLatencies());
+      writer.summary(
+          "pubsub_subscriber_end_to_end_latency_seconds",
+          "Time from the messages being published to being received.",
+          labels,
+          stats.getEndToEndLatencies());
+      writer.summary(
+          "pubsub_subscriber_receiver_latency_seconds",
+          "Time the receiver takes to reply to the messages.",
+          labels,
+          stats.getReceiverLatencies());
+    }
+    return writer.toString();
+  }
+
+  private static String label(String name, String value) {
+    return name
+        + "=\""
+        + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+        + "\"";
+  }
+
+  /** Groups the samples by metric, as the text format requires. */
+  private static final class MetricsWriter {
+    private final Map<String, StringBuilder> metrics = new LinkedHashMap<>();
+
+    void counter(String name, String help, String labels, double value) {
+      sample(metric(name, help, "counter"), name, labels, value);
+    }
+
+    void gauge(String name, String help, String labels, double value) {
+      sample(metric(name, help, "gauge"), name, labels, value);
+    }
+
+    void summary(String name, String help, String labels, HistogramSnapshot histogram) {
+      StringBuilder metric = metric(name, help, "summary");
+      for (double quantile : QUANTILES) {
+        sample(
+            metric,
+            name,
+            labels + ",quantile=\"" + quantile + "\"",
+            histogram.getPercentile(quantile * 100) / MICROS_PER_SECOND);
+      }
+      double sum = histogram.getMean() * histogram.getCount();
+      sample(metric, name + "_sum", labels, sum / MICROS_PER_SECOND);
+      sample(metric, name + "_count", labels, histogram.getCount());
+    }
+
+    private StringBuilder metric(String name, String help, String type) {
+      StringBuilder metric = metrics.get(name);
+      if (metric == null) {
+        metric = new StringBuilder();
+        metric.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        metric.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        metrics.put(name, metric);
+      }
+      return metric;
+    }
+
+    private static void sample(StringBuilder metric, String name, String labels, double value) {
+      metric.append(name).append('{').append(labels).append("} ");
+      if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+        // Counts are written as integers.
+        metric.append((long) value);
+      } else {
+        metric.append(value);
+      }
+      metric.append('\n');
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder text = new StringBuilder();
+      for (StringBuilder metric : metrics.values()) {
+        text.append(metric);
+      }
+      return text.toString();
+    }
+  }
+}
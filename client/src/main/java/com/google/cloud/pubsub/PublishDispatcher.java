@@ -0,0 +1,171 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import javax.annotation.Nullable;
+
+/**
+ * Dispatches sealed batches over a set of channels, keeping at most a fixed window of batches in
+ * flight per channel.
+ *
+ * <p>Each batch goes to the least loaded channel. When every channel has its window full, batches
+ * are queued, and a queued batch is coalesced with the batch queued right after it whenever the
+ * {@link BatchCoalescer} allows it, so a burst of small batches turns into fewer, larger RPCs
+ * instead of piling up on the same connection.
+ *
+ * <p>Queued batches are sent from the executor once a slot is released, as slots are released from
+ * the RPC callbacks, which should not encode and start the next RPC themselves.
+ */
+final class PublishDispatcher<B> {
+  /** Sends a batch over a given channel, must call {@link #onBatchCompleted} once done. */
+  interface BatchSender<B> {
+    void send(B batch, int channel);
+
+    /**
+     * Fails a batch whose {@link #send} threw, which must not call {@link #onBatchCompleted} as
+     * the dispatcher releases its slot itself.
+     */
+    void onSendFailed(B batch, Throwable t);
+  }
+
+  /** Merges two queued batches, if possible. */
+  interface BatchCoalescer<B> {
+    /** Returns a batch with the contents of both batches, or null if they can't be merged. */
+    @Nullable
+    B coalesce(B first, B second);
+  }
+
+  private final int[] inFlightBatches;
+  private final int maxInFlightBatchesPerChannel;
+  private final BatchSender<B> sender;
+  private final BatchCoalescer<B> coalescer;
+  private final Executor executor;
+  private final Deque<B> queuedBatches;
+  private int nextChannel;
+
+  PublishDispatcher(
+      int channels,
+      int maxInFlightBatchesPerChannel,
+      BatchSender<B> sender,
+      BatchCoalescer<B> coalescer,
+      Executor executor) {
+    Preconditions.checkArgument(channels > 0);
+    Preconditions.checkArgument(maxInFlightBatchesPerChannel > 0);
+    inFlightBatches = new int[channels];
+    this.maxInFlightBatchesPerChannel = maxInFlightBatchesPerChannel;
+    this.sender = Preconditions.checkNotNull(sender);
+    this.coalescer = Preconditions.checkNotNull(coalescer);
+    this.executor = Preconditions.checkNotNull(executor);
+    queuedBatches = new ArrayDeque<>();
+  }
+
+  /** Sends the batch right away if any channel has room for it, otherwise queues it. */
+  void dispatch(B batch) {
+    int channel;
+    synchronized (this) {
+      channel = acquireLeastLoadedChannel();
+      if (channel < 0) {
+        B lastQueued = queuedBatches.peekLast();
+        B coalesced = lastQueued == null ? null : coalescer.coalesce(lastQueued, batch);
+        if (coalesced != null) {
+          queuedBatches.pollLast();
+          queuedBatches.addLast(coalesced);
+        } else {
+          queuedBatches.addLast(batch);
+        }
+        return;
+      }
+    }
+    send(batch, channel);
+  }
+
+  /** Releases the window slot taken by a batch and sends the next queued batch, if any. */
+  void onBatchCompleted(final int channel) {
+    final B nextBatch;
+    synchronized (this) {
+      Preconditions.checkState(inFlightBatches[channel] > 0);
+      nextBatch = queuedBatches.pollFirst();
+      if (nextBatch == null) {
+        --inFlightBatches[channel];
+        return;
+      }
+    }
+    // The released slot goes straight to the next queued batch.
+    try {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              send(nextBatch, channel);
+            }
+          });
+    } catch (RejectedExecutionException e) {
+      // The executor is shutting down, the batch is still sent rather than lost.
+      send(nextBatch, channel);
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int getInFlightBatches(int channel) {
+    return inFlightBatches[channel];
+  }
+
+  @VisibleForTesting
+  synchronized int getQueuedBatches() {
+    return queuedBatches.size();
+  }
+
+  /**
+   * Sends a batch on a channel whose slot it holds. If sending throws, the batch is failed and the
+   * slot released, rather than the exception escaping to the executor and the batch never
+   * completing.
+   */
+  private void send(B batch, int channel) {
+    try {
+      sender.send(batch, channel);
+    } catch (RuntimeException e) {
+      try {
+        sender.onSendFailed(batch, e);
+      } finally {
+        onBatchCompleted(channel);
+      }
+    }
+  }
+
+  private int acquireLeastLoadedChannel() {
+    int leastLoaded = -1;
+    // Start from a rotating position so ties are spread across channels.
+    for (int i = 0; i < inFlightBatches.length; i++) {
+      int channel = (nextChannel + i) % inFlightBatches.length;
+      if (inFlightBatches[channel] < maxInFlightBatchesPerChannel
+          && (leastLoaded < 0 || inFlightBatches[channel] < inFlightBatches[leastLoaded])) {
+        leastLoaded = channel;
+      }
+    }
+    if (leastLoaded >= 0) {
+      ++inFlightBatches[leastLoaded];
+      nextChannel = (leastLoaded + 1) % inFlightBatches.length;
+    }
+    return leastLoaded;
+  }
+}
@@ -91,6 +91,7 @@ public interface Publisher {
   Duration DEFAULT_REQUEST_TIMEOUT = new Duration(10 * 1000); // 10 seconds
   Duration MIN_SEND_BATCH_DURATION = new Duration(10 * 1000); // 10 seconds
   Duration MIN_REQUEST_TIMEOUT = new Duration(10); // 10 milliseconds
+  int DEFAULT_MAX_IN_FLIGHT_BATCHES_PER_CHANNEL = 10;
 
   /** Topic to which the publisher publishes to. */
   String getTopic();
@@ -108,6 +109,37 @@ public interface Publisher {
    */
   ListenableFuture<String> publish(PubsubMessage message);
 
+  /**
+   * Schedules the publishing of a message, in order with the other messages published with the same
+   * ordering key.
+   *
+   * <p>Messages with the same ordering key are batched together and at most one publish call is in
+   * flight per key, so they reach the service in the order this method was called. A failing call
+   * is retried before any later message of its key is sent, while messages of other keys keep being
+   * published. If a message fails to publish for good, the messages of its key waiting behind it
+   * fail with the same error.
+   *
+   * <p>Flow control applies as in {@link #publish(PubsubMessage)}.
+   *
+   * @param message the message to publish.
+   * @param orderingKey the key of the sequence the message belongs to.
+   * @return the message ID wrapped in a future.
+   */
+  ListenableFuture<String> publish(PubsubMessage message, String orderingKey);
+
+  /**
+   * Schedules the publishing of a message without ever blocking the current thread on flow control.
+   *
+   * <p>If the flow control limits are reached, the message waits for resources to be released
+   * without holding a thread, in line with the other messages waiting for them, and is then
+   * published as with {@link #publish(PubsubMessage)}. If the publisher is set to {@link
+   * #failOnFlowControlLimits fail on the limits}, the returned future fails right away instead.
+   *
+   * @param message the message to publish.
+   * @return the message ID wrapped in a future.
+   */
+  ListenableFuture<String> publishAsync(PubsubMessage message);
+
   /** Maximum amount of time to wait until scheduling the publishing of messages. */
   Duration getMaxBatchDuration();
 
@@ -159,6 +191,11 @@ public interface Publisher {
     int maxBatchMessages;
     int maxBatchBytes;
     Duration maxBatchDuration;
+    Optional<Duration> adaptiveBatchingLatencyTarget;
+
+    // Compression options
+    Optional<MessageCodec> codec;
+    int codecMinBytes;
 
     // Client-side flow control options
     Optional<Integer> maxOutstandingMessages;
@@ -170,6 +207,7 @@ public interface Publisher {
 
     // RPC options
     Duration requestTimeout;
+    int maxInFlightBatchesPerChannel;
 
     // Channels and credentials
     Optional<Credentials> userCredentials;
@@ -177,6 +215,14 @@ public interface Publisher {
 
     Optional<ScheduledExecutorService> executor;
 
+    // Statistics export
+    Optional<StatsExporter> statsExporter;
+    Duration statsExportInterval;
+
+    // Tracing
+    Optional<MessageTraceListener> traceListener;
+    double traceSamplingRate;
+
     /** Constructs a new {@link Builder} using the given topic. */
     public static Builder newBuilder(String topic) {
       return new Builder(topic);
@@ -195,10 +241,18 @@ public interface Publisher {
       maxBatchMessages = DEFAULT_MAX_BATCH_MESSAGES;
       maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
       maxBatchDuration = DEFAULT_MAX_BATCH_DURATION;
+      adaptiveBatchingLatencyTarget = Optional.absent();
+      codec = Optional.absent();
+      codecMinBytes = 0;
       requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+      maxInFlightBatchesPerChannel = DEFAULT_MAX_IN_FLIGHT_BATCHES_PER_CHANNEL;
       sendBatchDeadline = MIN_SEND_BATCH_DURATION;
       failOnFlowControlLimits = false;
       executor = Optional.absent();
+      statsExporter = Optional.absent();
+      statsExportInterval = Duration.ZERO;
+      traceListener = Optional.absent();
+      traceSamplingRate = 0;
     }
 
     /**
@@ -260,6 +314,44 @@ public interface Publisher {
       return this;
     }
 
+    /**
+     * Enables adaptive batching, where the publisher continuously tunes the batch size and the
+     * time to wait before triggering a publish call, aiming to keep the 99th percentile of the
+     * publish latency, from {@link Publisher#publish} to the message ID being available, under the
+     * given target.
+     *
+     * <p>The values set through {@link #setMaxBatchMessages} and {@link #setMaxBatchDuration}
+     * become the upper bounds of the adaptive batch size and delay, and {@link #setMaxBatchBytes}
+     * still applies as is. The values in use at any time are available through {@link
+     * Publisher#getStats()}.
+     */
+    public Builder setAdaptiveBatchingLatencyTarget(Duration latencyTarget) {
+      Preconditions.checkArgument(latencyTarget.getMillis() > 0);
+      adaptiveBatchingLatencyTarget = Optional.of(latencyTarget);
+      return this;
+    }
+
+    // Compression options
+
+    /**
+     * Encodes, typically compressing, the data of the messages with at least the given number of
+     * bytes, as long as it gets smaller, before they are batched.
+     *
+     * <p>Encoded messages are tagged with the {@link MessageCodecs#CONTENT_ENCODING_ATTRIBUTE}
+     * attribute and {@link Subscriber Subscribers} decode them back before handing them to their
+     * {@link Subscriber.MessageReceiver}, as long as they know the codec. Batching and flow control
+     * limits apply to the encoded messages.
+     *
+     * @param codec the codec, such as {@link MessageCodecs#GZIP}
+     * @param minBytes size of the data under which messages are sent as is
+     */
+    public Builder setCompression(MessageCodec codec, int minBytes) {
+      Preconditions.checkArgument(minBytes >= 0);
+      this.codec = Optional.of(Preconditions.checkNotNull(codec));
+      codecMinBytes = minBytes;
+      return this;
+    }
+
     // Flow control options
 
     /** Maximum number of outstanding messages to keep in memory before enforcing flow control. */
@@ -304,12 +396,50 @@ public interface Publisher {
       return this;
     }
 
+    /**
+     * Maximum number of publish calls in flight at any time on each of the channels used by the
+     * publisher.
+     *
+     * <p>Batches sealed while every channel has reached this limit are queued, and merged together
+     * while they still fit the batching limits, until a publish call completes.
+     */
+    public Builder setMaxInFlightBatchesPerChannel(int batches) {
+      Preconditions.checkArgument(batches > 0);
+      maxInFlightBatchesPerChannel = batches;
+      return this;
+    }
+
     /** Gives the ability to set a custom executor to be used by the library. */
     public Builder setExecutor(ScheduledExecutorService executor) {
       this.executor = Optional.of(Preconditions.checkNotNull(executor));
       return this;
     }
 
+    /**
+     * Pushes a snapshot of the {@link Publisher#getStats() statistics} to the exporter at the given
+     * interval, and a last one on shutdown. The snapshots are taken from counters updated as
+     * messages go by, so exporting never holds back publishing.
+     */
+    public Builder setStatsExporter(StatsExporter exporter, Duration interval) {
+      Preconditions.checkArgument(interval.getMillis() > 0);
+      this.statsExporter = Optional.of(Preconditions.checkNotNull(exporter));
+      this.statsExportInterval = interval;
+      return this;
+    }
+
+    /**
+     * Reports the steps of a sample of the messages to the listener, to tell where their latency
+     * comes from. Without a listener, tracing costs next to nothing.
+     *
+     * @param samplingRate share of the messages traced, greater than 0 and at most 1
+     */
+    public Builder setTraceListener(MessageTraceListener listener, double samplingRate) {
+      Preconditions.checkArgument(samplingRate > 0 && samplingRate <= 1);
+      this.traceListener = Optional.of(Preconditions.checkNotNull(listener));
+      this.traceSamplingRate = samplingRate;
+      return this;
+    }
+
     public Publisher build() throws IOException {
       return new PublisherImpl(this);
     }
@@ -17,90 +17,117 @@
 package com.google.cloud.pubsub;
 
 import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.pubsub.BatchAccumulator.Batch;
+import com.google.cloud.pubsub.MessageTraceListener.Event;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
-import com.google.common.collect.ImmutableList;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
-import com.google.pubsub.v1.PublishRequest;
+import com.google.protobuf.ByteString;
 import com.google.pubsub.v1.PublishResponse;
-import com.google.pubsub.v1.PublisherGrpc;
 import com.google.pubsub.v1.PubsubMessage;
 import io.grpc.CallCredentials;
+import io.grpc.CallOptions;
 import io.grpc.Channel;
+import io.grpc.ManagedChannel;
 import io.grpc.Status;
 import io.grpc.auth.MoreCallCredentials;
-import io.grpc.netty.GrpcSslContexts;
-import io.grpc.netty.NegotiationType;
-import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.ClientCalls;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 import org.joda.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /** Implementation of {@link Publisher}. */
 final class PublisherImpl implements Publisher {
-  private static final int DEFAULT_MIN_THREAD_POOL_SIZE = 5;
   private static final double INITIAL_BACKOFF_MS = 5;
   private static final double BACKOFF_RANDOMNESS_FACTOR = 0.2;
 
   private static final Logger logger = LoggerFactory.getLogger(PublisherImpl.class);
 
+  private static final AtomicInteger lastStatsExporterId = new AtomicInteger();
+
   private final String topic;
+  // Encoded once, as it is written in every publish request.
+  private final ByteString topicBytes;
 
   private final int maxBatchMessages;
   private final int maxBatchBytes;
   private final Duration maxBatchDuration;
-  private final boolean hasBatchingBytes;
 
   private final Optional<Integer> maxOutstandingMessages;
   private final Optional<Integer> maxOutstandingBytes;
   private final boolean failOnFlowControlLimits;
 
-  private final Lock messagesBatchLock;
-  private List<OutstandingPublish> messagesBatch;
-  private int batchedBytes;
+  private final Optional<MessageCodec> codec;
+  private final int codecMinBytes;
 
-  private final AtomicBoolean activeAlarm;
+  private final BatchAccumulator<OutstandingPublish> messagesBatches;
+  @Nullable private final AdaptiveBatchingController adaptiveBatching;
+  private final OrderingLanes<OutstandingPublish> orderingLanes;
 
   private final FlowController flowController;
   private final Channel[] channels;
-  private final AtomicLong channelIndex;
+  // Only set when the executor or the channels are not provided by the user.
+  @Nullable private final SharedResources sharedResources;
+  private final boolean channelsLeased;
+  private final PublishDispatcher<OutstandingBatch> dispatcher;
   private final CallCredentials credentials;
   private final Duration requestTimeout;
 
   private final ScheduledExecutorService executor;
+  private final AlarmScheduler alarmScheduler;
   private final AtomicBoolean shutdown;
   private final MessagesWaiter messagesWaiter;
   private final Duration sendBatchDeadline;
-  private ScheduledFuture<?> currentAlarmFuture;
+
+  private final StripedCounter sentMessages;
+  private final StripedCounter sentBytes;
+  private final StripedCounter ackedMessages;
+  private final StripedCounter ackedBytes;
+  private final StripedCounter failedMessages;
+  private final StripedCounter failedBytes;
+  private final StripedCounter sentBatches;
+  private final StripedCounter retriedBatches;
+  // In microseconds.
+  private final LatencyHistogram batchQueueLatency;
+  private final LatencyHistogram publishLatency;
+
+  @Nullable private final StatsExporter statsExporter;
+  @Nullable private final ScheduledFuture<?> statsExport;
+  // Tells the publisher apart from the others to the same topic in the exported statistics.
+  private final String statsExporterId = "publisher-" + lastStatsExporterId.incrementAndGet();
+  // Only set with a trace listener.
+  @Nullable private final MessageTracing tracing;
 
   PublisherImpl(Builder builder) throws IOException {
     topic = builder.topic;
+    topicBytes = ByteString.copyFromUtf8(topic);
 
     maxBatchMessages = builder.maxBatchMessages;
     maxBatchBytes = builder.maxBatchBytes;
     maxBatchDuration = builder.maxBatchDuration;
-    hasBatchingBytes = maxBatchBytes > 0;
 
     maxOutstandingMessages = builder.maxOutstandingMessages;
     maxOutstandingBytes = builder.maxOutstandingBytes;
     failOnFlowControlLimits = builder.failOnFlowControlLimits;
+    codec = builder.codec;
+    codecMinBytes = builder.codecMinBytes;
     this.flowController =
         new FlowController(maxOutstandingMessages, maxOutstandingBytes, failOnFlowControlLimits);
 
@@ -108,31 +135,101 @@ final class PublisherImpl implements Publisher {
 
     requestTimeout = builder.requestTimeout;
 
-    messagesBatch = new LinkedList<>();
-    messagesBatchLock = new ReentrantLock();
-    activeAlarm = new AtomicBoolean(false);
+    tracing =
+        builder.traceListener.isPresent()
+            ? new MessageTracing(builder.traceListener.get(), builder.traceSamplingRate)
+            : null;
+
+    adaptiveBatching =
+        builder.adaptiveBatchingLatencyTarget.isPresent()
+            ? new AdaptiveBatchingController(
+                builder.adaptiveBatchingLatencyTarget.get(),
+                maxBatchMessages,
+                maxBatchDuration,
+                System.currentTimeMillis())
+            : null;
+    messagesBatches =
+        new BatchAccumulator<>(
+            maxBatchMessages,
+            maxBatchBytes,
+            new BatchAccumulator.BatchListener<OutstandingPublish>() {
+              @Override
+              public void batchStarted(Batch<OutstandingPublish> batch) {
+                setupDurationBasedPublishAlarm(batch);
+              }
+
+              @Override
+              public void batchSealed(Batch<OutstandingPublish> batch) {
+                batch.cancelAlarm();
+                if (adaptiveBatching != null) {
+                  adaptiveBatching.recordBatchSealed(batch.size());
+                }
+                scheduleBatchForSending(batch);
+              }
+            });
     int numCores = Math.max(1, Runtime.getRuntime().availableProcessors());
+    sharedResources =
+        builder.executor.isPresent() && builder.channelBuilder.isPresent()
+            ? null
+            : SharedResources.acquire();
     executor =
+        builder.executor.isPresent() ? builder.executor.get() : sharedResources.getExecutor();
+    // A user provided executor also schedules the alarms, otherwise they go on the shared wheel.
+    alarmScheduler =
         builder.executor.isPresent()
-            ? builder.executor.get()
-            : Executors.newScheduledThreadPool(
-                numCores * DEFAULT_MIN_THREAD_POOL_SIZE,
-                new ThreadFactoryBuilder()
-                    .setDaemon(true)
-                    .setNameFormat("cloud-pubsub-publisher-thread-%d")
-                    .build());
-    channels = new Channel[numCores];
-    channelIndex = new AtomicLong(0);
-    for (int i = 0; i < numCores; i++) {
-      channels[i] =
-          builder.channelBuilder.isPresent()
-              ? builder.channelBuilder.get().build()
-              : NettyChannelBuilder.forAddress(PUBSUB_API_ADDRESS, 443)
-                  .negotiationType(NegotiationType.TLS)
-                  .sslContext(GrpcSslContexts.forClient().ciphers(null).build())
-                  .executor(executor)
-                  .build();
+            ? AlarmScheduler.of(executor)
+            : AlarmScheduler.onTimingWheel(executor);
+    orderingLanes =
+        new OrderingLanes<>(
+            maxBatchMessages,
+            maxBatchBytes,
+            maxBatchDuration,
+            alarmScheduler,
+            executor,
+            new OrderingLanes.BatchSender<OutstandingPublish>() {
+              @Override
+              public void send(
+                  String key, List<OutstandingPublish> batch, int bytes, long startNanos) {
+                trace(batch, Event.PUBLISH_BATCH_SEALED);
+                dispatcher.dispatch(new OutstandingBatch(batch, bytes, startNanos, key));
+              }
+            });
+    channelsLeased = !builder.channelBuilder.isPresent();
+    if (builder.channelBuilder.isPresent()) {
+      channels = new Channel[numCores];
+      for (int i = 0; i < numCores; i++) {
+        channels[i] = builder.channelBuilder.get().build();
+      }
+    } else {
+      // Distinct channels, so the publish calls are spread over as many connections.
+      channels =
+          sharedResources
+              .leaseChannels(numCores, Collections.<ManagedChannel>emptyList())
+              .toArray(new Channel[numCores]);
     }
+    dispatcher =
+        new PublishDispatcher<>(
+            channels.length,
+            builder.maxInFlightBatchesPerChannel,
+            new PublishDispatcher.BatchSender<OutstandingBatch>() {
+              @Override
+              public void send(OutstandingBatch batch, int channel) {
+                publishOutstandingBatch(batch, channel);
+              }
+
+              @Override
+              public void onSendFailed(OutstandingBatch batch, Throwable t) {
+                logger.warn("Failed to send a publish request.", t);
+                failBatch(batch, t);
+              }
+            },
+            new PublishDispatcher.BatchCoalescer<OutstandingBatch>() {
+              @Override
+              public OutstandingBatch coalesce(OutstandingBatch first, OutstandingBatch second) {
+                return coalesceBatches(first, second);
+              }
+            },
+            executor);
     credentials =
         MoreCallCredentials.from(
             builder.userCredentials.isPresent()
@@ -141,12 +238,77 @@ final class PublisherImpl implements Publisher {
                     .createScoped(Collections.singletonList(PUBSUB_API_SCOPE)));
     shutdown = new AtomicBoolean(false);
     messagesWaiter = new MessagesWaiter();
+    sentMessages = new StripedCounter();
+    sentBytes = new StripedCounter();
+    ackedMessages = new StripedCounter();
+    ackedBytes = new StripedCounter();
+    failedMessages = new StripedCounter();
+    failedBytes = new StripedCounter();
+    sentBatches = new StripedCounter();
+    retriedBatches = new StripedCounter();
+    batchQueueLatency = new LatencyHistogram();
+    publishLatency = new LatencyHistogram();
+
+    statsExporter = builder.statsExporter.orNull();
+    long exportIntervalMillis = builder.statsExportInterval.getMillis();
+    statsExport =
+        statsExporter == null
+            ? null
+            : executor.scheduleAtFixedRate(
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    exportStats();
+                  }
+                },
+                exportIntervalMillis,
+                exportIntervalMillis,
+                TimeUnit.MILLISECONDS);
+  }
+
+  private void exportStats() {
+    try {
+      statsExporter.exportPublisherStats(statsExporterId, topic, getStats());
+    } catch (RuntimeException e) {
+      // Caught, as the export would not be scheduled again otherwise.
+      logger.warn("Failed to export the publisher statistics.", e);
+    }
+  }
+
+  private void removeExportedStats() {
+    try {
+      statsExporter.removePublisher(statsExporterId);
+    } catch (RuntimeException e) {
+      logger.warn("Failed to remove the publisher statistics.", e);
+    }
   }
 
   @Override
   public PublisherStats getStats() {
-    // TODO: Implement this.
-    throw new UnsupportedOperationException();
+    // Completions are read before the sent counters, so pending counts are never negative.
+    long acked = ackedMessages.sum();
+    long failed = failedMessages.sum();
+    long ackedSize = ackedBytes.sum();
+    long failedSize = failedBytes.sum();
+    return PublisherStats.newBuilder()
+        .setMessages(sentMessages.sum(), acked, failed)
+        .setBytes(sentBytes.sum(), ackedSize, failedSize)
+        .setBatches(sentBatches.sum(), retriedBatches.sum())
+        .setFlowControlBlockedTime(
+            new Duration(TimeUnit.NANOSECONDS.toMillis(flowController.getBlockedNanos())))
+        .setLatencies(batchQueueLatency.snapshot(), publishLatency.snapshot())
+        .setBatching(getEffectiveMaxBatchMessages(), maxBatchBytes, getEffectiveMaxBatchDuration())
+        .build();
+  }
+
+  /** Batch size in use, which is only below the configured maximum with adaptive batching. */
+  private int getEffectiveMaxBatchMessages() {
+    return adaptiveBatching != null ? adaptiveBatching.getBatchMessages() : maxBatchMessages;
+  }
+
+  /** Batch delay in use, which is only below the configured maximum with adaptive batching. */
+  private Duration getEffectiveMaxBatchDuration() {
+    return adaptiveBatching != null ? adaptiveBatching.getBatchDuration() : maxBatchDuration;
   }
 
   @Override
@@ -196,137 +358,202 @@ final class PublisherImpl implements Publisher {
 
   @Override
   public ListenableFuture<String> publish(PubsubMessage message) {
-    if (shutdown.get()) {
-      throw new IllegalStateException("Cannot publish on a shut-down publisher.");
+    return publishMessage(message, null);
+  }
+
+  @Override
+  public ListenableFuture<String> publish(PubsubMessage message, String orderingKey) {
+    return publishMessage(message, Preconditions.checkNotNull(orderingKey));
+  }
+
+  @Override
+  public ListenableFuture<String> publishAsync(PubsubMessage message) {
+    checkNotShutdown();
+    final PubsubMessage encoded;
+    try {
+      encoded = encode(message);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
     }
+    final int messageSize = encoded.getSerializedSize();
+    final SettableFuture<String> publishResult = SettableFuture.create();
+    // Accounted while waiting for flow control, so shutdown waits for the message too.
+    messagesWaiter.incrementPendingMessages(1);
+    Futures.addCallback(
+        flowController.reserveAsync(1, messageSize),
+        new FutureCallback<Void>() {
+          @Override
+          public void onSuccess(Void result) {
+            appendMessage(new OutstandingPublish(publishResult, encoded), messageSize, null);
+          }
+
+          @Override
+          public void onFailure(Throwable t) {
+            publishResult.setException(t);
+            messagesWaiter.incrementPendingMessages(-1);
+          }
+        });
+    return publishResult;
+  }
 
+  private ListenableFuture<String> publishMessage(
+      PubsubMessage message, @Nullable String orderingKey) {
+    checkNotShutdown();
+    try {
+      message = encode(message);
+    } catch (IOException e) {
+      return Futures.immediateFailedFuture(e);
+    }
     final int messageSize = message.getSerializedSize();
     try {
       flowController.reserve(1, messageSize);
     } catch (CloudPubsubFlowControlException e) {
       return Futures.immediateFailedFuture(e);
     }
-    OutstandingBatch batchToSend = null;
     SettableFuture<String> publishResult = SettableFuture.create();
-    final OutstandingPublish outstandingPublish = new OutstandingPublish(publishResult, message);
-    messagesBatchLock.lock();
-    try {
-      // Check if the next message makes the batch exceed the current batch byte size.
-      if (!messagesBatch.isEmpty()
-          && hasBatchingBytes
-          && batchedBytes + messageSize >= getMaxBatchBytes()) {
-        batchToSend = new OutstandingBatch(messagesBatch, batchedBytes);
-        messagesBatch = new LinkedList<>();
-        batchedBytes = 0;
-      }
+    // Accounted before batching, as the batch might get sealed and sent by another thread right
+    // after the message is appended.
+    messagesWaiter.incrementPendingMessages(1);
+    appendMessage(new OutstandingPublish(publishResult, message), messageSize, orderingKey);
+    return publishResult;
+  }
 
-      // Border case if the message to send is greater equals to the max batch size then can't be
-      // included in the current batch and instead sent immediately.
-      if (!hasBatchingBytes || messageSize < getMaxBatchBytes()) {
-        batchedBytes += messageSize;
-        messagesBatch.add(outstandingPublish);
-
-        // If after adding the message we have reached the batch max messages then we have a batch
-        // to send.
-        if (messagesBatch.size() == getMaxBatchMessages()) {
-          batchToSend = new OutstandingBatch(messagesBatch, batchedBytes);
-          messagesBatch = new LinkedList<>();
-          batchedBytes = 0;
-        }
-      }
-      // Setup the next duration based delivery alarm if there are messages batched.
-      if (!messagesBatch.isEmpty()) {
-        setupDurationBasedPublishAlarm();
-      } else if (currentAlarmFuture != null) {
-        logger.debug("Cancelling alarm");
-        if (activeAlarm.getAndSet(false)) {
-          currentAlarmFuture.cancel(false);
-        }
-      }
-    } finally {
-      messagesBatchLock.unlock();
+  private void checkNotShutdown() {
+    if (shutdown.get()) {
+      throw new IllegalStateException("Cannot publish on a shut-down publisher.");
     }
+  }
 
-    messagesWaiter.incrementPendingMessages(1);
+  private PubsubMessage encode(PubsubMessage message) throws IOException {
+    return codec.isPresent() ? MessageCodecs.encode(message, codec.get(), codecMinBytes) : message;
+  }
 
-    if (batchToSend != null) {
-      logger.debug("Scheduling a batch for immediate sending.");
-      final OutstandingBatch finalBatchToSend = batchToSend;
-      executor.execute(
-          new Runnable() {
-            @Override
-            public void run() {
-              publishOutstandingBatch(finalBatchToSend);
-            }
-          });
+  /** Batches a message that has its flow control reserved and is counted as pending. */
+  private void appendMessage(
+      OutstandingPublish outstandingPublish, int messageSize, @Nullable String orderingKey) {
+    sentMessages.increment();
+    sentBytes.add(messageSize);
+    if (tracing != null) {
+      outstandingPublish.spanId = tracing.startSpan(Event.PUBLISH_ENQUEUED);
     }
+    if (orderingKey == null) {
+      messagesBatches.append(outstandingPublish, messageSize);
+    } else {
+      orderingLanes.append(orderingKey, outstandingPublish, messageSize);
+    }
+  }
 
-    // If the message is over the size limit, it was not added to the pending messages and it will
-    // be sent in its own batch immediately.
-    if (hasBatchingBytes && messageSize >= getMaxBatchBytes()) {
-      logger.debug("Message exceeds the max batch bytes, scheduling it for immediate send.");
-      executor.execute(
-          new Runnable() {
-            @Override
-            public void run() {
-              publishOutstandingBatch(
-                  new OutstandingBatch(ImmutableList.of(outstandingPublish), messageSize));
-            }
-          });
+  /** Reports a step of the sampled messages among the given ones. */
+  private void trace(List<OutstandingPublish> outstandingPublishes, Event event) {
+    if (tracing == null) {
+      return;
+    }
+    for (OutstandingPublish outstandingPublish : outstandingPublishes) {
+      tracing.record(outstandingPublish.spanId, event);
     }
+  }
 
-    return publishResult;
+  private void setupDurationBasedPublishAlarm(final Batch<OutstandingPublish> batch) {
+    long delayMillis = getEffectiveMaxBatchDuration().getMillis();
+    logger.debug("Setting up alarm for the next {} ms.", delayMillis);
+    batch.setAlarm(
+        alarmScheduler.schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                logger.debug("Sending messages based on schedule.");
+                messagesBatches.flush(batch);
+              }
+            },
+            delayMillis,
+            TimeUnit.MILLISECONDS));
   }
 
-  private void setupDurationBasedPublishAlarm() {
-    if (!activeAlarm.getAndSet(true)) {
-      logger.debug("Setting up alarm for the next %d ms.", getMaxBatchDuration().getMillis());
-      currentAlarmFuture =
-          executor.schedule(
-              new Runnable() {
-                @Override
-                public void run() {
-                  logger.debug("Sending messages based on schedule.");
-                  activeAlarm.getAndSet(false);
-                  publishAllOustanding();
-                }
-              },
-              getMaxBatchDuration().getMillis(),
-              TimeUnit.MILLISECONDS);
+  private void scheduleBatchForSending(final Batch<OutstandingPublish> batch) {
+    logger.debug("Scheduling a batch for immediate sending.");
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            List<OutstandingPublish> outstandingPublishes = batch.getElements();
+            // Traced once the elements are all stored, which the sealing thread may not wait for.
+            trace(outstandingPublishes, Event.PUBLISH_BATCH_SEALED);
+            dispatcher.dispatch(
+                new OutstandingBatch(
+                    outstandingPublishes, batch.getBytes(), batch.getStartNanos(), null));
+          }
+        });
+  }
+
+  /**
+   * Merges two batches waiting for a free in-flight slot, as long as none of them is being retried
+   * or ordered and the result still fits the batching limits.
+   */
+  @Nullable
+  private OutstandingBatch coalesceBatches(OutstandingBatch first, OutstandingBatch second) {
+    if (first.attempt > 1
+        || second.attempt > 1
+        || first.orderingKey != null
+        || second.orderingKey != null
+        || first.size() + second.size() > getMaxBatchMessages()
+        || first.batchSizeBytes + second.batchSizeBytes > getMaxBatchBytes()) {
+      return null;
     }
+    List<OutstandingPublish> outstandingPublishes =
+        new ArrayList<>(first.size() + second.size());
+    outstandingPublishes.addAll(first.outstandingPublishes);
+    outstandingPublishes.addAll(second.outstandingPublishes);
+    return new OutstandingBatch(
+        outstandingPublishes,
+        first.batchSizeBytes + second.batchSizeBytes,
+        Math.min(first.creationTime, second.creationTime),
+        Math.min(first.startNanos, second.startNanos),
+        null);
   }
 
-  private void publishAllOustanding() {
-    messagesBatchLock.lock();
-    OutstandingBatch batchToSend;
-    try {
-      if (messagesBatch.isEmpty()) {
-        return;
-      }
-      batchToSend = new OutstandingBatch(messagesBatch, batchedBytes);
-      messagesBatch = new LinkedList<>();
-      batchedBytes = 0;
-    } finally {
-      messagesBatchLock.unlock();
+  /** Feeds the latency of a publish RPC sent at the given time to the adaptive batching. */
+  private void recordPublishLatency(long sendTime) {
+    if (adaptiveBatching == null) {
+      return;
+    }
+    long now = System.currentTimeMillis();
+    if (adaptiveBatching.recordPublishLatency(now - sendTime, now)) {
+      messagesBatches.setLimits(adaptiveBatching.getBatchMessages(), maxBatchBytes);
     }
-    publishOutstandingBatch(batchToSend);
   }
 
-  private void publishOutstandingBatch(final OutstandingBatch outstandingBatch) {
-    PublishRequest.Builder publishRequest = PublishRequest.newBuilder();
-    publishRequest.setTopic(topic);
-    for (OutstandingPublish outstandingPublish : outstandingBatch.outstandingPublishes) {
-      publishRequest.addMessages(outstandingPublish.message);
+  private void publishOutstandingBatch(final OutstandingBatch outstandingBatch, final int channel) {
+    // The first attempt encodes the request straight into the RPC, retries keep the encoded bytes
+    // and send them again.
+    if (outstandingBatch.request == null) {
+      outstandingBatch.request =
+          EncodedPublishRequest.encode(
+              topicBytes,
+              Iterables.transform(outstandingBatch.outstandingPublishes, GET_MESSAGE));
+    } else {
+      outstandingBatch.request = outstandingBatch.request.buffered();
+    }
+    final long sendTime = System.currentTimeMillis();
+    final long sendNanos = System.nanoTime();
+    if (outstandingBatch.attempt == 1) {
+      batchQueueLatency.record(
+          TimeUnit.NANOSECONDS.toMicros(sendNanos - outstandingBatch.startNanos));
     }
-    int currentChannel = (int) (channelIndex.getAndIncrement() % channels.length);
+    sentBatches.increment();
+    trace(outstandingBatch.outstandingPublishes, Event.PUBLISH_RPC_SENT);
     Futures.addCallback(
-        PublisherGrpc.newFutureStub(channels[currentChannel])
-            .withCallCredentials(credentials)
-            .withDeadlineAfter(requestTimeout.getMillis(), TimeUnit.MILLISECONDS)
-            .publish(publishRequest.build()),
+        ClientCalls.futureUnaryCall(
+            channels[channel].newCall(
+                EncodedPublishRequest.PUBLISH_METHOD,
+                CallOptions.DEFAULT
+                    .withCallCredentials(credentials)
+                    .withDeadlineAfter(requestTimeout.getMillis(), TimeUnit.MILLISECONDS)),
+            outstandingBatch.request),
         new FutureCallback<PublishResponse>() {
           @Override
           public void onSuccess(PublishResponse result) {
+            publishLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sendNanos));
+            trace(outstandingBatch.outstandingPublishes, Event.PUBLISH_RPC_COMPLETED);
             try {
               if (result.getMessageIdsCount() != outstandingBatch.size()) {
                 Throwable t =
@@ -339,44 +566,54 @@ final class PublisherImpl implements Publisher {
                 for (OutstandingPublish oustandingMessage : outstandingBatch.outstandingPublishes) {
                   oustandingMessage.publishResult.setException(t);
                 }
+                failedMessages.add(outstandingBatch.size());
+                failedBytes.add(outstandingBatch.batchSizeBytes);
+                failQueuedOrderedMessages(outstandingBatch, t);
                 return;
               }
 
+              recordPublishLatency(sendTime);
+
               Iterator<OutstandingPublish> messagesResultsIt =
                   outstandingBatch.outstandingPublishes.iterator();
               for (String messageId : result.getMessageIdsList()) {
                 messagesResultsIt.next().publishResult.set(messageId);
               }
+              ackedMessages.add(outstandingBatch.size());
+              ackedBytes.add(outstandingBatch.batchSizeBytes);
             } finally {
               flowController.release(outstandingBatch.size(), outstandingBatch.batchSizeBytes);
               messagesWaiter.incrementPendingMessages(-outstandingBatch.size());
+              dispatcher.onBatchCompleted(channel);
+              if (outstandingBatch.orderingKey != null) {
+                orderingLanes.onBatchCompleted(outstandingBatch.orderingKey);
+              }
             }
           }
 
           @Override
           public void onFailure(Throwable t) {
+            publishLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sendNanos));
+            trace(outstandingBatch.outstandingPublishes, Event.PUBLISH_RPC_COMPLETED);
+            // Failures and timeouts are sampled too, as they are often the slowest calls.
+            recordPublishLatency(sendTime);
+            dispatcher.onBatchCompleted(channel);
             long nextBackoffDelay = computeNextBackoffDelayMs(outstandingBatch);
 
             if (!isRetryable(t)
                 || System.currentTimeMillis() + nextBackoffDelay
                     > outstandingBatch.creationTime
                         + PublisherImpl.this.sendBatchDeadline.getMillis()) {
-              try {
-                for (OutstandingPublish outstandingPublish :
-                    outstandingBatch.outstandingPublishes) {
-                  outstandingPublish.publishResult.setException(t);
-                }
-              } finally {
-                messagesWaiter.incrementPendingMessages(-outstandingBatch.size());
-              }
+              failBatch(outstandingBatch, t);
               return;
             }
 
-            executor.schedule(
+            retriedBatches.increment();
+            alarmScheduler.schedule(
                 new Runnable() {
                   @Override
                   public void run() {
-                    publishOutstandingBatch(outstandingBatch);
+                    dispatcher.dispatch(outstandingBatch);
                   }
                 },
                 nextBackoffDelay,
@@ -385,16 +622,82 @@ final class PublisherImpl implements Publisher {
         });
   }
 
+  /** Fails the messages of a batch for good, and releases what they hold. */
+  private void failBatch(OutstandingBatch outstandingBatch, Throwable t) {
+    try {
+      for (OutstandingPublish outstandingPublish : outstandingBatch.outstandingPublishes) {
+        outstandingPublish.publishResult.setException(t);
+      }
+      failedMessages.add(outstandingBatch.size());
+      failedBytes.add(outstandingBatch.batchSizeBytes);
+      failQueuedOrderedMessages(outstandingBatch, t);
+    } finally {
+      flowController.release(outstandingBatch.size(), outstandingBatch.batchSizeBytes);
+      messagesWaiter.incrementPendingMessages(-outstandingBatch.size());
+      if (outstandingBatch.orderingKey != null) {
+        orderingLanes.onBatchCompleted(outstandingBatch.orderingKey);
+      }
+    }
+  }
+
+  /**
+   * Fails the messages queued behind an ordered batch that failed for good, as sending them would
+   * break the order of their key.
+   */
+  private void failQueuedOrderedMessages(OutstandingBatch outstandingBatch, Throwable t) {
+    if (outstandingBatch.orderingKey == null) {
+      return;
+    }
+    List<OutstandingPublish> queued = orderingLanes.removeQueued(outstandingBatch.orderingKey);
+    if (queued.isEmpty()) {
+      return;
+    }
+    int queuedBytes = 0;
+    for (OutstandingPublish outstandingPublish : queued) {
+      outstandingPublish.publishResult.setException(t);
+      queuedBytes += outstandingPublish.message.getSerializedSize();
+    }
+    failedMessages.add(queued.size());
+    failedBytes.add(queuedBytes);
+    flowController.release(queued.size(), queuedBytes);
+    messagesWaiter.incrementPendingMessages(-queued.size());
+  }
+
   private static final class OutstandingBatch {
     final List<OutstandingPublish> outstandingPublishes;
     final long creationTime;
+    // System.nanoTime() when the first message of the batch was published.
+    final long startNanos;
+    // Only set for batches of ordered messages, which are never coalesced.
+    @Nullable final String orderingKey;
     int attempt;
     int batchSizeBytes;
+    @Nullable EncodedPublishRequest request;
+
+    OutstandingBatch(
+        List<OutstandingPublish> outstandingPublishes,
+        int batchSizeBytes,
+        long startNanos,
+        @Nullable String orderingKey) {
+      this(
+          outstandingPublishes,
+          batchSizeBytes,
+          System.currentTimeMillis(),
+          startNanos,
+          orderingKey);
+    }
 
-    OutstandingBatch(List<OutstandingPublish> outstandingPublishes, int batchSizeBytes) {
+    OutstandingBatch(
+        List<OutstandingPublish> outstandingPublishes,
+        int batchSizeBytes,
+        long creationTime,
+        long startNanos,
+        @Nullable String orderingKey) {
       this.outstandingPublishes = outstandingPublishes;
       attempt = 1;
-      creationTime = System.currentTimeMillis();
+      this.creationTime = creationTime;
+      this.startNanos = startNanos;
+      this.orderingKey = orderingKey;
       this.batchSizeBytes = batchSizeBytes;
     }
 
@@ -403,9 +706,18 @@ final class PublisherImpl implements Publisher {
     }
   }
 
+  private static final Function<OutstandingPublish, PubsubMessage> GET_MESSAGE =
+      new Function<OutstandingPublish, PubsubMessage>() {
+        @Override
+        public PubsubMessage apply(OutstandingPublish outstandingPublish) {
+          return outstandingPublish.message;
+        }
+      };
+
   private static final class OutstandingPublish {
     SettableFuture<String> publishResult;
     PubsubMessage message;
+    long spanId = MessageTracing.NOT_SAMPLED;
 
     OutstandingPublish(SettableFuture<String> publishResult, PubsubMessage message) {
       this.publishResult = publishResult;
@@ -418,11 +730,22 @@ final class PublisherImpl implements Publisher {
     if (shutdown.getAndSet(true)) {
       throw new IllegalStateException("Cannot shut down a publisher already shut-down.");
     }
-    if (currentAlarmFuture != null && activeAlarm.getAndSet(false)) {
-      currentAlarmFuture.cancel(false);
-    }
-    publishAllOustanding();
+    messagesBatches.flush();
+    orderingLanes.flush();
     messagesWaiter.waitNoMessages();
+    if (statsExport != null) {
+      statsExport.cancel(false);
+      exportStats();
+      removeExportedStats();
+    }
+    if (sharedResources != null) {
+      if (channelsLeased) {
+        for (Channel channel : channels) {
+          sharedResources.releaseChannel((ManagedChannel) channel);
+        }
+      }
+      sharedResources.release();
+    }
   }
 
   private static long computeNextBackoffDelayMs(OutstandingBatch outstandingBatch) {
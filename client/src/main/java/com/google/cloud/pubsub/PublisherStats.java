@@ -17,24 +17,47 @@
 package com.google.cloud.pubsub;
 
 import javax.annotation.concurrent.Immutable;
+import org.joda.time.Duration;
 
 /**
  * A snapshot of the publisher statistics at the time they were requested from the {@link
  * Publisher}.
+ *
+ * <p>The counters are read one after the other while messages are being published, so they are
+ * only consistent with each other once the publisher is idle.
  */
-//TODO: Finish implementation.
 @Immutable
 public class PublisherStats {
   private final long sentMessages;
   private final long ackedMessages;
   private final long failedMessages;
-  private final long pendingMessages;
+  private final long sentBytes;
+  private final long ackedBytes;
+  private final long failedBytes;
+  private final long sentBatches;
+  private final long retriedBatches;
+  private final Duration flowControlBlockedTime;
+  private final HistogramSnapshot batchQueueLatency;
+  private final HistogramSnapshot publishLatency;
+  private final int maxBatchMessages;
+  private final int maxBatchBytes;
+  private final Duration maxBatchDuration;
 
-  PublisherStats(long sentMessages, long ackedMessages, long failedMessages, long pendingMessages) {
-    this.sentMessages = sentMessages;
-    this.ackedMessages = ackedMessages;
-    this.failedMessages = failedMessages;
-    this.pendingMessages = pendingMessages;
+  private PublisherStats(Builder builder) {
+    sentMessages = builder.sentMessages;
+    ackedMessages = builder.ackedMessages;
+    failedMessages = builder.failedMessages;
+    sentBytes = builder.sentBytes;
+    ackedBytes = builder.ackedBytes;
+    failedBytes = builder.failedBytes;
+    sentBatches = builder.sentBatches;
+    retriedBatches = builder.retriedBatches;
+    flowControlBlockedTime = builder.flowControlBlockedTime;
+    batchQueueLatency = builder.batchQueueLatency;
+    publishLatency = builder.publishLatency;
+    maxBatchMessages = builder.maxBatchMessages;
+    maxBatchBytes = builder.maxBatchBytes;
+    maxBatchDuration = builder.maxBatchDuration;
   }
 
   /** Number of successfully published messages. */
@@ -49,11 +72,146 @@ public class PublisherStats {
 
   /** Number of messages pending to publish, includes message in-flight. */
   public long getPendingMessages() {
-    return pendingMessages;
+    return sentMessages - ackedMessages - failedMessages;
   }
 
   /** Total messages sent, equal to pending + acked + failed messages. */
   public long getSentMessages() {
     return sentMessages;
   }
+
+  /** Serialized size of the successfully published messages. */
+  public long getAckedBytes() {
+    return ackedBytes;
+  }
+
+  /** Serialized size of the messages that failed to publish. */
+  public long getFailedBytes() {
+    return failedBytes;
+  }
+
+  /** Serialized size of the messages pending to publish, includes messages in-flight. */
+  public long getPendingBytes() {
+    return sentBytes - ackedBytes - failedBytes;
+  }
+
+  /** Serialized size of all the messages sent, equal to pending + acked + failed bytes. */
+  public long getSentBytes() {
+    return sentBytes;
+  }
+
+  /** Number of publish calls made, including retries. */
+  public long getSentBatches() {
+    return sentBatches;
+  }
+
+  /** Number of publish calls that have been retried after a failure. */
+  public long getRetriedBatches() {
+    return retriedBatches;
+  }
+
+  /** Total time publishing threads have been blocked waiting for flow control to let them through. */
+  public Duration getFlowControlBlockedTime() {
+    return flowControlBlockedTime;
+  }
+
+  /**
+   * Time, in microseconds, from the first message of a batch being published to the batch being
+   * sent for the first time.
+   */
+  public HistogramSnapshot getBatchQueueLatency() {
+    return batchQueueLatency;
+  }
+
+  /** Round trip time, in microseconds, of the publish calls, including failed ones. */
+  public HistogramSnapshot getPublishLatency() {
+    return publishLatency;
+  }
+
+  /**
+   * Number of messages that triggers a publish call, as currently chosen by adaptive batching or as
+   * configured otherwise.
+   */
+  public int getMaxBatchMessages() {
+    return maxBatchMessages;
+  }
+
+  /** Number of bytes that triggers a publish call. */
+  public int getMaxBatchBytes() {
+    return maxBatchBytes;
+  }
+
+  /**
+   * Time a message waits to be batched before triggering a publish call, as currently chosen by
+   * adaptive batching or as configured otherwise.
+   */
+  public Duration getMaxBatchDuration() {
+    return maxBatchDuration;
+  }
+
+  static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** A builder of {@link PublisherStats}. */
+  static final class Builder {
+    long sentMessages;
+    long ackedMessages;
+    long failedMessages;
+    long sentBytes;
+    long ackedBytes;
+    long failedBytes;
+    long sentBatches;
+    long retriedBatches;
+    Duration flowControlBlockedTime = Duration.ZERO;
+    HistogramSnapshot batchQueueLatency;
+    HistogramSnapshot publishLatency;
+    int maxBatchMessages;
+    int maxBatchBytes;
+    Duration maxBatchDuration = Duration.ZERO;
+
+    private Builder() {}
+
+    Builder setMessages(long sent, long acked, long failed) {
+      sentMessages = sent;
+      ackedMessages = acked;
+      failedMessages = failed;
+      return this;
+    }
+
+    Builder setBytes(long sent, long acked, long failed) {
+      sentBytes = sent;
+      ackedBytes = acked;
+      failedBytes = failed;
+      return this;
+    }
+
+    Builder setBatches(long sent, long retried) {
+      sentBatches = sent;
+      retriedBatches = retried;
+      return this;
+    }
+
+    Builder setFlowControlBlockedTime(Duration blockedTime) {
+      flowControlBlockedTime = blockedTime;
+      return this;
+    }
+
+    Builder setLatencies(HistogramSnapshot batchQueue, HistogramSnapshot publish) {
+      batchQueueLatency = batchQueue;
+      publishLatency = publish;
+      return this;
+    }
+
+    Builder setBatching(int maxMessages, int maxBytes, Duration maxDuration) {
+      maxBatchMessages = maxMessages;
+      maxBatchBytes = maxBytes;
+      maxBatchDuration = maxDuration;
+      return this;
+    }
+
+    PublisherStats build() {
+      return new PublisherStats(this);
+    }
+  }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Executors running the {@link Subscriber.MessageReceiver} calls of subscribers, so receivers that
+ * block do not hold the threads receiving messages and sending acks.
+ *
+ * <p>Each call runs on its own virtual thread when the JDK has them (JDK 21 and later). They are
+ * looked up reflectively, as the client still targets older JDKs, which fall back to a bounded pool
+ * of platform threads instead.
+ */
+final class ReceiverExecutors {
+  private static final Logger logger = LoggerFactory.getLogger(ReceiverExecutors.class);
+
+  private static final long THREAD_KEEP_ALIVE_SECONDS = 60;
+
+  @Nullable private static final Method NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR = findVirtualThreads();
+
+  private ReceiverExecutors() {}
+
+  /**
+   * Returns an executor running each task on a new virtual thread, or on a pool of at most {@code
+   * maxPlatformThreads} threads if virtual threads are not available.
+   */
+  static ExecutorService newReceiverExecutor(int maxPlatformThreads) {
+    Preconditions.checkArgument(maxPlatformThreads > 0);
+    if (NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null) {
+      try {
+        return (ExecutorService) NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR.invoke(null);
+      } catch (ReflectiveOperationException e) {
+        logger.warn("Unable to create virtual threads, falling back to platform threads.", e);
+      }
+    }
+    return newPlatformThreadExecutor(maxPlatformThreads);
+  }
+
+  @VisibleForTesting
+  static boolean hasVirtualThreads() {
+    return NEW_VIRTUAL_THREAD_PER_TASK_EXECUTOR != null;
+  }
+
+  /** Returns a pool of at most {@code maxThreads} platform threads, started as calls come in. */
+  static ExecutorService newPlatformThreadExecutor(int maxThreads) {
+    // Threads are only started as calls come in, and the calls beyond the bound are queued.
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            maxThreads,
+            maxThreads,
+            THREAD_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("cloud-pubsub-receiver-thread-%d")
+                .build());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  @Nullable
+  private static Method findVirtualThreads() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+  }
+}
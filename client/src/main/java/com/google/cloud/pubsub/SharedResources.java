@@ -0,0 +1,256 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.ManagedChannel;
+import io.grpc.netty.GrpcSslContexts;
+import io.grpc.netty.NegotiationType;
+import io.grpc.netty.NettyChannelBuilder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.net.ssl.SSLException;
+
+/**
+ * Threads and channels shared by all the {@link Publisher Publishers} and {@link Subscriber
+ * Subscribers} of the JVM that are not given their own executor or channel builder.
+ *
+ * <p>Clients {@link #acquire() acquire} a reference to the resources and {@link #release() release}
+ * it once shut down, the resources are closed when the last reference is released.
+ *
+ * <p>The executor is capped once for the whole JVM, rather than per client, and its threads are
+ * only started as tasks come in and stopped after a minute without any. Channels are leased: a new
+ * channel is only opened once every open channel carries {@link #LEASES_PER_CHANNEL} leases, up to
+ * a cap, and channels are closed as their leases are released. The channels leased by a client are
+ * distinct from each other as long as the cap allows it, so its connections are spread over them.
+ */
+final class SharedResources {
+  private static final int THREADS_PER_CORE = 5;
+  private static final long THREAD_KEEP_ALIVE_SECONDS = 60;
+  @VisibleForTesting static final int LEASES_PER_CHANNEL = 10;
+  private static final int CHANNELS_PER_CORE = 4;
+  private static final int MAX_INBOUND_MESSAGE_SIZE =
+      20 * 1024 * 1024; // 20MB API maximum message size.
+  private static final int FLOW_CONTROL_WINDOW = 5000000;
+
+  @GuardedBy("SharedResources.class")
+  private static SharedResources instance;
+
+  @GuardedBy("SharedResources.class")
+  private static int references;
+
+  private static final class LeasedChannel {
+    final ManagedChannel channel;
+    int leases;
+
+    LeasedChannel(ManagedChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  private final ScheduledExecutorService executor;
+  private final ExecutorService lifecycleExecutor;
+  private final Function<ScheduledExecutorService, ManagedChannel> channelFactory;
+  private final int maxChannels;
+
+  @GuardedBy("channels")
+  private final List<LeasedChannel> channels;
+
+  @VisibleForTesting
+  SharedResources(
+      int maxThreads,
+      int maxChannels,
+      Function<ScheduledExecutorService, ManagedChannel> channelFactory) {
+    Preconditions.checkArgument(maxThreads > 0);
+    Preconditions.checkArgument(maxChannels > 0);
+    ScheduledThreadPoolExecutor scheduledExecutor =
+        new ScheduledThreadPoolExecutor(
+            maxThreads,
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("cloud-pubsub-shared-thread-%d")
+                .build());
+    scheduledExecutor.setKeepAliveTime(THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+    scheduledExecutor.allowCoreThreadTimeOut(true);
+    scheduledExecutor.setRemoveOnCancelPolicy(true);
+    executor = scheduledExecutor;
+    lifecycleExecutor =
+        Executors.newCachedThreadPool(
+            new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("cloud-pubsub-lifecycle-thread-%d")
+                .build());
+    this.maxChannels = maxChannels;
+    this.channelFactory = Preconditions.checkNotNull(channelFactory);
+    channels = new ArrayList<>();
+  }
+
+  /** Returns the shared resources, creating them if no client holds a reference to them. */
+  static synchronized SharedResources acquire() {
+    if (instance == null) {
+      int numCores = Math.max(1, Runtime.getRuntime().availableProcessors());
+      instance =
+          new SharedResources(
+              numCores * THREADS_PER_CORE,
+              numCores * CHANNELS_PER_CORE,
+              new Function<ScheduledExecutorService, ManagedChannel>() {
+                @Override
+                public ManagedChannel apply(ScheduledExecutorService executor) {
+                  return newPubsubChannel(executor);
+                }
+              });
+    }
+    references++;
+    return instance;
+  }
+
+  /** Releases a reference obtained from {@link #acquire()}, closing the resources if it was last. */
+  void release() {
+    synchronized (SharedResources.class) {
+      Preconditions.checkState(references > 0 && instance == this);
+      if (--references > 0) {
+        return;
+      }
+      instance = null;
+    }
+    shutdown();
+  }
+
+  /** Executor for the short tasks of the clients and their gRPC callbacks. */
+  ScheduledExecutorService getExecutor() {
+    return executor;
+  }
+
+  /**
+   * Executor for tasks that block while clients start or stop, which must not hold the threads of
+   * {@link #getExecutor()} as they may be waiting on its tasks.
+   */
+  ExecutorService getLifecycleExecutor() {
+    return lifecycleExecutor;
+  }
+
+  /** Leases the least leased channel, opening a new one if they all have their share of leases. */
+  ManagedChannel leaseChannel() {
+    return leaseChannels(1, Collections.<ManagedChannel>emptyList()).get(0);
+  }
+
+  /**
+   * Leases channels distinct from each other and from the channels the client already holds. The
+   * least leased channels are picked while they have room for more leases, then new channels are
+   * opened up to the cap, and only then are the client's channels leased again.
+   */
+  List<ManagedChannel> leaseChannels(int count, Collection<ManagedChannel> held) {
+    Preconditions.checkArgument(count > 0);
+    synchronized (channels) {
+      Set<ManagedChannel> taken = Sets.newIdentityHashSet();
+      taken.addAll(held);
+      List<ManagedChannel> leased = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        LeasedChannel channel = leastLeased(taken);
+        if ((channel == null || channel.leases >= LEASES_PER_CHANNEL)
+            && channels.size() < maxChannels) {
+          channel = new LeasedChannel(channelFactory.apply(executor));
+          channels.add(channel);
+        } else if (channel == null) {
+          // The client holds every channel already.
+          channel = leastLeased(Collections.<ManagedChannel>emptySet());
+        }
+        channel.leases++;
+        taken.add(channel.channel);
+        leased.add(channel.channel);
+      }
+      return leased;
+    }
+  }
+
+  /** Returns a lease, closing the channel if it has no leases left. */
+  void releaseChannel(ManagedChannel channel) {
+    synchronized (channels) {
+      for (Iterator<LeasedChannel> it = channels.iterator(); it.hasNext(); ) {
+        LeasedChannel leasedChannel = it.next();
+        if (leasedChannel.channel == channel) {
+          if (--leasedChannel.leases == 0) {
+            it.remove();
+            channel.shutdown();
+          }
+          return;
+        }
+      }
+    }
+    throw new IllegalArgumentException("The channel was not leased from the shared resources.");
+  }
+
+  @GuardedBy("channels")
+  @Nullable
+  private LeasedChannel leastLeased(Set<ManagedChannel> excluded) {
+    LeasedChannel leastLeased = null;
+    for (LeasedChannel channel : channels) {
+      if (!excluded.contains(channel.channel)
+          && (leastLeased == null || channel.leases < leastLeased.leases)) {
+        leastLeased = channel;
+      }
+    }
+    return leastLeased;
+  }
+
+  @VisibleForTesting
+  int getOpenChannels() {
+    synchronized (channels) {
+      return channels.size();
+    }
+  }
+
+  private void shutdown() {
+    synchronized (channels) {
+      for (LeasedChannel channel : channels) {
+        channel.channel.shutdown();
+      }
+      channels.clear();
+    }
+    executor.shutdown();
+    lifecycleExecutor.shutdown();
+  }
+
+  private static ManagedChannel newPubsubChannel(ScheduledExecutorService executor) {
+    try {
+      return NettyChannelBuilder.forAddress(Publisher.PUBSUB_API_ADDRESS, 443)
+          .maxMessageSize(MAX_INBOUND_MESSAGE_SIZE)
+          .flowControlWindow(FLOW_CONTROL_WINDOW)
+          .negotiationType(NegotiationType.TLS)
+          .sslContext(GrpcSslContexts.forClient().ciphers(null).build())
+          .executor(executor)
+          .build();
+    } catch (SSLException e) {
+      throw new IllegalStateException("Failed to set up TLS for the Cloud Pub/Sub channel.", e);
+    }
+  }
+}
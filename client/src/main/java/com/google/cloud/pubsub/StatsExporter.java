@@ -0,0 +1,47 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+/**
+ * Receives snapshots of the statistics of publishers and subscribers, pushed periodically once
+ * set with {@link Publisher.Builder#setStatsExporter} or {@link
+ * Subscriber.Builder#setStatsExporter}.
+ *
+ * <p>Snapshots are pushed from the executor of the publisher or subscriber, so implementations
+ * must only keep or forward them, without blocking. An exporter may be shared by several
+ * publishers and subscribers, even to the same topic or subscription, which it tells apart by
+ * their id, unique within the JVM. A last snapshot is pushed when they shut down, after which they
+ * are removed.
+ *
+ * <p>{@link JmxStatsExporter} and {@link PrometheusStatsExporter} are built-in implementations.
+ */
+public interface StatsExporter {
+  /** Called with the latest statistics of the publisher with the given id, to the given topic. */
+  void exportPublisherStats(String publisherId, String topic, PublisherStats stats);
+
+  /**
+   * Called with the latest statistics of the subscriber with the given id, to the given
+   * subscription.
+   */
+  void exportSubscriberStats(String subscriberId, String subscription, SubscriberStats stats);
+
+  /** Called once the publisher with the given id is shut down, after its last statistics. */
+  void removePublisher(String publisherId);
+
+  /** Called once the subscriber with the given id is stopped, after its last statistics. */
+  void removeSubscriber(String subscriberId);
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Decides how many streams a subscriber keeps open, from what its streams received since the
+ * previous decision.
+ *
+ * <p>Responses carrying many messages mean the streams are reading a backlog, so the streams are
+ * doubled up to the maximum, as long as the outstanding messages are under the flow control
+ * limits: past them, the receivers hold messages back, and more streams would not deliver more.
+ * Neither are streams added while the receiver tasks wait for a thread of the receiver executor:
+ * the receivers are saturated, and more streams would only queue more messages for them.
+ * Responses carrying few messages, or no responses at all, mean the streams are mostly idle, so
+ * a quarter of them are closed at a time, down to the minimum.
+ */
+final class StreamScaler {
+  static final int SCALE_UP_MESSAGES_PER_RESPONSE = 100;
+  static final int SCALE_DOWN_MESSAGES_PER_RESPONSE = 10;
+  // Mean wait of the receiver tasks for a thread past which the receivers are saturated.
+  static final long SATURATED_RECEIVER_QUEUE_MICROS = 10000;
+
+  private final int minStreams;
+  private final int maxStreams;
+
+  StreamScaler(int minStreams, int maxStreams) {
+    Preconditions.checkArgument(minStreams > 0);
+    Preconditions.checkArgument(maxStreams >= minStreams);
+    this.minStreams = minStreams;
+    this.maxStreams = maxStreams;
+  }
+
+  int getMinStreams() {
+    return minStreams;
+  }
+
+  int getMaxStreams() {
+    return maxStreams;
+  }
+
+  /**
+   * Returns the number of streams to keep open.
+   *
+   * @param streams the number of streams open
+   * @param responses the responses received by the streams since the previous decision
+   * @param messages the messages received by the streams since the previous decision
+   * @param underFlowControlLimits whether the outstanding messages are under the flow control
+   *     limits
+   * @param receiverTasks the receiver tasks run since the previous decision
+   * @param receiverQueuedMicros the microseconds these tasks waited for a receiver thread, summed
+   */
+  int nextStreamCount(
+      int streams,
+      long responses,
+      long messages,
+      boolean underFlowControlLimits,
+      long receiverTasks,
+      long receiverQueuedMicros) {
+    long messagesPerResponse = responses == 0 ? 0 : messages / responses;
+    boolean receiversSaturated =
+        receiverTasks > 0
+            && receiverQueuedMicros / receiverTasks >= SATURATED_RECEIVER_QUEUE_MICROS;
+    int next = streams;
+    if (messagesPerResponse >= SCALE_UP_MESSAGES_PER_RESPONSE
+        && underFlowControlLimits
+        && !receiversSaturated) {
+      next = streams * 2;
+    } else if (messagesPerResponse < SCALE_DOWN_MESSAGES_PER_RESPONSE) {
+      next = streams - Math.max(1, streams / 4);
+    }
+    return Math.min(maxStreams, Math.max(minStreams, next));
+  }
+}
@@ -17,11 +17,13 @@
 package com.google.cloud.pubsub;
 
 import com.google.auth.Credentials;
+import com.google.cloud.pubsub.Subscriber.BatchMessageReceiver;
 import com.google.cloud.pubsub.Subscriber.MessageReceiver;
 import com.google.common.collect.Lists;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
 import com.google.pubsub.v1.StreamingPullRequest;
 import com.google.pubsub.v1.StreamingPullResponse;
 import com.google.pubsub.v1.SubscriberGrpc;
@@ -34,8 +36,12 @@ import io.grpc.stub.ClientCalls;
 import io.grpc.stub.ClientResponseObserver;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 import org.joda.time.Duration;
 import org.slf4j.Logger;
@@ -52,40 +58,69 @@ final class StreamingSubscriberConnection extends AbstractSubscriberConnection {
 
   private final Channel channel;
   private final Credentials credentials;
+  // Shared with the connections that held the same index before, so restarts survive scaling.
+  private final StripedCounter streamRestarts;
 
-  private ClientCallStreamObserver<StreamingPullRequest> requestObserver;
+  // Received since last taken, to scale the number of streams.
+  private final AtomicLong receivedResponses = new AtomicLong();
+  private final AtomicLong receivedMessages = new AtomicLong();
+
+  private volatile ClientCallStreamObserver<StreamingPullRequest> requestObserver;
 
   public StreamingSubscriberConnection(
       String subscription,
       Credentials credentials,
-      MessageReceiver receiver,
+      @Nullable MessageReceiver receiver,
+      @Nullable BatchMessageReceiver batchReceiver,
+      Map<String, MessageCodec> codecs,
       Duration ackExpirationPadding,
       int streamAckDeadlineSeconds,
-      Distribution ackLatencyDistribution,
+      LatencyHistogram ackLatencies,
+      WindowedLatencyHistogram recentAckLatencies,
+      AckFlushPolicy ackFlushPolicy,
+      AckCounters ackCounters,
+      StripedCounter streamRestarts,
+      @Nullable MessageTracing tracing,
       Channel channel,
       FlowController flowController,
-      ScheduledExecutorService executor) {
+      ScheduledExecutorService executor,
+      ExecutorService receiverExecutor,
+      AlarmScheduler alarmScheduler) {
     super(
         subscription,
         receiver,
+        batchReceiver,
+        codecs,
         ackExpirationPadding,
-        ackLatencyDistribution,
+        ackLatencies,
+        recentAckLatencies,
+        ackFlushPolicy,
+        ackCounters,
+        tracing,
         flowController,
-        executor);
+        executor,
+        receiverExecutor,
+        alarmScheduler);
     this.credentials = credentials;
     this.channel = channel;
+    this.streamRestarts = streamRestarts;
     setMessageDeadlineSeconds(streamAckDeadlineSeconds);
   }
 
   @Override
   protected void doStop() {
     super.doStop();
-    requestObserver.onError(Status.CANCELLED.asException());
+    synchronized (ackSendLock) {
+      requestObserver.onError(Status.CANCELLED.asException());
+    }
   }
 
   @Override
   void initialize() {
     final SettableFuture<Void> errorFuture = SettableFuture.create();
+    // The request for the next response waiting for flow control capacity, if any. It is dropped
+    // when the stream ends, so the flow controller does not keep the dead stream around.
+    final AtomicReference<Runnable> pendingRequest = new AtomicReference<>();
     final ClientResponseObserver<StreamingPullRequest, StreamingPullResponse> responseObserver =
         new ClientResponseObserver<StreamingPullRequest, StreamingPullResponse>() {
           @Override
@@ -96,41 +131,70 @@ final class StreamingSubscriberConnection extends AbstractSubscriberConnection {
 
           @Override
           public void onNext(StreamingPullResponse response) {
+            receivedResponses.incrementAndGet();
+            receivedMessages.addAndGet(response.getReceivedMessagesCount());
             processReceivedMessages(response.getReceivedMessagesList());
-            // Only if not shutdown we will request one more batch of messages to be delivered.
-            if (isAlive()) {
-              requestObserver.request(1);
-            }
+            // The next response is only requested once the outstanding messages are back under the
+            // flow control limits, so slow receivers hold back the stream.
+            final ClientCallStreamObserver<StreamingPullRequest> streamObserver = requestObserver;
+            Runnable requestNext =
+                new Runnable() {
+                  @Override
+                  public void run() {
+                    // Only if not shutdown or dropped we will request one more batch of messages
+                    // to be delivered.
+                    if (pendingRequest.compareAndSet(this, null) && isAlive()) {
+                      streamObserver.request(1);
+                    }
+                  }
+                };
+            pendingRequest.set(requestNext);
+            flowController.whenCapacity(requestNext);
           }
 
           @Override
           public void onError(Throwable t) {
             logger.debug("Terminated streaming with exception", t);
+            dropPendingRequest();
             errorFuture.setException(t);
           }
 
           @Override
           public void onCompleted() {
             logger.debug("Streaming pull terminated successfully!");
+            dropPendingRequest();
             errorFuture.set(null);
           }
+
+          private void dropPendingRequest() {
+            Runnable requestNext = pendingRequest.getAndSet(null);
+            if (requestNext != null) {
+              flowController.cancelWhenCapacity(requestNext);
+            }
+          }
         };
-    final ClientCallStreamObserver<StreamingPullRequest> requestObserver =
-        (ClientCallStreamObserver<StreamingPullRequest>)
-            (ClientCalls.asyncBidiStreamingCall(
-                channel.newCall(
-                    SubscriberGrpc.METHOD_STREAMING_PULL,
-                    CallOptions.DEFAULT.withCallCredentials(MoreCallCredentials.from(credentials))),
-                responseObserver));
     logger.debug(
         "Initializing stream to subscription {} with deadline {}",
         subscription,
         getMessageDeadlineSeconds());
-    requestObserver.onNext(
-        StreamingPullRequest.newBuilder()
-            .setSubscription(subscription)
-            .setStreamAckDeadlineSeconds(getMessageDeadlineSeconds())
-            .build());
+    final ClientCallStreamObserver<StreamingPullRequest> requestObserver;
+    // The new stream is visible to the ack senders as soon as it starts, so they must wait for the
+    // initial request to be written first.
+    synchronized (ackSendLock) {
+      requestObserver =
+          (ClientCallStreamObserver<StreamingPullRequest>)
+              (ClientCalls.asyncBidiStreamingCall(
+                  channel.newCall(
+                      SubscriberGrpc.METHOD_STREAMING_PULL,
+                      CallOptions.DEFAULT.withCallCredentials(
+                          MoreCallCredentials.from(credentials))),
+                  responseObserver));
+      requestObserver.onNext(
+          StreamingPullRequest.newBuilder()
+              .setSubscription(subscription)
+              .setStreamAckDeadlineSeconds(getMessageDeadlineSeconds())
+              .build());
+    }
     requestObserver.request(1);
 
     Futures.addCallback(
@@ -141,6 +205,7 @@ final class StreamingSubscriberConnection extends AbstractSubscriberConnection {
             channelReconnectBackoff = INITIAL_CHANNEL_RECONNECT_BACKOFF;
             // The stream was closed. And any case we want to reopen it to continue receiving
             // messages.
+            streamRestarts.increment();
             initialize();
           }
 
@@ -150,6 +215,7 @@ final class StreamingSubscriberConnection extends AbstractSubscriberConnection {
             if (isRetryable(errorStatus) && isAlive()) {
               long backoffMillis = channelReconnectBackoff.getMillis();
               channelReconnectBackoff = channelReconnectBackoff.plus(backoffMillis);
+              streamRestarts.increment();
               executor.schedule(
                   new Runnable() {
                     @Override
@@ -175,14 +241,14 @@ final class StreamingSubscriberConnection extends AbstractSubscriberConnection {
 
   @Override
   void sendAckOperations(
-      List<String> acksToSend, List<PendingModifyAckDeadline> ackDeadlineExtensions) {
+      List<ByteString> acksToSend, List<PendingModifyAckDeadline> ackDeadlineExtensions) {
 
     // Send the modify ack deadlines in batches as not to exceed the max request
     // size.
-    List<List<String>> ackChunks = Lists.partition(acksToSend, MAX_PER_REQUEST_CHANGES);
+    List<List<ByteString>> ackChunks = Lists.partition(acksToSend, MAX_PER_REQUEST_CHANGES);
     List<List<PendingModifyAckDeadline>> modifyAckDeadlineChunks =
         Lists.partition(ackDeadlineExtensions, MAX_PER_REQUEST_CHANGES);
-    Iterator<List<String>> ackChunksIt = ackChunks.iterator();
+    Iterator<List<ByteString>> ackChunksIt = ackChunks.iterator();
     Iterator<List<PendingModifyAckDeadline>> modifyAckDeadlineChunksIt =
         modifyAckDeadlineChunks.iterator();
 
@@ -192,25 +258,40 @@ final class StreamingSubscriberConnection extends AbstractSubscriberConnection {
       if (modifyAckDeadlineChunksIt.hasNext()) {
         List<PendingModifyAckDeadline> modAckChunk = modifyAckDeadlineChunksIt.next();
         for (PendingModifyAckDeadline modifyAckDeadline : modAckChunk) {
-          for (String ackId : modifyAckDeadline.ackIds) {
+          for (ByteString ackId : modifyAckDeadline.ackIds) {
             requestBuilder.addModifyDeadlineSeconds(modifyAckDeadline.deadlineExtensionSeconds)
-                          .addModifyDeadlineAckIds(ackId);
+                          .addModifyDeadlineAckIdsBytes(ackId);
           }
         }
       }
       if (ackChunksIt.hasNext()) {
-        List<String> ackChunk = ackChunksIt.next();
-        requestBuilder.addAllAckIds(ackChunk);
+        for (ByteString ackId : ackChunksIt.next()) {
+          requestBuilder.addAckIdsBytes(ackId);
+        }
       }
       requestObserver.onNext(requestBuilder.build());
     }
+    ackCounters.sentAcks.add(acksToSend.size());
+  }
+
+  /** Returns the number of responses received since last taken, and resets it. */
+  long takeReceivedResponses() {
+    return receivedResponses.getAndSet(0);
+  }
+
+  /** Returns the number of messages received since last taken, and resets it. */
+  long takeReceivedMessages() {
+    return receivedMessages.getAndSet(0);
   }
 
   public void updateStreamAckDeadline(int newAckDeadlineSeconds) {
     setMessageDeadlineSeconds(newAckDeadlineSeconds);
-    requestObserver.onNext(
-        StreamingPullRequest.newBuilder()
-            .setStreamAckDeadlineSeconds(newAckDeadlineSeconds)
-            .build());
+    // Written under the same lock as the ack operations, as gRPC streams are not thread safe.
+    synchronized (ackSendLock) {
+      requestObserver.onNext(
+          StreamingPullRequest.newBuilder()
+              .setStreamAckDeadlineSeconds(newAckDeadlineSeconds)
+              .build());
+    }
   }
 }
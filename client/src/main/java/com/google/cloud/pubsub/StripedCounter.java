@@ -0,0 +1,77 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads concurrent updates over several cells, in the spirit of {@code
+ * LongAdder}, so threads updating it do not contend on a single memory location.
+ *
+ * <p>Updates never allocate. Reads add up all the cells, so they are more expensive than updates
+ * and, while updates are happening, only approximate.
+ */
+final class StripedCounter {
+  // Cells are spaced by this many longs so that each one lives in its own cache line.
+  private static final int CELL_PADDING = 8;
+  private static final int CELLS = cellsCount();
+
+  private final AtomicLongArray cells = new AtomicLongArray(CELLS * CELL_PADDING);
+
+  void increment() {
+    add(1);
+  }
+
+  void add(long delta) {
+    cells.getAndAdd(cellIndex(), delta);
+  }
+
+  long sum() {
+    long sum = 0;
+    for (int i = 0; i < CELLS; i++) {
+      sum += cells.get(i * CELL_PADDING);
+    }
+    return sum;
+  }
+
+  /** Returns the sum and resets the counter, without losing concurrent updates. */
+  long sumThenReset() {
+    long sum = 0;
+    for (int i = 0; i < CELLS; i++) {
+      sum += cells.getAndSet(i * CELL_PADDING, 0);
+    }
+    return sum;
+  }
+
+  private static int cellIndex() {
+    return (threadHash() & (CELLS - 1)) * CELL_PADDING;
+  }
+
+  /** Hash of the current thread, to spread threads over stripes. */
+  static int threadHash() {
+    long id = Thread.currentThread().getId();
+    // Thread IDs are sequential, mix them so that neighbour threads land on different cells.
+    int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return hash ^ (hash >>> 16);
+  }
+
+  private static int cellsCount() {
+    int processors = Math.max(1, Runtime.getRuntime().availableProcessors());
+    // The smallest power of two that is greater or equal to twice the number of processors.
+    return Integer.highestOneBit(2 * processors - 1) << 1;
+  }
+}
@@ -26,6 +26,9 @@ import com.google.common.util.concurrent.Service;
 import com.google.pubsub.v1.PubsubMessage;
 import io.grpc.ManagedChannelBuilder;
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ScheduledExecutorService;
 import org.joda.time.Duration;
 
@@ -113,6 +116,24 @@ public interface Subscriber extends Service {
     ListenableFuture<AckReply> receiveMessage(PubsubMessage message);
   }
 
+  /**
+   * Users of the {@link Subscriber} can implement this interface, rather than {@link
+   * MessageReceiver}, to receive the messages in the batches they are pulled in.
+   *
+   * <p>Each batch is handed in a single call, rather than in one call per message, which saves the
+   * dispatch overhead of small messages and suits receivers writing messages out in batches.
+   */
+  interface BatchMessageReceiver {
+    /**
+     * Called when a batch of messages is received by the subscriber.
+     *
+     * @return A future of the replies to the messages, in the order of the messages. A single reply
+     *     to all the messages can be given with {@link java.util.Collections#nCopies}. A failed
+     *     future nacks all the messages.
+     */
+    ListenableFuture<List<AckReply>> receiveMessages(List<PubsubMessage> messages);
+  }
+
   /** Subscription for which the subscriber is streaming messages. */
   String getSubscription();
 
@@ -143,7 +164,9 @@ public interface Subscriber extends Service {
 
     String subscription;
     Optional<Credentials> credentials;
+    // Only one of the receivers is set.
     MessageReceiver receiver;
+    BatchMessageReceiver batchReceiver;
 
     Duration ackExpirationPadding;
 
@@ -153,6 +176,23 @@ public interface Subscriber extends Service {
     Optional<ScheduledExecutorService> executor;
     Optional<ManagedChannelBuilder<? extends ManagedChannelBuilder<?>>> channelBuilder;
 
+    Map<String, MessageCodec> codecs;
+
+    Optional<Integer> virtualThreadDispatch;
+
+    Optional<Integer> minStreams;
+    Optional<Integer> maxStreams;
+
+    Optional<StatsExporter> statsExporter;
+    Duration statsExportInterval;
+
+    Optional<MessageTraceListener> traceListener;
+    double traceSamplingRate;
+
+    int maxAckBatchSize;
+    Duration minAckBatchDelay;
+    Duration maxAckBatchDelay;
+
     /**
      * Constructs a new {@link Builder}.
      *
@@ -164,13 +204,30 @@ public interface Subscriber extends Service {
      *     messages
      */
     public static Builder newBuilder(String subscription, MessageReceiver receiver) {
-      return new Builder(subscription, receiver);
+      return new Builder(subscription, Preconditions.checkNotNull(receiver), null);
+    }
+
+    /**
+     * Constructs a new {@link Builder} of a {@link Subscriber} delivering messages in batches.
+     *
+     * @param subscription Cloud Pub/Sub subscription to bind the subscriber to
+     * @param receiver an implementation of {@link BatchMessageReceiver} used to process the
+     *     received messages
+     */
+    public static Builder newBuilder(String subscription, BatchMessageReceiver receiver) {
+      return new Builder(subscription, null, Preconditions.checkNotNull(receiver));
     }
 
     Builder(String subscription, MessageReceiver receiver) {
+      this(subscription, receiver, null);
+    }
+
+    private Builder(
+        String subscription, MessageReceiver receiver, BatchMessageReceiver batchReceiver) {
       setDefaults();
       this.subscription = subscription;
       this.receiver = receiver;
+      this.batchReceiver = batchReceiver;
     }
 
     private void setDefaults() {
@@ -180,6 +237,17 @@ public interface Subscriber extends Service {
       maxOutstandingBytes = Optional.absent();
       maxOutstandingMessages = Optional.absent();
       executor = Optional.absent();
+      codecs = new HashMap<>(MessageCodecs.DEFAULT_CODECS);
+      virtualThreadDispatch = Optional.absent();
+      minStreams = Optional.absent();
+      maxStreams = Optional.absent();
+      statsExporter = Optional.absent();
+      statsExportInterval = Duration.ZERO;
+      traceListener = Optional.absent();
+      traceSamplingRate = 0;
+      maxAckBatchSize = AbstractSubscriberConnection.MAX_PENDING_ACKS;
+      minAckBatchDelay = AbstractSubscriberConnection.MIN_PENDING_ACKS_SEND_DELAY;
+      maxAckBatchDelay = AbstractSubscriberConnection.PENDING_ACKS_SEND_DELAY;
     }
 
     /**
@@ -253,12 +321,124 @@ public interface Subscriber extends Service {
       return this;
     }
 
-    /** Gives the ability to set a custom executor. */
+    /**
+     * Adds a codec to decode the messages encoded with it by {@link Publisher.Builder#setCompression
+     * publishers}, replacing any codec of the same name. The codecs in {@link MessageCodecs} are
+     * known by default.
+     *
+     * <p>Messages are decoded before being handed to the {@link MessageReceiver}. Messages encoded
+     * with codecs not known to the subscriber are handed as they are, and messages that fail to
+     * decode are nacked, including messages the codecs in {@link MessageCodecs} find to decode to
+     * more than the maximum size of a message.
+     */
+    public Builder addMessageCodec(MessageCodec codec) {
+      codecs.put(Preconditions.checkNotNull(codec).getName(), codec);
+      return this;
+    }
+
+    /**
+     * Sets the maximum number of acks and nacks sent together; once that many are pending they
+     * are sent right away. Defaults to 1000.
+     *
+     * @param acks must be greater than 0
+     */
+    public Builder setMaxAckBatchSize(int acks) {
+      Preconditions.checkArgument(acks > 0);
+      maxAckBatchSize = acks;
+      return this;
+    }
+
+    /**
+     * Sets the bounds of the delay acks and nacks are held for, to be sent together. Defaults to
+     * 10ms and 100ms.
+     *
+     * <p>The delay follows the ack rate: it grows to the maximum as the rate gets close to a full
+     * batch per maximum delay, and shrinks to the minimum at low rates, where holding acks would not
+     * save requests and only makes redeliveries more likely.
+     */
+    public Builder setAckBatchDelay(Duration minDelay, Duration maxDelay) {
+      Preconditions.checkArgument(minDelay.getMillis() >= 0);
+      Preconditions.checkArgument(maxDelay.compareTo(minDelay) >= 0);
+      minAckBatchDelay = minDelay;
+      maxAckBatchDelay = maxDelay;
+      return this;
+    }
+
+    /**
+     * Calls the {@link MessageReceiver} of each message on its own virtual thread, rather than on
+     * the executor, for receivers that block, e.g. on I/O. The executor is then only used to
+     * receive messages, send acks and run timers, so blocked receivers do not stall the
+     * subscription.
+     *
+     * <p>Virtual threads require JDK 21 or later, older JDKs run the receivers on a pool of
+     * platform threads instead. The number of receivers in flight is still bounded by {@link
+     * #setMaxOutstandingMessages}.
+     *
+     * @param maxPlatformThreads maximum number of threads of the pool used on JDKs without virtual
+     *     threads, must be greater than 0
+     */
+    public Builder setVirtualThreadDispatch(int maxPlatformThreads) {
+      Preconditions.checkArgument(maxPlatformThreads > 0);
+      this.virtualThreadDispatch = Optional.of(maxPlatformThreads);
+      return this;
+    }
+
+    /**
+     * Sets the bounds of the number of streams the subscriber receives messages on. By default it
+     * keeps 10 streams per core open.
+     *
+     * <p>The subscriber starts with the minimum, and every 10 seconds adds streams while they
+     * read a backlog and the outstanding messages are under the flow control limits, and closes
+     * streams that are mostly idle. Streams are closed once their outstanding messages are
+     * processed.
+     *
+     * @param minStreams must be greater than 0
+     * @param maxStreams must be greater or equal to {@code minStreams}
+     */
+    public Builder setStreamCount(int minStreams, int maxStreams) {
+      Preconditions.checkArgument(minStreams > 0);
+      Preconditions.checkArgument(maxStreams >= minStreams);
+      this.minStreams = Optional.of(minStreams);
+      this.maxStreams = Optional.of(maxStreams);
+      return this;
+    }
+
+    /**
+     * Gives the ability to set a custom executor, which also runs the {@link MessageReceiver} calls
+     * unless {@link #setVirtualThreadDispatch} is set. Without one, the receivers run on a pool of
+     * threads of the subscriber's own, so they cannot stall the threads shared by the clients of
+     * the JVM.
+     */
     public Builder setExecutor(ScheduledExecutorService executor) {
       this.executor = Optional.of(executor);
       return this;
     }
 
+    /**
+     * Pushes a snapshot of the {@link Subscriber#getStats() statistics} to the exporter at the
+     * given interval, and a last one on shutdown. The snapshots are taken from counters updated as
+     * messages go by, so exporting never holds back the receivers.
+     */
+    public Builder setStatsExporter(StatsExporter exporter, Duration interval) {
+      Preconditions.checkArgument(interval.getMillis() > 0);
+      this.statsExporter = Optional.of(Preconditions.checkNotNull(exporter));
+      this.statsExportInterval = interval;
+      return this;
+    }
+
+    /**
+     * Reports the steps of a sample of the received messages to the listener, from their reception
+     * to their ack being sent, to tell the time spent in the receiver from the time spent waiting.
+     *
+     * @param samplingRate share of the messages traced, greater than 0 and at most 1
+     */
+    public Builder setTraceListener(MessageTraceListener listener, double samplingRate) {
+      Preconditions.checkArgument(samplingRate > 0 && samplingRate <= 1);
+      this.traceListener = Optional.of(Preconditions.checkNotNull(listener));
+      this.traceSamplingRate = samplingRate;
+      return this;
+    }
+
     public Subscriber build() throws IOException {
       return new SubscriberImpl(this);
     }
@@ -20,61 +20,123 @@ import com.google.auth.Credentials;
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.AbstractService;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.grpc.Channel;
+import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
-import io.grpc.netty.GrpcSslContexts;
-import io.grpc.netty.NegotiationType;
-import io.grpc.netty.NettyChannelBuilder;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 import org.joda.time.Duration;
+import org.joda.time.Instant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /** Implementation of {@link Subscriber}. */
 public class SubscriberImpl extends AbstractService implements Subscriber {
-  private static final int THREADS_PER_CHANNEL = 5;
   @VisibleForTesting static final int CHANNELS_PER_CORE = 10;
-  private static final int MAX_INBOUND_MESSAGE_SIZE =
-      20 * 1024 * 1024; // 20MB API maximum message size.
   private static final int INITIAL_ACK_DEADLINE_SECONDS = 10;
   private static final int MAX_ACK_DEADLINE_SECONDS = 600;
   private static final int MIN_ACK_DEADLINE_SECONDS = 10;
   private static final Duration ACK_DEADLINE_UPDATE_PERIOD = Duration.standardMinutes(1);
   private static final double PERCENTILE_FOR_ACK_DEADLINE_UPDATES = 99.9;
+  // The ack deadlines follow the ack latencies of the last minutes.
+  private static final int ACK_LATENCY_WINDOWS = 6;
+  private static final Duration ACK_LATENCY_WINDOW = Duration.standardSeconds(30);
+  private static final Duration STREAM_SCALING_PERIOD = Duration.standardSeconds(10);
+  private static final int RECEIVER_THREADS_PER_CORE = 5;
 
   private static final Logger logger = LoggerFactory.getLogger(SubscriberImpl.class);
 
+  private static final AtomicInteger lastStatsExporterId = new AtomicInteger();
+
   private final String subscription;
   private final Optional<Integer> maxOutstandingBytes;
   private final Optional<Integer> maxOutstandingMessages;
   private final Duration ackExpirationPadding;
   private final ScheduledExecutorService executor;
-  private final Distribution ackLatencyDistribution =
-      new Distribution(MAX_ACK_DEADLINE_SECONDS + 1);
-  private final int numChannels;
+  // Runs the connections start and stop, which block until they are done.
+  private final ExecutorService lifecycleExecutor;
+  // Runs the receiver calls: the user provided executor, or a pool of the subscriber's own so
+  // receivers that block do not stall the shared executor, unless virtual thread dispatch is on.
+  private final ExecutorService receiverExecutor;
+  private final AlarmScheduler alarmScheduler;
+  // Only set when the executor or the channels are not provided by the user.
+  @Nullable private final SharedResources sharedResources;
+  // Set once the resources are released, either when stopping or when failing.
+  private final AtomicBoolean resourcesReleased = new AtomicBoolean();
+  private final AckCounters ackCounters = new AckCounters();
+  // Stream restarts by connection index, indexes are reused as the streams are scaled.
+  private final List<StripedCounter> streamRestarts;
+  // In microseconds.
+  private final LatencyHistogram ackLatencies = new LatencyHistogram();
+  private final WindowedLatencyHistogram recentAckLatencies =
+      new WindowedLatencyHistogram(ACK_LATENCY_WINDOWS, ACK_LATENCY_WINDOW.getMillis());
+  private final StreamScaler streamScaler;
   private final FlowController flowController;
-  private final ManagedChannelBuilder<? extends ManagedChannelBuilder<?>> channelBuilder;
+  @Nullable private final ManagedChannelBuilder<? extends ManagedChannelBuilder<?>> channelBuilder;
+  // Channels leased from the shared resources, reused by the polling connections on fallback.
+  private final List<ManagedChannel> leasedChannels;
   private final Credentials credentials;
-  private final MessageReceiver receiver;
+  @Nullable private final MessageReceiver receiver;
+  @Nullable private final BatchMessageReceiver batchReceiver;
+  private final Map<String, MessageCodec> codecs;
+  private final int maxAckBatchSize;
+  private final Duration minAckBatchDelay;
+  private final Duration maxAckBatchDelay;
   private final List<StreamingSubscriberConnection> streamingSubscriberConnections;
   private final List<PollingSubscriberConnection> pollingSubscriberConnections;
   private ScheduledFuture<?> ackDeadlineUpdater;
+  @Nullable private ScheduledFuture<?> streamScalingUpdater;
+  @Nullable private final StatsExporter statsExporter;
+  private final Duration statsExportInterval;
+  @Nullable private ScheduledFuture<?> statsExport;
+  // Tells the subscriber apart from the others to the same subscription in the exported statistics.
+  private final String statsExporterId = "subscriber-" + lastStatsExporterId.incrementAndGet();
+  // Only set with a trace listener.
+  @Nullable private final MessageTracing tracing;
   private int streamAckDeadlineSeconds;
 
+  private final Listener streamingConnectionsListener =
+      new Listener() {
+        @Override
+        public void failed(State from, Throwable failure) {
+          // If a connection failed is because of a fatal error, we should fail the
+          // whole subscriber.
+          stopAllStreamingConnections();
+          if (failure instanceof StatusRuntimeException
+              && ((StatusRuntimeException) failure).getStatus().getCode()
+                  == Status.Code.UNIMPLEMENTED) {
+            logger.info("Unable to open streaming connections, falling back to polling.");
+            startPollingConnections();
+            return;
+          }
+          notifyFailed(failure);
+          releaseResourcesOnFailure();
+        }
+      };
+
   public SubscriberImpl(SubscriberImpl.Builder builder) throws IOException {
     receiver = builder.receiver;
+    batchReceiver = builder.batchReceiver;
+    codecs = ImmutableMap.copyOf(builder.codecs);
+    maxAckBatchSize = builder.maxAckBatchSize;
+    minAckBatchDelay = builder.minAckBatchDelay;
+    maxAckBatchDelay = builder.maxAckBatchDelay;
     maxOutstandingBytes = builder.maxOutstandingBytes;
     maxOutstandingMessages = builder.maxOutstandingMessages;
     subscription = builder.subscription;
@@ -85,28 +147,46 @@ public class SubscriberImpl extends AbstractService implements Subscriber {
             Ints.saturatedCast(ackExpirationPadding.getStandardSeconds()));
 
     flowController =
-        new FlowController(builder.maxOutstandingBytes, builder.maxOutstandingBytes, false);
+        new FlowController(builder.maxOutstandingMessages, builder.maxOutstandingBytes, false);
 
-    numChannels = Math.max(1, Runtime.getRuntime().availableProcessors()) * CHANNELS_PER_CORE;
+    int defaultStreams =
+        Math.max(1, Runtime.getRuntime().availableProcessors()) * CHANNELS_PER_CORE;
+    streamScaler =
+        new StreamScaler(
+            builder.minStreams.or(defaultStreams), builder.maxStreams.or(defaultStreams));
+    sharedResources =
+        builder.executor.isPresent() && builder.channelBuilder.isPresent()
+            ? null
+            : SharedResources.acquire();
     executor =
+        builder.executor.isPresent() ? builder.executor.get() : sharedResources.getExecutor();
+    lifecycleExecutor =
+        builder.executor.isPresent() ? executor : sharedResources.getLifecycleExecutor();
+    if (builder.virtualThreadDispatch.isPresent()) {
+      receiverExecutor =
+          ReceiverExecutors.newReceiverExecutor(builder.virtualThreadDispatch.get());
+    } else if (builder.executor.isPresent()) {
+      receiverExecutor = executor;
+    } else {
+      receiverExecutor =
+          ReceiverExecutors.newPlatformThreadExecutor(
+              Math.max(1, Runtime.getRuntime().availableProcessors())
+                  * RECEIVER_THREADS_PER_CORE);
+    }
+    // A user provided executor also schedules the alarms, otherwise they go on the shared wheel.
+    alarmScheduler =
         builder.executor.isPresent()
-            ? builder.executor.get()
-            : Executors.newScheduledThreadPool(
-                numChannels * THREADS_PER_CHANNEL,
-                new ThreadFactoryBuilder()
-                    .setDaemon(true)
-                    .setNameFormat("cloud-pubsub-subscriber-thread-%d")
-                    .build());
-
-    channelBuilder =
-        builder.channelBuilder.isPresent()
-            ? builder.channelBuilder.get()
-            : NettyChannelBuilder.forAddress(PUBSUB_API_ADDRESS, 443)
-                .maxMessageSize(MAX_INBOUND_MESSAGE_SIZE)
-                .flowControlWindow(5000000) // 2.5 MB
-                .negotiationType(NegotiationType.TLS)
-                .sslContext(GrpcSslContexts.forClient().ciphers(null).build())
-                .executor(executor);
+            ? AlarmScheduler.of(executor)
+            : AlarmScheduler.onTimingWheel(executor);
+
+    channelBuilder = builder.channelBuilder.orNull();
+    statsExporter = builder.statsExporter.orNull();
+    statsExportInterval = builder.statsExportInterval;
+    tracing =
+        builder.traceListener.isPresent()
+            ? new MessageTracing(builder.traceListener.get(), builder.traceSamplingRate)
+            : null;
+    leasedChannels = new ArrayList<>();
 
     credentials =
         builder.credentials.isPresent()
@@ -114,14 +194,33 @@ public class SubscriberImpl extends AbstractService implements Subscriber {
             : GoogleCredentials.getApplicationDefault()
                 .createScoped(Collections.singletonList(PUBSUB_API_SCOPE));
 
-    streamingSubscriberConnections = new ArrayList<StreamingSubscriberConnection>(numChannels);
-    pollingSubscriberConnections = new ArrayList<PollingSubscriberConnection>(numChannels);
+    streamingSubscriberConnections =
+        new ArrayList<StreamingSubscriberConnection>(streamScaler.getMaxStreams());
+    pollingSubscriberConnections =
+        new ArrayList<PollingSubscriberConnection>(streamScaler.getMaxStreams());
+    streamRestarts = new ArrayList<>(streamScaler.getMaxStreams());
+    for (int i = 0; i < streamScaler.getMaxStreams(); i++) {
+      streamRestarts.add(new StripedCounter());
+    }
   }
 
   @Override
   protected void doStart() {
     logger.debug("Starting subscriber group.");
     startStreamingConnections();
+    if (statsExporter != null) {
+      statsExport =
+          executor.scheduleAtFixedRate(
+              new Runnable() {
+                @Override
+                public void run() {
+                  exportStats();
+                }
+              },
+              statsExportInterval.getMillis(),
+              statsExportInterval.getMillis(),
+              TimeUnit.MILLISECONDS);
+    }
     notifyStarted();
   }
 
@@ -129,42 +228,111 @@ public class SubscriberImpl extends AbstractService implements Subscriber {
   protected void doStop() {
     stopAllStreamingConnections();
     stopAllPollingConnections();
+    if (statsExport != null) {
+      statsExport.cancel(false);
+      // The connections are stopped, so the last snapshot has all the acks.
+      exportStats();
+      removeExportedStats();
+    }
+    releaseResources();
     notifyStopped();
   }
 
+  /** Releases what {@link #doStop} would, as it is not called once the subscriber failed. */
+  private void releaseResourcesOnFailure() {
+    if (statsExport != null) {
+      statsExport.cancel(false);
+      removeExportedStats();
+    }
+    releaseResources();
+  }
+
+  private void releaseResources() {
+    if (!resourcesReleased.compareAndSet(false, true)) {
+      return;
+    }
+    if (receiverExecutor != executor) {
+      // The connections only stop once their messages are processed, so no calls are pending.
+      receiverExecutor.shutdown();
+    }
+    if (sharedResources != null) {
+      synchronized (leasedChannels) {
+        for (ManagedChannel channel : leasedChannels) {
+          sharedResources.releaseChannel(channel);
+        }
+        leasedChannels.clear();
+      }
+      sharedResources.release();
+    }
+  }
+
+  private void exportStats() {
+    try {
+      statsExporter.exportSubscriberStats(statsExporterId, subscription, getStats());
+    } catch (RuntimeException e) {
+      // Caught, as the export would not be scheduled again otherwise.
+      logger.warn("Failed to export the subscriber statistics.", e);
+    }
+  }
+
+  private void removeExportedStats() {
+    try {
+      statsExporter.removeSubscriber(statsExporterId);
+    } catch (RuntimeException e) {
+      logger.warn("Failed to remove the subscriber statistics.", e);
+    }
+  }
+
+  /**
+   * Returns the channel of the connection with the given index, the shared channels leased for a
+   * connection are kept for the connection of the same index if falling back to polling.
+   */
+  private Channel getChannel(int connection) {
+    if (channelBuilder != null) {
+      return channelBuilder.build();
+    }
+    synchronized (leasedChannels) {
+      if (connection == leasedChannels.size()) {
+        // Each connection gets its own channel, while the shared channels allow it.
+        leasedChannels.add(sharedResources.leaseChannels(1, leasedChannels).get(0));
+      }
+      return leasedChannels.get(connection);
+    }
+  }
+
+  private AckFlushPolicy newAckFlushPolicy() {
+    return new AckFlushPolicy(
+        maxAckBatchSize, minAckBatchDelay, maxAckBatchDelay, System.nanoTime());
+  }
+
+  private StreamingSubscriberConnection newStreamingConnection(int connection) {
+    return new StreamingSubscriberConnection(
+        subscription,
+        credentials,
+        receiver,
+        batchReceiver,
+        codecs,
+        ackExpirationPadding,
+        streamAckDeadlineSeconds,
+        ackLatencies,
+        recentAckLatencies,
+        newAckFlushPolicy(),
+        ackCounters,
+        streamRestarts.get(connection),
+        tracing,
+        getChannel(connection),
+        flowController,
+        executor,
+        receiverExecutor,
+        alarmScheduler);
+  }
+
   private void startStreamingConnections() {
     synchronized (streamingSubscriberConnections) {
-      for (int i = 0; i < numChannels; i++) {
-        streamingSubscriberConnections.add(
-            new StreamingSubscriberConnection(
-                subscription,
-                credentials,
-                receiver,
-                ackExpirationPadding,
-                streamAckDeadlineSeconds,
-                ackLatencyDistribution,
-                channelBuilder.build(),
-                flowController,
-                executor));
+      for (int i = 0; i < streamScaler.getMinStreams(); i++) {
+        streamingSubscriberConnections.add(newStreamingConnection(i));
       }
-      startConnections(
-          streamingSubscriberConnections,
-          new Listener() {
-            @Override
-            public void failed(State from, Throwable failure) {
-              // If a connection failed is because of a fatal error, we should fail the
-              // whole subscriber.
-              stopAllStreamingConnections();
-              if (failure instanceof StatusRuntimeException
-                  && ((StatusRuntimeException) failure).getStatus().getCode()
-                      == Status.Code.UNIMPLEMENTED) {
-                logger.info("Unable to open streaming connections, falling back to polling.");
-                startPollingConnections();
-                return;
-              }
-              notifyFailed(failure);
-            }
-          });
+      startConnections(streamingSubscriberConnections, streamingConnectionsListener);
     }
 
     ackDeadlineUpdater =
@@ -172,9 +340,14 @@ public class SubscriberImpl extends AbstractService implements Subscriber {
             new Runnable() {
               @Override
               public void run() {
-                // It is guaranteed this will be <= MAX_ACK_DEADLINE_SECONDS, the max of the API.
+                // Rounded up to the second, and capped to MAX_ACK_DEADLINE_SECONDS, the max of the
+                // API.
+                long ackLatencyMicros =
+                    recentAckLatencies
+                        .snapshot(Instant.now().getMillis())
+                        .getPercentile(PERCENTILE_FOR_ACK_DEADLINE_UPDATES);
                 long ackLatency =
-                    ackLatencyDistribution.getNthPercentile(PERCENTILE_FOR_ACK_DEADLINE_UPDATES);
+                    Math.min(MAX_ACK_DEADLINE_SECONDS, (ackLatencyMicros + 999999) / 1000000);
                 if (ackLatency > 0) {
                   int possibleStreamAckDeadlineSeconds =
                       Math.max(
@@ -185,9 +358,11 @@ public class SubscriberImpl extends AbstractService implements Subscriber {
                     streamAckDeadlineSeconds = possibleStreamAckDeadlineSeconds;
                     logger.debug(
                         "Updating stream deadline to {} seconds.", streamAckDeadlineSeconds);
-                    for (StreamingSubscriberConnection subscriberConnection :
-                        streamingSubscriberConnections) {
-                      subscriberConnection.updateStreamAckDeadline(streamAckDeadlineSeconds);
+                    synchronized (streamingSubscriberConnections) {
+                      for (StreamingSubscriberConnection subscriberConnection :
+                          streamingSubscriberConnections) {
+                        subscriberConnection.updateStreamAckDeadline(streamAckDeadlineSeconds);
+                      }
                     }
                   }
                 }
@@ -196,26 +371,111 @@ public class SubscriberImpl extends AbstractService implements Subscriber {
             ACK_DEADLINE_UPDATE_PERIOD.getMillis(),
             ACK_DEADLINE_UPDATE_PERIOD.getMillis(),
             TimeUnit.MILLISECONDS);
+
+    if (streamScaler.getMaxStreams() > streamScaler.getMinStreams()) {
+      streamScalingUpdater =
+          executor.scheduleAtFixedRate(
+              new Runnable() {
+                @Override
+                public void run() {
+                  scaleStreamingConnections();
+                }
+              },
+              STREAM_SCALING_PERIOD.getMillis(),
+              STREAM_SCALING_PERIOD.getMillis(),
+              TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Opens or closes streams from the load of the open ones, see {@link StreamScaler}. Streams are
+   * added and removed at the end of the list, so each keeps the channel of its index.
+   */
+  private void scaleStreamingConnections() {
+    synchronized (streamingSubscriberConnections) {
+      int streams = streamingSubscriberConnections.size();
+      if (streams == 0 || !isRunning()) {
+        // Stopped, or fell back to polling.
+        return;
+      }
+      long responses = 0;
+      long messages = 0;
+      for (StreamingSubscriberConnection subscriberConnection : streamingSubscriberConnections) {
+        responses += subscriberConnection.takeReceivedResponses();
+        messages += subscriberConnection.takeReceivedMessages();
+      }
+      int targetStreams =
+          streamScaler.nextStreamCount(
+              streams,
+              responses,
+              messages,
+              flowController.hasCapacity(),
+              ackCounters.receiverTasks.sumThenReset(),
+              ackCounters.receiverQueuedMicros.sumThenReset());
+      if (targetStreams != streams) {
+        logger.debug("Scaling streams from {} to {}.", streams, targetStreams);
+      }
+      for (int i = streams; i < targetStreams; i++) {
+        final StreamingSubscriberConnection subscriberConnection = newStreamingConnection(i);
+        streamingSubscriberConnections.add(subscriberConnection);
+        lifecycleExecutor.submit(
+            new Runnable() {
+              @Override
+              public void run() {
+                subscriberConnection.startAsync().awaitRunning();
+                subscriberConnection.addListener(streamingConnectionsListener, executor);
+              }
+            });
+      }
+      for (int i = streams; i > targetStreams; i--) {
+        final StreamingSubscriberConnection subscriberConnection =
+            streamingSubscriberConnections.remove(i - 1);
+        // Stopping waits for the outstanding messages of the stream to be processed.
+        lifecycleExecutor.submit(
+            new Runnable() {
+              @Override
+              public void run() {
+                try {
+                  subscriberConnection.stopAsync().awaitTerminated();
+                } catch (IllegalStateException ignored) {
+                  // The connection failed, which the listener reports.
+                }
+              }
+            });
+      }
+    }
   }
 
   private void stopAllStreamingConnections() {
     stopConnections(streamingSubscriberConnections);
     ackDeadlineUpdater.cancel(true);
+    if (streamScalingUpdater != null) {
+      streamScalingUpdater.cancel(true);
+    }
   }
 
   private void startPollingConnections() {
     synchronized (pollingSubscriberConnections) {
-      for (int i = 0; i < numChannels; i++) {
+      // Polling connections are not scaled, there are as many as there can be streams.
+      for (int i = 0; i < streamScaler.getMaxStreams(); i++) {
         pollingSubscriberConnections.add(
             new PollingSubscriberConnection(
                 subscription,
                 credentials,
                 receiver,
+                batchReceiver,
+                codecs,
                 ackExpirationPadding,
-                ackLatencyDistribution,
-                channelBuilder.build(),
+                ackLatencies,
+                recentAckLatencies,
+                newAckFlushPolicy(),
+                ackCounters,
+                tracing,
+                getChannel(i),
                 flowController,
-                executor));
+                executor,
+                receiverExecutor,
+                alarmScheduler));
       }
       startConnections(
           pollingSubscriberConnections,
@@ -227,6 +487,7 @@ public class SubscriberImpl extends AbstractService implements Subscriber {
               stopAllPollingConnections();
               try {
                 notifyFailed(failure);
+                releaseResourcesOnFailure();
               } catch (IllegalStateException e) {
                 if (isRunning()) {
                   throw e;
@@ -245,9 +506,9 @@ public class SubscriberImpl extends AbstractService implements Subscriber {
   private void startConnections(
       List<? extends AbstractSubscriberConnection> connections,
       final Listener connectionsListener) {
-    final CountDownLatch subscribersStarting = new CountDownLatch(numChannels);
+    final CountDownLatch subscribersStarting = new CountDownLatch(connections.size());
     for (final AbstractSubscriberConnection subscriber : connections) {
-      executor.submit(
+      lifecycleExecutor.submit(
           new Runnable() {
             @Override
             public void run() {
@@ -272,7 +533,7 @@ public class SubscriberImpl extends AbstractService implements Subscriber {
     }
     final CountDownLatch connectionsStopping = new CountDownLatch(liveConnections.size());
     for (final AbstractSubscriberConnection subscriberConnection : liveConnections) {
-      executor.submit(
+      lifecycleExecutor.submit(
           new Runnable() {
             @Override
             public void run() {
@@ -295,8 +556,27 @@ public class SubscriberImpl extends AbstractService implements Subscriber {
 
   @Override
   public SubscriberStats getStats() {
-    // TODO: Implement me
-    return null;
+    List<Long> restarts = new ArrayList<>(streamRestarts.size());
+    for (StripedCounter connectionRestarts : streamRestarts) {
+      restarts.add(connectionRestarts.sum());
+    }
+    return SubscriberStats.newBuilder()
+        .setMessages(
+            ackCounters.receivedMessages.sum(),
+            ackCounters.sentAcks.sum(),
+            ackCounters.nackedMessages.sum(),
+            ackCounters.expiredMessages.sum())
+        .setLatencies(
+            ackCounters.endToEndLatencies.snapshot(),
+            ackLatencies.snapshot(),
+            ackCounters.receiverLatencies.snapshot())
+        .setAckDeadlineExtensions(ackCounters.ackDeadlineExtensions.sum())
+        .setFailures(
+            ackCounters.failedAcks.sum(),
+            ackCounters.failedAckDeadlineModifications.sum(),
+            ackCounters.retriedRequests.sum())
+        .setStreamRestarts(restarts)
+        .build();
   }
 
   @Override
@@ -16,36 +16,56 @@
 
 package com.google.cloud.pubsub;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.math.Stats;
+import java.util.List;
 import javax.annotation.concurrent.Immutable;
 
 /**
  * A snapshot of the subscriber statistics at the time they were requested from the {@link
  * Subscriber}.
+ *
+ * <p>The counters are read one after the other while messages are being received, so they are
+ * only consistent with each other once the subscriber is idle.
  */
-//TODO: Finish implementation.
 @Immutable
 public class SubscriberStats {
   private final long totalReceivedMessages;
   private final long totalAckedMessages;
-  private final Stats endToEndLatency;
-  private final Stats ackLatency;
+  private final long nackedMessages;
+  private final long expiredMessages;
+  private final HistogramSnapshot endToEndLatencies;
+  private final HistogramSnapshot ackLatencies;
+  private final HistogramSnapshot receiverLatencies;
   private final long numberOfAutoExtendedAckDeadlines;
+  private final long failedAcks;
+  private final long failedAckDeadlineModifications;
+  private final long retriedAckRequests;
+  private final long streamRestarts;
+  private final List<Long> streamRestartsByConnection;
 
-  SubscriberStats() {
-    this.totalReceivedMessages = 0;
-    this.totalAckedMessages = 0;
-    this.numberOfAutoExtendedAckDeadlines = 0;
-    this.endToEndLatency = null;
-    this.ackLatency = null;
+  private SubscriberStats(Builder builder) {
+    totalReceivedMessages = builder.receivedMessages;
+    totalAckedMessages = builder.ackedMessages;
+    nackedMessages = builder.nackedMessages;
+    expiredMessages = builder.expiredMessages;
+    endToEndLatencies = builder.endToEndLatencies;
+    ackLatencies = builder.ackLatencies;
+    receiverLatencies = builder.receiverLatencies;
+    numberOfAutoExtendedAckDeadlines = builder.ackDeadlineExtensions;
+    failedAcks = builder.failedAcks;
+    failedAckDeadlineModifications = builder.failedAckDeadlineModifications;
+    retriedAckRequests = builder.retriedAckRequests;
+    streamRestarts = builder.streamRestarts;
+    streamRestartsByConnection = builder.streamRestartsByConnection;
   }
 
-  /** Number of successfully published messages. */
+  /** Number of messages received, including redeliveries. */
   public long getReceivedMessages() {
     return totalReceivedMessages;
   }
 
-  /** Number of successfully published messages. */
+  /** Number of messages acked. */
   public long getAckedMessages() {
     return totalAckedMessages;
   }
@@ -60,21 +80,169 @@ public class SubscriberStats {
     return totalAckedMessages;
   }
 
-  /** End to end latency. */
+  /**
+   * Number of messages nacked, either by the receiver or because it failed to process them; they
+   * are redelivered.
+   */
+  public long getNackedMessages() {
+    return nackedMessages;
+  }
+
+  /**
+   * Number of messages whose acknowledgement deadline went by before it could be extended; they
+   * may be redelivered even if acked later.
+   */
+  public long getExpiredMessages() {
+    return expiredMessages;
+  }
+
+  /**
+   * End to end latency.
+   *
+   * @deprecated Never implemented, use {@link #getEndToEndLatencies()}.
+   */
+  @Deprecated
   public Stats getEndToEndLatency() {
-    return endToEndLatency;
+    return null;
+  }
+
+  /**
+   * End to end latencies in microseconds; time in between the messages have been published and
+   * then received, as told by the clocks of the server and of this host, so only precise to the
+   * millisecond.
+   */
+  public HistogramSnapshot getEndToEndLatencies() {
+    return endToEndLatencies;
   }
 
   /**
    * Acknowledgement latency; time in between the message has been received and then acknowledged or
    * rejected.
+   *
+   * @deprecated Never implemented, use {@link #getAckLatencies()}.
    */
+  @Deprecated
   public Stats getAckLatency() {
-    return ackLatency;
+    return null;
+  }
+
+  /**
+   * Acknowledgement latencies in microseconds; time in between the messages have been received and
+   * then acknowledged.
+   */
+  public HistogramSnapshot getAckLatencies() {
+    return ackLatencies;
+  }
+
+  /**
+   * Receiver execution times in microseconds; time in between the receiver has been handed messages
+   * and then replied to them. The rest of the ack latency is spent waiting for a receiver thread.
+   */
+  public HistogramSnapshot getReceiverLatencies() {
+    return receiverLatencies;
   }
 
   /** Number of messages for which we have auto extended its acknowledgement deadline. */
   public long getNumberOfAutoExtendedAckDeadlines() {
     return numberOfAutoExtendedAckDeadlines;
   }
+
+  /** Average number of acknowledgement deadline extensions sent per received message. */
+  public double getAckDeadlineExtensionsPerMessage() {
+    return totalReceivedMessages == 0
+        ? 0
+        : (double) numberOfAutoExtendedAckDeadlines / totalReceivedMessages;
+  }
+
+  /** Number of acks that could not be sent, even after retrying; their messages are redelivered. */
+  public long getFailedAcks() {
+    return failedAcks;
+  }
+
+  /** Number of acknowledgement deadline extensions and nacks that could not be sent. */
+  public long getFailedAckDeadlineModifications() {
+    return failedAckDeadlineModifications;
+  }
+
+  /** Number of ack and acknowledgement deadline requests retried after a retryable failure. */
+  public long getRetriedAckRequests() {
+    return retriedAckRequests;
+  }
+
+  /** Number of times the streaming connections reopened their stream, summed over connections. */
+  public long getStreamRestarts() {
+    return streamRestarts;
+  }
+
+  /**
+   * Number of times the streaming connections reopened their stream, by connection index. There
+   * is one entry per stream the subscriber may open, the streams not opened yet count none.
+   */
+  public List<Long> getStreamRestartsByConnection() {
+    return streamRestartsByConnection;
+  }
+
+  static Builder newBuilder() {
+    return new Builder();
+  }
+
+  /** A builder of {@link SubscriberStats}. */
+  static final class Builder {
+    long receivedMessages;
+    long ackedMessages;
+    long nackedMessages;
+    long expiredMessages;
+    HistogramSnapshot endToEndLatencies;
+    HistogramSnapshot ackLatencies;
+    HistogramSnapshot receiverLatencies;
+    long ackDeadlineExtensions;
+    long failedAcks;
+    long failedAckDeadlineModifications;
+    long retriedAckRequests;
+    long streamRestarts;
+    List<Long> streamRestartsByConnection = ImmutableList.of();
+
+    private Builder() {}
+
+    Builder setMessages(long received, long acked, long nacked, long expired) {
+      receivedMessages = received;
+      ackedMessages = acked;
+      nackedMessages = nacked;
+      expiredMessages = expired;
+      return this;
+    }
+
+    Builder setLatencies(
+        HistogramSnapshot endToEnd, HistogramSnapshot ack, HistogramSnapshot receiver) {
+      endToEndLatencies = endToEnd;
+      ackLatencies = ack;
+      receiverLatencies = receiver;
+      return this;
+    }
+
+    Builder setAckDeadlineExtensions(long extensions) {
+      ackDeadlineExtensions = extensions;
+      return this;
+    }
+
+    Builder setFailures(long acks, long ackDeadlineModifications, long retriedRequests) {
+      failedAcks = acks;
+      failedAckDeadlineModifications = ackDeadlineModifications;
+      retriedAckRequests = retriedRequests;
+      return this;
+    }
+
+    Builder setStreamRestarts(List<Long> restartsByConnection) {
+      streamRestartsByConnection = ImmutableList.copyOf(restartsByConnection);
+      streamRestarts = 0;
+      for (long restarts : restartsByConnection) {
+        streamRestarts += restarts;
+      }
+      return this;
+    }
+
+    SubscriberStats build() {
+      return new SubscriberStats(this);
+    }
+  }
 }
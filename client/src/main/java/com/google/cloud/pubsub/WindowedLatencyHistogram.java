@@ -0,0 +1,85 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import com.google.common.base.Preconditions;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Histogram of the latencies recorded over the last few windows of time, so percentiles follow
+ * the current latencies rather than the whole history of the client.
+ *
+ * <p>Windows are rotated by the readers, at most once per window, and the snapshot of the recent
+ * windows is kept until the next rotation. Reading it is then a volatile read, so it can be done
+ * as often as needed.
+ */
+final class WindowedLatencyHistogram {
+  private final LatencyHistogram current = new LatencyHistogram();
+  private final long windowMillis;
+
+  // The last windows, oldest replaced first.
+  @GuardedBy("this")
+  private final HistogramSnapshot[] windows;
+
+  @GuardedBy("this")
+  private int nextWindow;
+
+  private volatile HistogramSnapshot recent;
+  // Rotated on the first read, so values recorded before it are not held back for a window.
+  private volatile long nextRotationMillis = Long.MIN_VALUE;
+
+  WindowedLatencyHistogram(int windows, long windowMillis) {
+    Preconditions.checkArgument(windows > 0);
+    Preconditions.checkArgument(windowMillis > 0);
+    this.windows = new HistogramSnapshot[windows];
+    this.windowMillis = windowMillis;
+    recent = current.snapshot();
+  }
+
+  /** Records a value, negative values are recorded as 0. */
+  void record(long value) {
+    current.record(value);
+  }
+
+  /**
+   * Returns the values recorded in the last windows, as of the last rotation. Values recorded
+   * since are only included once their window is rotated.
+   */
+  HistogramSnapshot snapshot(long nowMillis) {
+    if (nowMillis >= nextRotationMillis) {
+      rotate(nowMillis);
+    }
+    return recent;
+  }
+
+  private synchronized void rotate(long nowMillis) {
+    if (nowMillis < nextRotationMillis) {
+      // Rotated by another reader.
+      return;
+    }
+    windows[nextWindow] = current.snapshotAndReset();
+    nextWindow = (nextWindow + 1) % windows.length;
+    HistogramSnapshot merged = null;
+    for (HistogramSnapshot window : windows) {
+      if (window != null) {
+        merged = merged == null ? window : merged.merge(window);
+      }
+    }
+    recent = merged;
+    nextRotationMillis = nowMillis + windowMillis;
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.pubsub.AbstractSubscriberConnection.PendingModifyAckDeadline;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link AckDeadlineIndex}. */
+@RunWith(JUnit4.class)
+public class AckDeadlineIndexTest {
+  private static final long NOW = 1000000;
+
+  private final AckDeadlineIndex index = new AckDeadlineIndex(2, 8);
+
+  @Test
+  public void testExtendDue_onlyExtendsDueEntries() {
+    AckDeadlineIndex.Entry a = new AckDeadlineIndex.Entry(ByteString.copyFromUtf8("A"));
+    AckDeadlineIndex.Entry b = new AckDeadlineIndex.Entry(ByteString.copyFromUtf8("B"));
+    AckDeadlineIndex.Entry c = new AckDeadlineIndex.Entry(ByteString.copyFromUtf8("C"));
+    index.addAll(ImmutableList.of(a, b), NOW, NOW + 10000);
+    index.addAll(ImmutableList.of(c), NOW, NOW + 20000);
+    assertEquals(NOW + 10000, index.nextExpirationMillis());
+
+    List<PendingModifyAckDeadline> extensions = index.extendDue(NOW + 9000, NOW + 11000);
+    assertEquals(1, extensions.size());
+    assertEquals(2, extensions.get(0).deadlineExtensionSeconds);
+    assertEquals(
+        ImmutableSet.of(ByteString.copyFromUtf8("A"), ByteString.copyFromUtf8("B")),
+        ImmutableSet.copyOf(extensions.get(0).ackIds));
+    assertEquals(3, index.size());
+    assertEquals(NOW + 11000, index.nextExpirationMillis());
+  }
+
+  @Test
+  public void testExtendDue_doublesExtensionUpToMax() {
+    AckDeadlineIndex.Entry a = new AckDeadlineIndex.Entry(ByteString.copyFromUtf8("A"));
+    index.addAll(ImmutableList.of(a), NOW, NOW);
+
+    long now = NOW;
+    for (int expected : new int[] {2, 4, 8, 8}) {
+      List<PendingModifyAckDeadline> extensions = index.extendDue(now, now);
+      assertEquals(1, extensions.size());
+      assertEquals(expected, extensions.get(0).deadlineExtensionSeconds);
+      now += expected * 1000;
+      assertEquals(now, index.nextExpirationMillis());
+    }
+  }
+
+  @Test
+  public void testExtendDue_followsAckLatencies() {
+    WindowedLatencyHistogram ackLatencies = new WindowedLatencyHistogram(1, 60000);
+    for (int i = 0; i < 100; i++) {
+      ackLatencies.record(30000000);
+    }
+    AckDeadlineIndex latencyIndex = new AckDeadlineIndex(2, 600, ackLatencies);
+    AckDeadlineIndex.Entry a = new AckDeadlineIndex.Entry(ByteString.copyFromUtf8("A"));
+    latencyIndex.addAll(ImmutableList.of(a), NOW, NOW + 10000);
+
+    // Extended until most messages are acked, rather than by the initial extension.
+    List<PendingModifyAckDeadline> extensions = latencyIndex.extendDue(NOW + 9000, NOW + 10000);
+    assertEquals(21, extensions.get(0).deadlineExtensionSeconds);
+
+    // Slower than most messages, the extensions double.
+    extensions = latencyIndex.extendDue(NOW + 30000, NOW + 30000);
+    assertEquals(42, extensions.get(0).deadlineExtensionSeconds);
+  }
+
+  @Test
+  public void testExtendDue_fastAckLatenciesUseInitialExtension() {
+    WindowedLatencyHistogram ackLatencies = new WindowedLatencyHistogram(1, 60000);
+    ackLatencies.record(900000);
+    AckDeadlineIndex latencyIndex = new AckDeadlineIndex(2, 600, ackLatencies);
+    AckDeadlineIndex.Entry a = new AckDeadlineIndex.Entry(ByteString.copyFromUtf8("A"));
+    latencyIndex.addAll(ImmutableList.of(a), NOW, NOW);
+
+    assertEquals(2, latencyIndex.extendDue(NOW, NOW).get(0).deadlineExtensionSeconds);
+  }
+
+  @Test
+  public void testTakeExpired_countsEntriesExtendedLate() {
+    AckDeadlineIndex.Entry a = new AckDeadlineIndex.Entry(ByteString.copyFromUtf8("A"));
+    AckDeadlineIndex.Entry b = new AckDeadlineIndex.Entry(ByteString.copyFromUtf8("B"));
+    index.addAll(ImmutableList.of(a), NOW, NOW);
+    index.addAll(ImmutableList.of(b), NOW, NOW + 5000);
+
+    // Only A expired, B is extended ahead of its deadline.
+    assertEquals(2, index.extendDue(NOW + 3000, NOW + 5000).get(0).ackIds.size());
+    assertEquals(1, index.takeExpired());
+    assertEquals(0, index.takeExpired());
+  }
+
+  @Test
+  public void testRemove_entryNotExtended() {
+    AckDeadlineIndex.Entry a = new AckDeadlineIndex.Entry(ByteString.copyFromUtf8("A"));
+    AckDeadlineIndex.Entry b = new AckDeadlineIndex.Entry(ByteString.copyFromUtf8("B"));
+    index.addAll(ImmutableList.of(a, b), NOW, NOW);
+
+    index.remove(a);
+    // Removing twice is a no-op.
+    index.remove(a);
+    assertEquals(1, index.size());
+
+    List<PendingModifyAckDeadline> extensions = index.extendDue(NOW, NOW);
+    assertEquals(ImmutableList.of(ByteString.copyFromUtf8("B")), extensions.get(0).ackIds);
+
+    index.remove(b);
+    assertEquals(0, index.size());
+    assertEquals(Long.MAX_VALUE, index.nextExpirationMillis());
+    assertTrue(index.extendDue(NOW + 100000, NOW + 100000).isEmpty());
+  }
+
+  @Test
+  public void testBuckets_roundDownToTheSecond() {
+    AckDeadlineIndex.Entry a = new AckDeadlineIndex.Entry(ByteString.copyFromUtf8("A"));
+    index.addAll(ImmutableList.of(a), NOW, NOW + 1999);
+    assertEquals(NOW + 1000, index.nextExpirationMillis());
+    assertTrue(index.extendDue(NOW, NOW + 999).isEmpty());
+    assertEquals(1, index.extendDue(NOW, NOW + 1000).size());
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+import org.joda.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link AckFlushPolicy}. */
+@RunWith(JUnit4.class)
+public class AckFlushPolicyTest {
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private final AckFlushPolicy policy =
+      new AckFlushPolicy(1000, Duration.millis(10), Duration.millis(100), 0);
+
+  @Test
+  public void testStartsFromMaxDelay() {
+    assertEquals(1000, policy.getMaxBatchAcks());
+    assertEquals(100, policy.getDelayMillis());
+  }
+
+  @Test
+  public void testOnFlushed_lowRateShrinksDelayToMin() {
+    // 1 ack per second.
+    policy.onFlushed(1, 1000 * MILLIS);
+    assertEquals(10, policy.getDelayMillis());
+  }
+
+  @Test
+  public void testOnFlushed_delayFollowsRate() {
+    // 500 acks per 100ms, half a batch per maximum delay.
+    policy.onFlushed(500, 100 * MILLIS);
+    assertEquals(50, policy.getDelayMillis());
+
+    // 1000 acks per 50ms, over a full batch per maximum delay.
+    policy.onFlushed(1000, 150 * MILLIS);
+    assertEquals(100, policy.getDelayMillis());
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link AdaptiveBatchingController}. */
+@RunWith(JUnit4.class)
+public class AdaptiveBatchingControllerTest {
+  private static final long PERIOD = AdaptiveBatchingController.UPDATE_PERIOD.getMillis();
+
+  @Test
+  public void testStartsFromConfiguredMaximums() {
+    AdaptiveBatchingController controller =
+        new AdaptiveBatchingController(new Duration(50), 100, new Duration(100), 0);
+
+    assertEquals(100, controller.getBatchMessages());
+    assertEquals(new Duration(100), controller.getBatchDuration());
+    // Not updated before a whole period has passed.
+    assertFalse(controller.recordPublishLatency(10, PERIOD - 1));
+  }
+
+  @Test
+  public void testLowArrivalRateSendsMessagesRightAway() {
+    AdaptiveBatchingController controller =
+        new AdaptiveBatchingController(new Duration(50), 100, new Duration(100), 0);
+
+    controller.recordBatchSealed(10);
+    assertTrue(controller.recordPublishLatency(10, PERIOD));
+
+    // (50ms - 10ms) * 0.8 = 32ms, smoothed with the previous 100ms.
+    assertEquals(new Duration(66), controller.getBatchDuration());
+    // 10 messages per second won't fill more than one message per batch, but batches shrink by at
+    // most half per period.
+    assertEquals(50, controller.getBatchMessages());
+
+    for (int i = 2; i <= 10; i++) {
+      controller.recordBatchSealed(10);
+      controller.recordPublishLatency(10, i * PERIOD);
+    }
+    assertEquals(1, controller.getBatchMessages());
+  }
+
+  @Test
+  public void testHighArrivalRateIsBoundedByMaximums() {
+    AdaptiveBatchingController controller =
+        new AdaptiveBatchingController(new Duration(50), 100, new Duration(100), 0);
+
+    controller.recordBatchSealed(1000000);
+    controller.recordPublishLatency(10, PERIOD);
+
+    assertEquals(100, controller.getBatchMessages());
+  }
+
+  @Test
+  public void testPublishCallsOverTheTargetDoNotShrinkTheBatches() {
+    AdaptiveBatchingController controller =
+        new AdaptiveBatchingController(new Duration(50), 100, new Duration(100), 0);
+
+    for (int i = 1; i <= 10; i++) {
+      controller.recordBatchSealed(1000);
+      controller.recordPublishLatency(80, i * PERIOD);
+    }
+
+    assertEquals(new Duration(100), controller.getBatchDuration());
+    assertEquals(100, controller.getBatchMessages());
+  }
+
+  @Test
+  public void testPublishCallsOverTheTargetGrowTheBatchesBack() {
+    AdaptiveBatchingController controller =
+        new AdaptiveBatchingController(new Duration(50), 100, new Duration(100), 0);
+    for (int i = 1; i <= 10; i++) {
+      controller.recordBatchSealed(10);
+      controller.recordPublishLatency(10, i * PERIOD);
+    }
+    assertEquals(1, controller.getBatchMessages());
+
+    // The calls slow down, e.g. as many small batches are sent: batches double each period.
+    controller.recordBatchSealed(10);
+    controller.recordPublishLatency(60, 11 * PERIOD);
+    assertEquals(2, controller.getBatchMessages());
+    controller.recordBatchSealed(10);
+    controller.recordPublishLatency(60, 12 * PERIOD);
+    assertEquals(4, controller.getBatchMessages());
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.cloud.pubsub.BatchAccumulator.Batch;
+import com.google.cloud.pubsub.BatchAccumulator.BatchListener;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link BatchAccumulator}. */
+@RunWith(JUnit4.class)
+public class BatchAccumulatorTest {
+
+  private static class RecordingListener implements BatchListener<Integer> {
+    final ConcurrentLinkedQueue<List<Integer>> sealedBatches = new ConcurrentLinkedQueue<>();
+    final AtomicInteger startedBatches = new AtomicInteger();
+
+    @Override
+    public void batchStarted(Batch<Integer> batch) {
+      startedBatches.incrementAndGet();
+    }
+
+    @Override
+    public void batchSealed(Batch<Integer> batch) {
+      sealedBatches.add(batch.getElements());
+    }
+  }
+
+  @Test
+  public void testSealedByNumberOfElements() {
+    RecordingListener listener = new RecordingListener();
+    BatchAccumulator<Integer> accumulator = new BatchAccumulator<>(2, 100, listener);
+
+    accumulator.append(1, 1);
+    accumulator.append(2, 1);
+    accumulator.append(3, 1);
+
+    assertEquals(ImmutableList.of(ImmutableList.of(1, 2)), new ArrayList<>(listener.sealedBatches));
+    assertEquals(2, listener.startedBatches.get());
+  }
+
+  @Test
+  public void testSealedByNumberOfBytes() {
+    RecordingListener listener = new RecordingListener();
+    BatchAccumulator<Integer> accumulator = new BatchAccumulator<>(100, 10, listener);
+
+    accumulator.append(1, 4);
+    accumulator.append(2, 4);
+    // Does not fit in the current batch, it goes to the next one.
+    accumulator.append(3, 4);
+
+    assertEquals(ImmutableList.of(ImmutableList.of(1, 2)), new ArrayList<>(listener.sealedBatches));
+
+    accumulator.flush();
+
+    assertEquals(
+        ImmutableList.of(ImmutableList.of(1, 2), ImmutableList.of(3)),
+        new ArrayList<>(listener.sealedBatches));
+  }
+
+  @Test
+  public void testOversizedElementBypassesBatching() {
+    RecordingListener listener = new RecordingListener();
+    BatchAccumulator<Integer> accumulator = new BatchAccumulator<>(100, 10, listener);
+
+    accumulator.append(1, 1);
+    accumulator.append(2, 10);
+
+    assertEquals(
+        ImmutableList.of(ImmutableList.of(1), ImmutableList.of(2)),
+        new ArrayList<>(listener.sealedBatches));
+  }
+
+  @Test
+  public void testFlushOnlySealsTheGivenBatchOnce() {
+    final List<Batch<Integer>> started = new ArrayList<>();
+    final AtomicInteger sealed = new AtomicInteger();
+    BatchAccumulator<Integer> accumulator =
+        new BatchAccumulator<>(
+            2,
+            100,
+            new BatchListener<Integer>() {
+              @Override
+              public void batchStarted(Batch<Integer> batch) {
+                started.add(batch);
+              }
+
+              @Override
+              public void batchSealed(Batch<Integer> batch) {
+                sealed.incrementAndGet();
+              }
+            });
+
+    accumulator.append(1, 1);
+    accumulator.append(2, 1);
+    // A late alarm for an already sealed batch must be a no-op.
+    accumulator.flush(started.get(0));
+    accumulator.flush();
+
+    assertEquals(1, sealed.get());
+  }
+
+  @Test
+  public void testConcurrentAppendsAreNotLost() throws Exception {
+    final int threads = 16;
+    final int elementsPerThread = 10000;
+    final RecordingListener listener = new RecordingListener();
+    final BatchAccumulator<Integer> accumulator = new BatchAccumulator<>(7, 1000, listener);
+    final CountDownLatch start = new CountDownLatch(1);
+    List<Thread> producers = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      final int base = t * elementsPerThread;
+      Thread producer =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  try {
+                    start.await();
+                  } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                  }
+                  for (int i = 0; i < elementsPerThread; i++) {
+                    accumulator.append(base + i, 10);
+                  }
+                }
+              });
+      producer.start();
+      producers.add(producer);
+    }
+    start.countDown();
+    for (Thread producer : producers) {
+      producer.join();
+    }
+    accumulator.flush();
+
+    Set<Integer> received = new HashSet<>();
+    for (List<Integer> batch : listener.sealedBatches) {
+      assertTrue(batch.size() <= 7);
+      received.addAll(batch);
+    }
+    assertEquals(threads * elementsPerThread, received.size());
+  }
+}
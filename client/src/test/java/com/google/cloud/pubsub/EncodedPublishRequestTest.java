@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PublishRequest;
+import com.google.pubsub.v1.PubsubMessage;
+import io.grpc.Drainable;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link EncodedPublishRequest}. */
+@RunWith(JUnit4.class)
+public class EncodedPublishRequestTest {
+  private static final String TOPIC = "projects/test-project/topics/test-topic";
+
+  private static final List<PubsubMessage> MESSAGES =
+      ImmutableList.of(
+          PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("A")).build(),
+          PubsubMessage.newBuilder()
+              .setData(ByteString.copyFrom(new byte[10 * 1024]))
+              .build(),
+          PubsubMessage.getDefaultInstance());
+
+  @Test
+  public void testEncodesLikeTheRequestBuilder() throws Exception {
+    PublishRequest expected =
+        PublishRequest.newBuilder().setTopic(TOPIC).addAllMessages(MESSAGES).build();
+
+    EncodedPublishRequest request =
+        EncodedPublishRequest.encode(ByteString.copyFromUtf8(TOPIC), MESSAGES);
+
+    assertEquals(expected, request.decode());
+    assertArrayEquals(expected.toByteArray(), streamToByteArray(request));
+  }
+
+  @Test
+  public void testStreamCanBeDrained() throws Exception {
+    EncodedPublishRequest request =
+        EncodedPublishRequest.encode(ByteString.copyFromUtf8(TOPIC), MESSAGES);
+    InputStream stream = EncodedPublishRequest.PUBLISH_METHOD.streamRequest(request);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    int drained = ((Drainable) stream).drainTo(output);
+
+    assertEquals(output.size(), drained);
+    assertArrayEquals(streamToByteArray(request), output.toByteArray());
+    assertEquals(-1, stream.read());
+  }
+
+  @Test
+  public void testBufferedRequestSendsTheSameBytes() throws Exception {
+    EncodedPublishRequest request =
+        EncodedPublishRequest.encode(ByteString.copyFromUtf8(TOPIC), MESSAGES);
+    assertFalse(request.isBuffered());
+
+    EncodedPublishRequest buffered = request.buffered();
+    assertTrue(buffered.isBuffered());
+    assertSame(buffered, buffered.buffered());
+    assertArrayEquals(streamToByteArray(request), streamToByteArray(buffered));
+
+    InputStream stream = EncodedPublishRequest.PUBLISH_METHOD.streamRequest(buffered);
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ((Drainable) stream).drainTo(output);
+    assertArrayEquals(streamToByteArray(request), output.toByteArray());
+  }
+
+  @Test
+  public void testEncodesEmptyBatch() throws Exception {
+    EncodedPublishRequest request =
+        EncodedPublishRequest.encode(
+            ByteString.copyFromUtf8(TOPIC), ImmutableList.<PubsubMessage>of());
+
+    assertEquals(PublishRequest.newBuilder().setTopic(TOPIC).build(), request.decode());
+  }
+
+  private static byte[] streamToByteArray(EncodedPublishRequest request) throws Exception {
+    return ByteStreams.toByteArray(EncodedPublishRequest.PUBLISH_METHOD.streamRequest(request));
+  }
+}
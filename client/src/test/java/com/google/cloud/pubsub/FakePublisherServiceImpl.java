@@ -23,6 +23,7 @@ import com.google.pubsub.v1.PublisherGrpc.PublisherImplBase;
 import io.grpc.stub.StreamObserver;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A fake implementation of {@link PublisherImplBase}, that can be used to test clients of a 
@@ -31,6 +32,8 @@ import java.util.concurrent.LinkedBlockingQueue;
 class FakePublisherServiceImpl extends PublisherImplBase {
 
   private final Queue<Response> publishResponses = new LinkedBlockingQueue<>();
+  private final AtomicLong lastMessageId = new AtomicLong();
+  private volatile boolean respondToAll;
 
   /**
    * Class used to save the state of a possible response. 
@@ -64,6 +67,15 @@ class FakePublisherServiceImpl extends PublisherImplBase {
 
   @Override
   public void publish(PublishRequest request, StreamObserver<PublishResponse> responseObserver) {
+    if (respondToAll && publishResponses.isEmpty()) {
+      PublishResponse.Builder publishResponse = PublishResponse.newBuilder();
+      for (int i = 0; i < request.getMessagesCount(); i++) {
+        publishResponse.addMessageIds(Long.toString(lastMessageId.incrementAndGet()));
+      }
+      responseObserver.onNext(publishResponse.build());
+      responseObserver.onCompleted();
+      return;
+    }
     Response response = null;
     synchronized (publishResponses) {
       response = publishResponses.poll();
@@ -94,6 +106,15 @@ class FakePublisherServiceImpl extends PublisherImplBase {
     return this;
   }
 
+  /**
+   * Makes the fake answer the requests that have no response queued with new message IDs, rather
+   * than fail them.
+   */
+  public FakePublisherServiceImpl setRespondToAll(boolean respondToAll) {
+    this.respondToAll = respondToAll;
+    return this;
+  }
+
   public FakePublisherServiceImpl addPublishError(Throwable error) {
     synchronized (publishResponses) {
       publishResponses.add(new Response(error));
@@ -38,9 +38,11 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A fake implementation of {@link PublisherImplBase}, that can be used to test clients of a Cloud
@@ -56,6 +58,8 @@ class FakeSubscriberServiceImpl extends SubscriberImplBase {
   private final List<ModifyAckDeadline> modAckDeadlines = new ArrayList<>();
   private final List<PullRequest> receivedPullRequest = new ArrayList<>();
   private final BlockingQueue<PullResponse> pullResponses = new LinkedBlockingDeque<>();
+  private final AtomicReference<Status> nextAcknowledgeFailure = new AtomicReference<>();
+  private volatile CountDownLatch acknowledgesHeld = new CountDownLatch(0);
   private int currentStream;
 
   public static enum CloseSide {
@@ -206,6 +210,19 @@ class FakeSubscriberServiceImpl extends SubscriberImplBase {
     }
   }
 
+  public void failNextAcknowledge(Status status) {
+    nextAcknowledgeFailure.set(status);
+  }
+
+  /** Holds the acknowledge requests without replying until {@link #releaseAcknowledges}. */
+  public void holdAcknowledges() {
+    acknowledgesHeld = new CountDownLatch(1);
+  }
+
+  public void releaseAcknowledges() {
+    acknowledgesHeld.countDown();
+  }
+
   public void setMessageAckDeadlineSeconds(int ackDeadline) {
     messageAckDeadline.set(ackDeadline);
   }
@@ -228,7 +245,10 @@ class FakeSubscriberServiceImpl extends SubscriberImplBase {
 
   @Override
   public void pull(PullRequest request, StreamObserver<PullResponse> responseObserver) {
-    receivedPullRequest.add(request);
+    synchronized (receivedPullRequest) {
+      receivedPullRequest.add(request);
+      receivedPullRequest.notifyAll();
+    }
     try {
       responseObserver.onNext(pullResponses.take());
       responseObserver.onCompleted();
@@ -240,6 +260,17 @@ class FakeSubscriberServiceImpl extends SubscriberImplBase {
   @Override
   public void acknowledge(
       AcknowledgeRequest request, io.grpc.stub.StreamObserver<Empty> responseObserver) {
+    try {
+      acknowledgesHeld.await();
+    } catch (InterruptedException e) {
+      responseObserver.onError(e);
+      return;
+    }
+    Status failure = nextAcknowledgeFailure.getAndSet(null);
+    if (failure != null) {
+      responseObserver.onError(failure.asException());
+      return;
+    }
     addReceivedAcks(request.getAckIdsList());
     responseObserver.onNext(Empty.getDefaultInstance());
     responseObserver.onCompleted();
@@ -315,6 +346,15 @@ class FakeSubscriberServiceImpl extends SubscriberImplBase {
     }
   }
 
+  public List<PullRequest> waitForPullRequests(int expectedCount) throws InterruptedException {
+    synchronized (receivedPullRequest) {
+      while (receivedPullRequest.size() < expectedCount) {
+        receivedPullRequest.wait();
+      }
+      return ImmutableList.copyOf(receivedPullRequest);
+    }
+  }
+
   public void waitForStreamAckDeadline(int expectedValue) throws InterruptedException {
     synchronized (messageAckDeadline) {
       while (messageAckDeadline.get() != expectedValue) {
@@ -351,7 +391,9 @@ class FakeSubscriberServiceImpl extends SubscriberImplBase {
             subscriptionInitialized.set(false);
             subscription = "";
             pullResponses.clear();
-            receivedPullRequest.clear();
+            synchronized (receivedPullRequest) {
+              receivedPullRequest.clear();
+            }
             currentStream = 0;
           }
         }
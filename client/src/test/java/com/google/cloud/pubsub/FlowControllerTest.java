@@ -16,6 +16,8 @@
 
 package com.google.cloud.pubsub;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -23,9 +25,12 @@ import com.google.cloud.pubsub.Publisher.CloudPubsubFlowControlException;
 import com.google.cloud.pubsub.Publisher.MaxOutstandingBytesReachedException;
 import com.google.cloud.pubsub.Publisher.MaxOutstandingMessagesReachedException;
 import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -166,6 +171,110 @@ public class FlowControllerTest {
     testRejectedReserveRelease(flowController, 10, 10, MaxOutstandingBytesReachedException.class);
   }
 
+  @Test
+  public void testForceReserve_goesOverLimitsUntilReleased() throws Exception {
+    FlowController flowController = new FlowController(Optional.of(2), Optional.of(10), false);
+
+    flowController.forceReserve(1, 5);
+    assertTrue(flowController.hasCapacity());
+    flowController.forceReserve(1, 5);
+    flowController.forceReserve(1, 5);
+    assertFalse(flowController.hasCapacity());
+
+    flowController.release(1, 5);
+    assertFalse(flowController.hasCapacity());
+    flowController.release(1, 5);
+    assertTrue(flowController.hasCapacity());
+  }
+
+  @Test
+  public void testWhenCapacity_runsOnceUnderLimits() throws Exception {
+    FlowController flowController = new FlowController(Optional.of(1), Optional.of(10), false);
+    final AtomicInteger runs = new AtomicInteger();
+    Runnable callback =
+        new Runnable() {
+          @Override
+          public void run() {
+            runs.incrementAndGet();
+          }
+        };
+
+    flowController.whenCapacity(callback);
+    assertEquals(1, runs.get());
+
+    flowController.forceReserve(2, 1);
+    flowController.whenCapacity(callback);
+    assertEquals(1, runs.get());
+
+    flowController.release(1, 1);
+    assertEquals(1, runs.get());
+    flowController.release(1, 1);
+    assertEquals(2, runs.get());
+
+    // Callbacks only run once.
+    flowController.forceReserve(1, 1);
+    flowController.release(1, 1);
+    assertEquals(2, runs.get());
+  }
+
+  @Test
+  public void testCancelWhenCapacity_dropsTheCallback() throws Exception {
+    FlowController flowController = new FlowController(Optional.of(1), Optional.of(10), false);
+    final AtomicInteger runs = new AtomicInteger();
+    Runnable callback =
+        new Runnable() {
+          @Override
+          public void run() {
+            runs.incrementAndGet();
+          }
+        };
+
+    flowController.forceReserve(1, 1);
+    flowController.whenCapacity(callback);
+    flowController.cancelWhenCapacity(callback);
+    flowController.release(1, 1);
+    assertEquals(0, runs.get());
+  }
+
+  @Test
+  public void testReserveAsync_grantedInOrderOnRelease() throws Exception {
+    FlowController flowController = new FlowController(Optional.of(10), Optional.of(10), false);
+    flowController.reserve(1, 10);
+
+    ListenableFuture<Void> large = flowController.reserveAsync(1, 8);
+    ListenableFuture<Void> small = flowController.reserveAsync(1, 1);
+    assertFalse(large.isDone());
+    assertFalse(small.isDone());
+
+    // The small reservation would fit, but waits behind the large one.
+    flowController.release(1, 3);
+    assertFalse(large.isDone());
+    assertFalse(small.isDone());
+    assertFalse(flowController.reserveAsync(1, 1).isDone());
+
+    flowController.release(1, 7);
+    assertTrue(large.isDone());
+    assertTrue(small.isDone());
+  }
+
+  @Test
+  public void testReserveAsync_failsRightAwayOnLimits() throws Exception {
+    FlowController flowController = new FlowController(Optional.of(1), Optional.of(10), true);
+    assertTrue(flowController.reserveAsync(1, 5).isDone());
+
+    ListenableFuture<Void> rejected = flowController.reserveAsync(1, 1);
+    try {
+      rejected.get();
+      fail("Should have failed with a CloudPubsubFlowControlException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof MaxOutstandingMessagesReachedException);
+    }
+
+    // Nothing was held back by the rejected reservation.
+    flowController.release(1, 5);
+    assertTrue(flowController.reserveAsync(1, 10).isDone());
+  }
+
   private void testRejectedReserveRelease(
       FlowController flowController,
       int maxNumMessages,
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link HashedTimingWheel}.
+ *
+ * <p>Apart from the shared wheel, the wheels under test have no worker thread and are advanced by
+ * hand.
+ */
+@RunWith(JUnit4.class)
+public class HashedTimingWheelTest {
+  private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  private final AtomicInteger runs = new AtomicInteger();
+
+  private final Runnable task =
+      new Runnable() {
+        @Override
+        public void run() {
+          runs.incrementAndGet();
+        }
+      };
+
+  @Test
+  public void testExpiresOnceDeadlineHasPassed() {
+    HashedTimingWheel wheel = new HashedTimingWheel(TICK_NANOS, 8);
+    long start = wheel.elapsedNanos();
+
+    Future<?> timeout = wheel.schedule(task, 1, TimeUnit.SECONDS, MoreExecutors.directExecutor());
+
+    wheel.advanceTo(start + TimeUnit.MILLISECONDS.toNanos(500));
+    assertEquals(0, runs.get());
+    assertFalse(timeout.isDone());
+
+    wheel.advanceTo(wheel.elapsedNanos() + TimeUnit.SECONDS.toNanos(1));
+    assertEquals(1, runs.get());
+    assertTrue(timeout.isDone());
+    assertEquals(0, wheel.getPendingTimeouts());
+  }
+
+  @Test
+  public void testExpiresManyTimeoutsOverSeveralRounds() {
+    HashedTimingWheel wheel = new HashedTimingWheel(TICK_NANOS, 8);
+
+    for (int i = 0; i < 100; i++) {
+      wheel.schedule(task, i * 10, TimeUnit.MILLISECONDS, MoreExecutors.directExecutor());
+    }
+    assertEquals(100, wheel.getPendingTimeouts());
+
+    wheel.advanceTo(wheel.elapsedNanos() + TimeUnit.SECONDS.toNanos(2));
+    assertEquals(100, runs.get());
+    assertEquals(0, wheel.getPendingTimeouts());
+  }
+
+  @Test
+  public void testCancelledTimeoutDoesNotRun() {
+    HashedTimingWheel wheel = new HashedTimingWheel(TICK_NANOS, 8);
+    long start = wheel.elapsedNanos();
+
+    Future<?> beforeTransfer =
+        wheel.schedule(task, 100, TimeUnit.MILLISECONDS, MoreExecutors.directExecutor());
+    assertTrue(beforeTransfer.cancel(false));
+    Future<?> afterTransfer =
+        wheel.schedule(task, 1, TimeUnit.SECONDS, MoreExecutors.directExecutor());
+    wheel.advanceTo(start + TICK_NANOS * 2);
+    assertTrue(afterTransfer.cancel(false));
+
+    wheel.advanceTo(wheel.elapsedNanos() + TimeUnit.SECONDS.toNanos(2));
+    assertEquals(0, runs.get());
+    assertTrue(afterTransfer.isCancelled());
+    assertFalse(afterTransfer.cancel(false));
+    assertEquals(0, wheel.getPendingTimeouts());
+  }
+
+  @Test
+  public void testSharedWheelRunsTimeouts() throws Exception {
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    HashedTimingWheel.getShared()
+        .schedule(
+            new Runnable() {
+              @Override
+              public void run() {
+                latch.countDown();
+              }
+            },
+            10,
+            TimeUnit.MILLISECONDS,
+            MoreExecutors.directExecutor());
+
+    assertTrue(latch.await(10, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link JmxStatsExporter}. */
+@RunWith(JUnit4.class)
+public class JmxStatsExporterTest {
+  private static final String TEST_SUBSCRIPTION = "projects/p/subscriptions/s";
+  private static final String TEST_SUBSCRIBER_ID = "subscriber-1";
+
+  private final MBeanServer server = MBeanServerFactory.newMBeanServer();
+  private final JmxStatsExporter exporter = new JmxStatsExporter(server);
+
+  @After
+  public void tearDown() {
+    exporter.close();
+  }
+
+  @Test
+  public void testExportSubscriberStats_updatesRegisteredBean() throws Exception {
+    ObjectName name = JmxStatsExporter.subscriberName(TEST_SUBSCRIBER_ID, TEST_SUBSCRIPTION);
+
+    exporter.exportSubscriberStats(TEST_SUBSCRIBER_ID, TEST_SUBSCRIPTION, subscriberStats(1));
+    assertEquals(1L, server.getAttribute(name, "ReceivedMessages"));
+    assertEquals(0.0, server.getAttribute(name, "AckLatency99thPercentile"));
+
+    exporter.exportSubscriberStats(TEST_SUBSCRIBER_ID, TEST_SUBSCRIPTION, subscriberStats(2));
+    assertEquals(2L, server.getAttribute(name, "ReceivedMessages"));
+  }
+
+  @Test
+  public void testExportSubscriberStats_registersSubscribersToTheSameSubscription()
+      throws Exception {
+    exporter.exportSubscriberStats("subscriber-1", TEST_SUBSCRIPTION, subscriberStats(1));
+    exporter.exportSubscriberStats("subscriber-2", TEST_SUBSCRIPTION, subscriberStats(2));
+
+    assertEquals(
+        1L,
+        server.getAttribute(
+            JmxStatsExporter.subscriberName("subscriber-1", TEST_SUBSCRIPTION),
+            "ReceivedMessages"));
+    assertEquals(
+        2L,
+        server.getAttribute(
+            JmxStatsExporter.subscriberName("subscriber-2", TEST_SUBSCRIPTION),
+            "ReceivedMessages"));
+  }
+
+  @Test
+  public void testRemoveSubscriber_unregistersBean() {
+    exporter.exportSubscriberStats(TEST_SUBSCRIBER_ID, TEST_SUBSCRIPTION, subscriberStats(1));
+
+    exporter.removeSubscriber(TEST_SUBSCRIBER_ID);
+    assertFalse(
+        server.isRegistered(
+            JmxStatsExporter.subscriberName(TEST_SUBSCRIBER_ID, TEST_SUBSCRIPTION)));
+  }
+
+  @Test
+  public void testClose_unregistersBeans() {
+    exporter.exportSubscriberStats(TEST_SUBSCRIBER_ID, TEST_SUBSCRIPTION, subscriberStats(1));
+
+    exporter.close();
+    assertFalse(
+        server.isRegistered(
+            JmxStatsExporter.subscriberName(TEST_SUBSCRIBER_ID, TEST_SUBSCRIPTION)));
+  }
+
+  @Test
+  public void testExportSubscriberStats_latenciesInMilliseconds() throws Exception {
+    LatencyHistogram ackLatencies = new LatencyHistogram();
+    ackLatencies.record(2500);
+    HistogramSnapshot empty = new LatencyHistogram().snapshot();
+    SubscriberStats stats =
+        SubscriberStats.newBuilder()
+            .setMessages(1, 0, 0, 0)
+            .setLatencies(empty, ackLatencies.snapshot(), empty)
+            .build();
+
+    exporter.exportSubscriberStats(TEST_SUBSCRIBER_ID, TEST_SUBSCRIPTION, stats);
+    assertEquals(
+        2.5,
+        server.getAttribute(
+            JmxStatsExporter.subscriberName(TEST_SUBSCRIBER_ID, TEST_SUBSCRIPTION),
+            "AckLatency99thPercentile"));
+  }
+
+  private static SubscriberStats subscriberStats(long receivedMessages) {
+    HistogramSnapshot empty = new LatencyHistogram().snapshot();
+    return SubscriberStats.newBuilder()
+        .setMessages(receivedMessages, 0, 0, 0)
+        .setLatencies(empty, empty, empty)
+        .build();
+  }
+}
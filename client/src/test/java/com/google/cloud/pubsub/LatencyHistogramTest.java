@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link LatencyHistogram}. */
+@RunWith(JUnit4.class)
+public class LatencyHistogramTest {
+
+  @Test
+  public void testEmptySnapshot() {
+    HistogramSnapshot snapshot = new LatencyHistogram().snapshot();
+
+    assertEquals(0, snapshot.getCount());
+    assertEquals(0, snapshot.getMax());
+    assertEquals(0.0, snapshot.getMean(), 0.0);
+    assertEquals(0, snapshot.getPercentile(99));
+  }
+
+  @Test
+  public void testSmallValuesAreExact() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 10; i++) {
+      histogram.record(i);
+    }
+
+    HistogramSnapshot snapshot = histogram.snapshot();
+    assertEquals(10, snapshot.getCount());
+    assertEquals(10, snapshot.getMax());
+    assertEquals(5.5, snapshot.getMean(), 0.0);
+    assertEquals(5, snapshot.getPercentile(50));
+    assertEquals(9, snapshot.getPercentile(90));
+    assertEquals(10, snapshot.getPercentile(100));
+  }
+
+  @Test
+  public void testBucketsCoverTheWholeRange() {
+    long previousUpperBound = -1;
+    for (int i = 0; i <= LatencyHistogram.bucketIndex(LatencyHistogram.MAX_VALUE); i++) {
+      long upperBound = LatencyHistogram.bucketUpperBound(i);
+      // Buckets are contiguous and each value maps back to its bucket.
+      assertEquals(i, LatencyHistogram.bucketIndex(previousUpperBound + 1));
+      assertEquals(i, LatencyHistogram.bucketIndex(upperBound));
+      previousUpperBound = upperBound;
+    }
+    assertEquals(LatencyHistogram.MAX_VALUE, previousUpperBound);
+  }
+
+  @Test
+  public void testLargeValuesWithinRelativeError() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1000000);
+    histogram.record(1000001);
+    histogram.record(5000000);
+
+    HistogramSnapshot snapshot = histogram.snapshot();
+    long median = snapshot.getPercentile(50);
+    assertTrue(median >= 1000001);
+    assertTrue(median <= 1000001 + 1000001 / LatencyHistogram.SUB_BUCKETS);
+    assertEquals(5000000, snapshot.getPercentile(100));
+  }
+
+  @Test
+  public void testSnapshotAndReset() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(3);
+    histogram.record(5);
+
+    HistogramSnapshot snapshot = histogram.snapshotAndReset();
+    assertEquals(2, snapshot.getCount());
+    assertEquals(5, snapshot.getMax());
+    assertEquals(4.0, snapshot.getMean(), 0.0);
+
+    HistogramSnapshot empty = histogram.snapshot();
+    assertEquals(0, empty.getCount());
+    assertEquals(0, empty.getMax());
+    assertEquals(0.0, empty.getMean(), 0.0);
+  }
+
+  @Test
+  public void testMerge() {
+    LatencyHistogram first = new LatencyHistogram();
+    first.record(1);
+    first.record(2);
+    LatencyHistogram second = new LatencyHistogram();
+    second.record(9);
+
+    HistogramSnapshot merged = first.snapshot().merge(second.snapshot());
+    assertEquals(3, merged.getCount());
+    assertEquals(9, merged.getMax());
+    assertEquals(4.0, merged.getMean(), 0.0);
+    assertEquals(2, merged.getPercentile(50));
+  }
+
+  @Test
+  public void testConcurrentRecordsAreAllCounted() throws Exception {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] =
+          new Thread(
+              new Runnable() {
+                @Override
+                public void run() {
+                  for (int j = 0; j < 1000; j++) {
+                    histogram.record(7);
+                  }
+                }
+              });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    HistogramSnapshot snapshot = histogram.snapshot();
+    assertEquals(4000, snapshot.getCount());
+    assertEquals(7, snapshot.getPercentile(99));
+  }
+
+  @Test
+  public void testOutOfRangeValuesAreClamped() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(-5);
+    histogram.record(Long.MAX_VALUE);
+
+    HistogramSnapshot snapshot = histogram.snapshot();
+    assertEquals(2, snapshot.getCount());
+    assertEquals(0, snapshot.getPercentile(50));
+    assertEquals(LatencyHistogram.MAX_VALUE, snapshot.getMax());
+  }
+}
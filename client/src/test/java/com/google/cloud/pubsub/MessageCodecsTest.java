@@ -0,0 +1,109 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.ByteString;
+import com.google.pubsub.v1.PubsubMessage;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link MessageCodecs}. */
+@RunWith(JUnit4.class)
+public class MessageCodecsTest {
+  private static final PubsubMessage JSON_MESSAGE =
+      PubsubMessage.newBuilder()
+          .setData(ByteString.copyFromUtf8(Strings.repeat("{\"key\": \"value\"}, ", 100)))
+          .putAttributes("type", "json")
+          .build();
+
+  @Test
+  public void testGzipRoundTrip() throws Exception {
+    assertRoundTrip(MessageCodecs.GZIP);
+  }
+
+  @Test
+  public void testDeflateRoundTrip() throws Exception {
+    assertRoundTrip(MessageCodecs.DEFLATE);
+  }
+
+  @Test
+  public void testDataDecodingOverTheMaximumSizeFails() throws Exception {
+    // Zeros compress to about a thousandth of their size.
+    ByteString zeros = ByteString.copyFrom(new byte[MessageCodecs.MAX_DECODED_BYTES + 1]);
+    ByteString bomb = MessageCodecs.GZIP.encode(zeros);
+    PubsubMessage message =
+        PubsubMessage.newBuilder()
+            .setData(bomb)
+            .putAttributes(MessageCodecs.CONTENT_ENCODING_ATTRIBUTE, MessageCodecs.GZIP.getName())
+            .build();
+
+    try {
+      MessageCodecs.decode(message, MessageCodecs.DEFAULT_CODECS);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  @Test
+  public void testSmallMessagesAreNotEncoded() throws Exception {
+    assertSame(
+        JSON_MESSAGE,
+        MessageCodecs.encode(
+            JSON_MESSAGE, MessageCodecs.GZIP, JSON_MESSAGE.getData().size() + 1));
+  }
+
+  @Test
+  public void testIncompressibleMessagesAreNotEncoded() throws Exception {
+    byte[] randomData = new byte[1000];
+    new Random(0).nextBytes(randomData);
+    PubsubMessage message =
+        PubsubMessage.newBuilder().setData(ByteString.copyFrom(randomData)).build();
+
+    assertSame(message, MessageCodecs.encode(message, MessageCodecs.GZIP, 0));
+  }
+
+  @Test
+  public void testUnknownCodecIsNotDecoded() throws Exception {
+    PubsubMessage encoded = MessageCodecs.encode(JSON_MESSAGE, MessageCodecs.GZIP, 0);
+
+    assertSame(
+        encoded,
+        MessageCodecs.decode(
+            encoded, ImmutableMap.of(MessageCodecs.DEFLATE.getName(), MessageCodecs.DEFLATE)));
+  }
+
+  private static void assertRoundTrip(MessageCodec codec) throws Exception {
+    PubsubMessage encoded = MessageCodecs.encode(JSON_MESSAGE, codec, 0);
+
+    assertTrue(encoded.getData().size() < JSON_MESSAGE.getData().size());
+    assertEquals(
+        codec.getName(),
+        encoded.getAttributesOrThrow(MessageCodecs.CONTENT_ENCODING_ATTRIBUTE));
+    assertEquals(JSON_MESSAGE, MessageCodecs.decode(encoded, MessageCodecs.DEFAULT_CODECS));
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.cloud.pubsub.OrderingLanes.BatchSender;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.joda.time.Duration;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link OrderingLanes}. */
+@RunWith(JUnit4.class)
+public class OrderingLanesTest {
+
+  private static class Sent {
+    final String key;
+    final List<Integer> batch;
+
+    Sent(String key, List<Integer> batch) {
+      this.key = key;
+      this.batch = batch;
+    }
+  }
+
+  private final List<Sent> sent = new ArrayList<>();
+
+  private final BatchSender<Integer> sender =
+      new BatchSender<Integer>() {
+        @Override
+        public void send(String key, List<Integer> batch, int bytes, long startNanos) {
+          sent.add(new Sent(key, batch));
+        }
+      };
+
+  private final FakeScheduledExecutorService fakeExecutor = new FakeScheduledExecutorService();
+
+  /** Lanes of up to 3 elements or 100 bytes per batch, waiting up to 10 seconds. */
+  private OrderingLanes<Integer> newLanes() {
+    return new OrderingLanes<>(
+        3,
+        100,
+        Duration.standardSeconds(10),
+        AlarmScheduler.of(fakeExecutor),
+        fakeExecutor,
+        sender);
+  }
+
+  @Test
+  public void testSendsFullBatchRightAway() {
+    OrderingLanes<Integer> lanes = newLanes();
+
+    lanes.append("a", 1, 10);
+    lanes.append("a", 2, 10);
+    assertEquals(0, sent.size());
+    lanes.append("a", 3, 10);
+
+    assertEquals(1, sent.size());
+    assertEquals(ImmutableList.of(1, 2, 3), sent.get(0).batch);
+  }
+
+  @Test
+  public void testSendsPartialBatchAfterDuration() {
+    OrderingLanes<Integer> lanes = newLanes();
+
+    lanes.append("a", 1, 10);
+    fakeExecutor.advanceTime(Duration.standardSeconds(5));
+    assertEquals(0, sent.size());
+    fakeExecutor.advanceTime(Duration.standardSeconds(5));
+
+    assertEquals(1, sent.size());
+    assertEquals(ImmutableList.of(1), sent.get(0).batch);
+  }
+
+  @Test
+  public void testQueuesBehindBatchInFlight() {
+    OrderingLanes<Integer> lanes = newLanes();
+
+    lanes.append("a", 1, 10);
+    lanes.flush();
+    lanes.append("a", 2, 10);
+    lanes.append("a", 3, 10);
+    lanes.append("a", 4, 10);
+    lanes.append("a", 5, 10);
+    fakeExecutor.advanceTime(Duration.standardSeconds(10));
+
+    // Nothing else is sent while the first batch is in flight, even full batches or on alarms.
+    assertEquals(1, sent.size());
+
+    lanes.onBatchCompleted("a");
+    assertEquals(2, sent.size());
+    assertEquals(ImmutableList.of(2, 3, 4), sent.get(1).batch);
+
+    lanes.onBatchCompleted("a");
+    assertEquals(3, sent.size());
+    assertEquals(ImmutableList.of(5), sent.get(2).batch);
+
+    lanes.onBatchCompleted("a");
+    assertEquals(0, lanes.getLanes());
+  }
+
+  @Test
+  public void testKeysDoNotWaitOnEachOther() {
+    OrderingLanes<Integer> lanes = newLanes();
+
+    lanes.append("a", 1, 10);
+    lanes.append("b", 2, 10);
+    lanes.flush();
+    lanes.append("a", 3, 10);
+    lanes.append("b", 4, 10);
+    lanes.onBatchCompleted("b");
+
+    assertEquals(3, sent.size());
+    assertEquals("b", sent.get(2).key);
+    assertEquals(ImmutableList.of(4), sent.get(2).batch);
+  }
+
+  @Test
+  public void testSplitsBatchesOnBytes() {
+    OrderingLanes<Integer> lanes = newLanes();
+
+    lanes.append("a", 1, 60);
+    lanes.append("a", 2, 60);
+
+    assertEquals(1, sent.size());
+    assertEquals(ImmutableList.of(1), sent.get(0).batch);
+    lanes.onBatchCompleted("a");
+    assertEquals(ImmutableList.of(2), sent.get(1).batch);
+  }
+
+  @Test
+  public void testSendsNextBatchFromTheExecutor() {
+    final List<Runnable> tasks = new ArrayList<>();
+    Executor executor =
+        new Executor() {
+          @Override
+          public void execute(Runnable task) {
+            tasks.add(task);
+          }
+        };
+    OrderingLanes<Integer> lanes =
+        new OrderingLanes<>(
+            3,
+            100,
+            Duration.standardSeconds(10),
+            AlarmScheduler.of(fakeExecutor),
+            executor,
+            sender);
+
+    lanes.append("a", 1, 10);
+    lanes.flush();
+    lanes.append("a", 2, 10);
+    lanes.onBatchCompleted("a");
+
+    // Not sent from the completing thread.
+    assertEquals(1, sent.size());
+    assertEquals(1, tasks.size());
+
+    tasks.get(0).run();
+    assertEquals(ImmutableList.of(2), sent.get(1).batch);
+  }
+
+  @Test
+  public void testRemoveQueued() {
+    OrderingLanes<Integer> lanes = newLanes();
+
+    lanes.append("a", 1, 10);
+    lanes.flush();
+    lanes.append("a", 2, 10);
+    lanes.append("a", 3, 10);
+
+    assertEquals(ImmutableList.of(2, 3), lanes.removeQueued("a"));
+    lanes.onBatchCompleted("a");
+    assertEquals(1, sent.size());
+    assertEquals(0, lanes.getLanes());
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.io.ByteStreams;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PrometheusStatsExporter}. */
+@RunWith(JUnit4.class)
+public class PrometheusStatsExporterTest {
+  private static final String SUBSCRIPTION_A = "projects/p/subscriptions/a";
+  private static final String SUBSCRIPTION_B = "projects/p/subscriptions/b";
+
+  private PrometheusStatsExporter exporter;
+
+  @Before
+  public void setUp() throws Exception {
+    exporter = new PrometheusStatsExporter(0);
+  }
+
+  @After
+  public void tearDown() {
+    exporter.close();
+  }
+
+  @Test
+  public void testRender_groupsSamplesByMetric() {
+    exporter.exportSubscriberStats("subscriber-2", SUBSCRIPTION_B, subscriberStats(3));
+    exporter.exportSubscriberStats("subscriber-1", SUBSCRIPTION_A, subscriberStats(5));
+
+    String text = exporter.render();
+    String received =
+        "# HELP pubsub_subscriber_received_messages_total"
+            + " Messages received, including redeliveries.\n"
+            + "# TYPE pubsub_subscriber_received_messages_total counter\n"
+            + "pubsub_subscriber_received_messages_total"
+            + "{subscription=\"projects/p/subscriptions/a\",id=\"subscriber-1\"} 5\n"
+            + "pubsub_subscriber_received_messages_total"
+            + "{subscription=\"projects/p/subscriptions/b\",id=\"subscriber-2\"} 3\n";
+    assertTrue(text, text.contains(received));
+    assertTrue(
+        text,
+        text.contains(
+            "pubsub_subscriber_ack_latency_seconds{subscription=\"projects/p/subscriptions/a\","
+                + "id=\"subscriber-1\",quantile=\"0.5\"} 2\n"));
+    assertTrue(
+        text,
+        text.contains(
+            "pubsub_subscriber_ack_latency_seconds_count"
+                + "{subscription=\"projects/p/subscriptions/a\",id=\"subscriber-1\"} 1\n"));
+  }
+
+  @Test
+  public void testRender_keepsSubscribersToTheSameSubscriptionApart() {
+    exporter.exportSubscriberStats("subscriber-1", SUBSCRIPTION_A, subscriberStats(3));
+    exporter.exportSubscriberStats("subscriber-2", SUBSCRIPTION_A, subscriberStats(5));
+
+    String text = exporter.render();
+    assertTrue(text, text.contains("id=\"subscriber-1\"} 3\n"));
+    assertTrue(text, text.contains("id=\"subscriber-2\"} 5\n"));
+  }
+
+  @Test
+  public void testRemoveSubscriber_stopsServingIt() {
+    exporter.exportSubscriberStats("subscriber-1", SUBSCRIPTION_A, subscriberStats(3));
+
+    exporter.removeSubscriber("subscriber-1");
+    assertEquals("", exporter.render());
+  }
+
+  @Test
+  public void testRender_escapesLabelValues() {
+    exporter.exportSubscriberStats("subscriber-1", "a\"b\\c", subscriberStats(1));
+
+    assertTrue(
+        exporter.render().contains("{subscription=\"a\\\"b\\\\c\",id=\"subscriber-1\"} 1\n"));
+  }
+
+  @Test
+  public void testServesMetrics() throws Exception {
+    exporter.exportSubscriberStats("subscriber-1", SUBSCRIPTION_A, subscriberStats(1));
+
+    HttpURLConnection connection =
+        (HttpURLConnection)
+            new URL("http://localhost:" + exporter.getPort() + PrometheusStatsExporter.PATH)
+                .openConnection();
+    assertEquals(200, connection.getResponseCode());
+    assertEquals(PrometheusStatsExporter.CONTENT_TYPE, connection.getContentType());
+    try (InputStream in = connection.getInputStream()) {
+      assertEquals(
+          exporter.render(), new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+    }
+  }
+
+  private static SubscriberStats subscriberStats(long receivedMessages) {
+    LatencyHistogram ackLatencies = new LatencyHistogram();
+    ackLatencies.record(2000000);
+    HistogramSnapshot empty = new LatencyHistogram().snapshot();
+    return SubscriberStats.newBuilder()
+        .setMessages(receivedMessages, 0, 0, 0)
+        .setLatencies(empty, ackLatencies.snapshot(), empty)
+        .build();
+  }
+}
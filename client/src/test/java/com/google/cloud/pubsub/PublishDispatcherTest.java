@@ -0,0 +1,172 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.cloud.pubsub.PublishDispatcher.BatchCoalescer;
+import com.google.cloud.pubsub.PublishDispatcher.BatchSender;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PublishDispatcher}. */
+@RunWith(JUnit4.class)
+public class PublishDispatcherTest {
+
+  private static class Sent {
+    final int batch;
+    final int channel;
+
+    Sent(int batch, int channel) {
+      this.batch = batch;
+      this.channel = channel;
+    }
+  }
+
+  private final List<Sent> sent = new ArrayList<>();
+  private final List<Integer> failed = new ArrayList<>();
+
+  /** Sends every batch, but those of 0 messages, which fail. */
+  private final BatchSender<Integer> sender =
+      new BatchSender<Integer>() {
+        @Override
+        public void send(Integer batch, int channel) {
+          if (batch == 0) {
+            throw new IllegalStateException("Failed to send");
+          }
+          sent.add(new Sent(batch, channel));
+        }
+
+        @Override
+        public void onSendFailed(Integer batch, Throwable t) {
+          failed.add(batch);
+        }
+      };
+
+  /** Batches are plain message counts, which can be merged up to 10 messages. */
+  private final BatchCoalescer<Integer> coalescer =
+      new BatchCoalescer<Integer>() {
+        @Override
+        public Integer coalesce(Integer first, Integer second) {
+          return first + second <= 10 ? first + second : null;
+        }
+      };
+
+  @Test
+  public void testPicksLeastLoadedChannel() {
+    PublishDispatcher<Integer> dispatcher =
+        new PublishDispatcher<>(2, 3, sender, coalescer, MoreExecutors.directExecutor());
+
+    dispatcher.dispatch(1);
+    dispatcher.dispatch(1);
+    dispatcher.dispatch(1);
+    dispatcher.onBatchCompleted(sent.get(0).channel);
+    dispatcher.onBatchCompleted(sent.get(2).channel);
+    dispatcher.dispatch(1);
+
+    assertEquals(4, sent.size());
+    // Both channels got one batch released, the one with one in flight gets the next batch.
+    int otherChannel = 1 - sent.get(1).channel;
+    assertEquals(otherChannel, sent.get(3).channel);
+    assertEquals(1, dispatcher.getInFlightBatches(0));
+    assertEquals(1, dispatcher.getInFlightBatches(1));
+  }
+
+  @Test
+  public void testQueuesAndCoalescesWhenWindowIsFull() {
+    PublishDispatcher<Integer> dispatcher =
+        new PublishDispatcher<>(1, 1, sender, coalescer, MoreExecutors.directExecutor());
+
+    dispatcher.dispatch(5);
+    dispatcher.dispatch(3);
+    dispatcher.dispatch(4);
+    dispatcher.dispatch(6);
+
+    assertEquals(1, sent.size());
+    // 3 and 4 are merged, 6 does not fit with them.
+    assertEquals(2, dispatcher.getQueuedBatches());
+
+    dispatcher.onBatchCompleted(0);
+    dispatcher.onBatchCompleted(0);
+
+    assertEquals(ImmutableList.of(5, 7, 6), sentBatches());
+    assertEquals(1, dispatcher.getInFlightBatches(0));
+    assertEquals(0, dispatcher.getQueuedBatches());
+
+    dispatcher.onBatchCompleted(0);
+    assertEquals(0, dispatcher.getInFlightBatches(0));
+  }
+
+  @Test
+  public void testSendsQueuedBatchesFromTheExecutor() {
+    final List<Runnable> tasks = new ArrayList<>();
+    Executor executor =
+        new Executor() {
+          @Override
+          public void execute(Runnable task) {
+            tasks.add(task);
+          }
+        };
+    PublishDispatcher<Integer> dispatcher =
+        new PublishDispatcher<>(1, 1, sender, coalescer, executor);
+
+    dispatcher.dispatch(5);
+    dispatcher.dispatch(6);
+    dispatcher.onBatchCompleted(0);
+
+    // The slot is handed to the queued batch, which is not sent from the completing thread.
+    assertEquals(ImmutableList.of(5), sentBatches());
+    assertEquals(1, dispatcher.getInFlightBatches(0));
+    assertEquals(1, tasks.size());
+
+    tasks.get(0).run();
+    assertEquals(ImmutableList.of(5, 6), sentBatches());
+  }
+
+  @Test
+  public void testFailsTheBatchAndReleasesTheSlotWhenSendingThrows() {
+    PublishDispatcher<Integer> dispatcher =
+        new PublishDispatcher<>(1, 1, sender, coalescer, MoreExecutors.directExecutor());
+
+    dispatcher.dispatch(0);
+    assertEquals(ImmutableList.of(0), failed);
+    assertEquals(0, dispatcher.getInFlightBatches(0));
+
+    // The queued batches keep flowing too, 11 is too large to be merged with the failing one.
+    dispatcher.dispatch(5);
+    dispatcher.dispatch(0);
+    dispatcher.dispatch(11);
+    dispatcher.onBatchCompleted(0);
+    assertEquals(ImmutableList.of(0, 0), failed);
+    assertEquals(ImmutableList.of(5, 11), sentBatches());
+    assertEquals(1, dispatcher.getInFlightBatches(0));
+  }
+
+  private List<Integer> sentBatches() {
+    List<Integer> batches = new ArrayList<>();
+    for (Sent s : sent) {
+      batches.add(s.batch);
+    }
+    return batches;
+  }
+}
@@ -23,8 +23,12 @@ import static org.junit.Assert.fail;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.times;
 
+import com.google.cloud.pubsub.MessageTraceListener.Event;
 import com.google.cloud.pubsub.Publisher.Builder;
+import com.google.cloud.pubsub.Publisher.MaxOutstandingMessagesReachedException;
 import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
 import com.google.pubsub.v1.PublishRequest;
@@ -36,6 +40,8 @@ import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.internal.ServerImpl;
 import io.grpc.stub.StreamObserver;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -227,6 +233,207 @@ public class PublisherImplTest {
     assertEquals(1, requestCaptor.getAllValues().get(1).getMessagesCount());
   }
 
+  @Test
+  public void testGetStats() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setMaxBatchDuration(Duration.standardSeconds(100))
+            .setMaxBatchMessages(2)
+            .build();
+
+    testPublisherServiceImpl.addPublishResponse(
+        PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"));
+
+    ListenableFuture<String> publishFuture1 = sendTestMessage(publisher, "A");
+    ListenableFuture<String> publishFuture2 = sendTestMessage(publisher, "B");
+    sendTestMessage(publisher, "C");
+
+    assertEquals("1", publishFuture1.get());
+    assertEquals("2", publishFuture2.get());
+
+    PublisherStats stats = publisher.getStats();
+    assertEquals(3, stats.getSentMessages());
+    assertEquals(2, stats.getAckedMessages());
+    assertEquals(0, stats.getFailedMessages());
+    assertEquals(1, stats.getPendingMessages());
+    assertEquals(9, stats.getSentBytes());
+    assertEquals(6, stats.getAckedBytes());
+    assertEquals(3, stats.getPendingBytes());
+    assertEquals(1, stats.getSentBatches());
+    assertEquals(0, stats.getRetriedBatches());
+    assertEquals(1, stats.getBatchQueueLatency().getCount());
+    assertEquals(1, stats.getPublishLatency().getCount());
+    assertEquals(2, stats.getMaxBatchMessages());
+    assertEquals(Duration.standardSeconds(100), stats.getMaxBatchDuration());
+  }
+
+  @Test
+  public void testStatsExporter_exportsPeriodicallyAndOnShutdown() throws Exception {
+    final List<PublisherStats> exported = new ArrayList<>();
+    final List<String> publisherIds = new ArrayList<>();
+    final List<String> removed = new ArrayList<>();
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setMaxBatchMessages(1)
+            .setStatsExporter(
+                new StatsExporter() {
+                  @Override
+                  public void exportPublisherStats(
+                      String publisherId, String topic, PublisherStats stats) {
+                    assertEquals(TEST_TOPIC, topic);
+                    publisherIds.add(publisherId);
+                    exported.add(stats);
+                  }
+
+                  @Override
+                  public void exportSubscriberStats(
+                      String subscriberId, String subscription, SubscriberStats stats) {
+                    fail();
+                  }
+
+                  @Override
+                  public void removePublisher(String publisherId) {
+                    removed.add(publisherId);
+                  }
+
+                  @Override
+                  public void removeSubscriber(String subscriberId) {
+                    fail();
+                  }
+                },
+                Duration.standardSeconds(10))
+            .build();
+
+    fakeExecutor.advanceTime(Duration.standardSeconds(10));
+    assertEquals(1, exported.size());
+    assertEquals(0, exported.get(0).getSentMessages());
+
+    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"));
+    assertEquals("1", sendTestMessage(publisher, "A").get());
+
+    publisher.shutdown();
+    assertEquals(2, exported.size());
+    assertEquals(1, exported.get(1).getAckedMessages());
+    assertEquals(publisherIds.get(0), publisherIds.get(1));
+    assertEquals(publisherIds.subList(0, 1), removed);
+  }
+
+  @Test
+  public void testTraceListener_reportsEachStep() throws Exception {
+    final List<Event> events = new ArrayList<>();
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setMaxBatchMessages(1)
+            .setTraceListener(
+                new MessageTraceListener() {
+                  @Override
+                  public void onEvent(long spanId, Event event, long nanoTime) {
+                    events.add(event);
+                  }
+                },
+                1)
+            .build();
+
+    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"));
+    assertEquals("1", sendTestMessage(publisher, "A").get());
+
+    assertEquals(
+        ImmutableList.of(
+            Event.PUBLISH_ENQUEUED,
+            Event.PUBLISH_BATCH_SEALED,
+            Event.PUBLISH_RPC_SENT,
+            Event.PUBLISH_RPC_COMPLETED),
+        events);
+    publisher.shutdown();
+  }
+
+  @Test
+  public void testPublishCompressesLargeMessages() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setMaxBatchMessages(2)
+            .setCompression(MessageCodecs.GZIP, 100)
+            .build();
+
+    testPublisherServiceImpl.addPublishResponse(
+        PublishResponse.newBuilder().addMessageIds("1").addMessageIds("2"));
+
+    String largeData = Strings.repeat("A", 1000);
+    sendTestMessage(publisher, "B");
+    assertEquals("2", sendTestMessage(publisher, largeData).get());
+
+    Mockito.verify(testPublisherServiceImpl)
+        .publish(requestCaptor.capture(), Mockito.<StreamObserver<PublishResponse>>any());
+    PublishRequest request = requestCaptor.getValue();
+    assertEquals("B", request.getMessages(0).getData().toStringUtf8());
+    assertEquals(0, request.getMessages(0).getAttributesCount());
+    PubsubMessage compressed = request.getMessages(1);
+    assertEquals(
+        "gzip", compressed.getAttributesOrThrow(MessageCodecs.CONTENT_ENCODING_ATTRIBUTE));
+    assertEquals(largeData, MessageCodecs.GZIP.decode(compressed.getData()).toStringUtf8());
+  }
+
+  @Test
+  public void testPublishAsync_waitsForFlowControlWithoutBlocking() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setMaxBatchDuration(Duration.standardSeconds(100))
+            .setMaxBatchMessages(1)
+            .setMaxOutstandingMessages(1)
+            .build();
+
+    testPublisherServiceImpl
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"))
+        .addPublishResponse(PublishResponse.newBuilder().addMessageIds("2"));
+
+    ListenableFuture<String> publishFuture1 =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("A")).build());
+    // Returns even while the first message holds the only flow control slot.
+    ListenableFuture<String> publishFuture2 =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("B")).build());
+
+    assertEquals("1", publishFuture1.get());
+    assertEquals("2", publishFuture2.get());
+
+    Mockito.verify(testPublisherServiceImpl, times(2))
+        .publish(requestCaptor.capture(), Mockito.<StreamObserver<PublishResponse>>any());
+    assertEquals("A", requestCaptor.getAllValues().get(0).getMessages(0).getData().toStringUtf8());
+    assertEquals("B", requestCaptor.getAllValues().get(1).getMessages(0).getData().toStringUtf8());
+  }
+
+  @Test
+  public void testPublishAsync_failsRightAwayOnFlowControlLimits() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setMaxBatchDuration(Duration.standardSeconds(5))
+            .setMaxBatchMessages(10)
+            .setMaxOutstandingMessages(1)
+            .setFailOnFlowControlLimits(true)
+            .build();
+
+    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"));
+
+    ListenableFuture<String> publishFuture1 =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("A")).build());
+    ListenableFuture<String> publishFuture2 =
+        publisher.publishAsync(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("B")).build());
+
+    assertTrue(publishFuture2.isDone());
+    try {
+      publishFuture2.get();
+      fail("Should have failed with a MaxOutstandingMessagesReachedException");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof MaxOutstandingMessagesReachedException);
+    }
+
+    fakeExecutor.advanceTime(Duration.standardSeconds(10));
+    assertEquals("1", publishFuture1.get());
+  }
+
   private ListenableFuture<String> sendTestMessage(Publisher publisher, String data) {
     return publisher.publish(
         PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8(data)).build());
@@ -252,6 +459,38 @@ public class PublisherImplTest {
         .publish(Mockito.<PublishRequest>any(), Mockito.<StreamObserver<PublishResponse>>any());
   }
 
+  @Test
+  public void testOrderedPublishRetriesBeforeNextBatchOfKey() throws Exception {
+    Publisher publisher =
+        getTestPublisherBuilder()
+            .setExecutor(Executors.newSingleThreadScheduledExecutor())
+            .setMaxBatchDuration(Duration.standardSeconds(5))
+            .setMaxBatchMessages(1)
+            .build();
+
+    testPublisherServiceImpl.addPublishError(new Throwable("Transiently failing"));
+    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("1"));
+    testPublisherServiceImpl.addPublishResponse(PublishResponse.newBuilder().addMessageIds("2"));
+
+    ListenableFuture<String> publishFuture1 =
+        publisher.publish(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("A")).build(), "key");
+    ListenableFuture<String> publishFuture2 =
+        publisher.publish(
+            PubsubMessage.newBuilder().setData(ByteString.copyFromUtf8("B")).build(), "key");
+
+    assertEquals("1", publishFuture1.get());
+    assertEquals("2", publishFuture2.get());
+
+    Mockito.verify(testPublisherServiceImpl, times(3))
+        .publish(requestCaptor.capture(), Mockito.<StreamObserver<PublishResponse>>any());
+    // The second message is only sent once the retry of the first one went through.
+    List<PublishRequest> requests = requestCaptor.getAllValues();
+    assertEquals("A", requests.get(0).getMessages(0).getData().toStringUtf8());
+    assertEquals("A", requests.get(1).getMessages(0).getData().toStringUtf8());
+    assertEquals("B", requests.get(2).getMessages(0).getData().toStringUtf8());
+  }
+
   @Test(expected = Throwable.class)
   public void testPublishFailureRetries_exceededsRetryDuration() throws Exception {
     Publisher publisher =
@@ -337,9 +576,12 @@ public class PublisherImplTest {
     assertEquals(Publisher.DEFAULT_MAX_BATCH_BYTES, builder.maxBatchBytes);
     assertEquals(Publisher.DEFAULT_MAX_BATCH_DURATION, builder.maxBatchDuration);
     assertEquals(Publisher.DEFAULT_MAX_BATCH_MESSAGES, builder.maxBatchMessages);
+    assertEquals(Optional.absent(), builder.adaptiveBatchingLatencyTarget);
     assertEquals(Optional.absent(), builder.maxOutstandingBytes);
     assertEquals(Optional.absent(), builder.maxOutstandingMessages);
     assertEquals(Publisher.DEFAULT_REQUEST_TIMEOUT, builder.requestTimeout);
+    assertEquals(
+        Publisher.DEFAULT_MAX_IN_FLIGHT_BATCHES_PER_CHANNEL, builder.maxInFlightBatchesPerChannel);
     assertEquals(Publisher.MIN_SEND_BATCH_DURATION, builder.sendBatchDeadline);
     assertEquals(Optional.absent(), builder.userCredentials);
   }
@@ -395,6 +637,14 @@ public class PublisherImplTest {
       // Expected
     }
 
+    builder.setAdaptiveBatchingLatencyTarget(new Duration(1));
+    try {
+      builder.setAdaptiveBatchingLatencyTarget(Duration.ZERO);
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+
     builder.setMaxBatchMessages(1);
     try {
       builder.setMaxBatchMessages(0);
@@ -437,6 +687,14 @@ public class PublisherImplTest {
       // Expected
     }
 
+    builder.setMaxInFlightBatchesPerChannel(1);
+    try {
+      builder.setMaxInFlightBatchesPerChannel(0);
+      fail("Should have thrown an IllegalArgumentException");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+
     builder.setRequestTimeout(Publisher.MIN_REQUEST_TIMEOUT);
     try {
       builder.setRequestTimeout(Publisher.MIN_REQUEST_TIMEOUT.minus(1));
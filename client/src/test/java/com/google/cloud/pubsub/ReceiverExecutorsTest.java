@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ReceiverExecutors}. */
+@RunWith(JUnit4.class)
+public class ReceiverExecutorsTest {
+
+  @Test
+  public void testNewReceiverExecutor_runsTasks() throws Exception {
+    ExecutorService executor = ReceiverExecutors.newReceiverExecutor(1);
+    final CountDownLatch ran = new CountDownLatch(10);
+    for (int i = 0; i < 10; i++) {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              ran.countDown();
+            }
+          });
+    }
+    assertTrue(ran.await(10, TimeUnit.SECONDS));
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testPlatformThreadExecutor_boundsConcurrentTasks() throws Exception {
+    ExecutorService executor = ReceiverExecutors.newPlatformThreadExecutor(2);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch started = new CountDownLatch(2);
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    for (int i = 0; i < 5; i++) {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              int nowRunning = running.incrementAndGet();
+              while (true) {
+                int max = maxRunning.get();
+                if (nowRunning <= max || maxRunning.compareAndSet(max, nowRunning)) {
+                  break;
+                }
+              }
+              started.countDown();
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+              }
+              running.decrementAndGet();
+            }
+          });
+    }
+    assertTrue(started.await(10, TimeUnit.SECONDS));
+    // Leaves the other tasks a chance to start, which they must not.
+    Thread.sleep(100);
+    assertEquals(2, maxRunning.get());
+
+    release.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(2, maxRunning.get());
+  }
+}
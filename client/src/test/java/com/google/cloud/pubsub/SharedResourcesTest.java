@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Function;
+import io.grpc.ManagedChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+/** Tests for {@link SharedResources}. */
+@RunWith(JUnit4.class)
+public class SharedResourcesTest {
+  private static final int MAX_CHANNELS = 2;
+
+  private List<ManagedChannel> openedChannels;
+  private SharedResources resources;
+
+  @Before
+  public void setUp() {
+    openedChannels = new ArrayList<>();
+    resources =
+        new SharedResources(
+            1,
+            MAX_CHANNELS,
+            new Function<ScheduledExecutorService, ManagedChannel>() {
+              @Override
+              public ManagedChannel apply(ScheduledExecutorService executor) {
+                ManagedChannel channel = Mockito.mock(ManagedChannel.class);
+                openedChannels.add(channel);
+                return channel;
+              }
+            });
+  }
+
+  @Test
+  public void testLeaseChannel_opensChannelOnceOthersAreFull() {
+    ManagedChannel first = resources.leaseChannel();
+    for (int i = 1; i < SharedResources.LEASES_PER_CHANNEL; i++) {
+      assertSame(first, resources.leaseChannel());
+    }
+    assertEquals(1, resources.getOpenChannels());
+
+    ManagedChannel second = resources.leaseChannel();
+    assertNotSame(first, second);
+    assertEquals(2, resources.getOpenChannels());
+  }
+
+  @Test
+  public void testLeaseChannel_sharesChannelsOverTheCap() {
+    for (int i = 0; i < SharedResources.LEASES_PER_CHANNEL * MAX_CHANNELS * 2; i++) {
+      resources.leaseChannel();
+    }
+    assertEquals(MAX_CHANNELS, resources.getOpenChannels());
+    assertEquals(MAX_CHANNELS, openedChannels.size());
+  }
+
+  @Test
+  public void testLeaseChannels_givesOnePublisherDistinctChannels() {
+    int numCores = Math.max(1, Runtime.getRuntime().availableProcessors());
+    SharedResources resources =
+        new SharedResources(
+            1,
+            numCores,
+            new Function<ScheduledExecutorService, ManagedChannel>() {
+              @Override
+              public ManagedChannel apply(ScheduledExecutorService executor) {
+                return Mockito.mock(ManagedChannel.class);
+              }
+            });
+
+    List<ManagedChannel> channels =
+        resources.leaseChannels(numCores, Collections.<ManagedChannel>emptyList());
+    assertEquals(numCores, channels.size());
+    assertEquals(numCores, distinct(channels));
+    assertEquals(numCores, resources.getOpenChannels());
+  }
+
+  @Test
+  public void testLeaseChannels_avoidsHeldChannelsUntilTheCap() {
+    ManagedChannel held = resources.leaseChannel();
+
+    ManagedChannel other = resources.leaseChannels(1, Collections.singletonList(held)).get(0);
+    assertNotSame(held, other);
+    assertEquals(MAX_CHANNELS, resources.getOpenChannels());
+
+    // Over the cap, the client's channels are shared again.
+    List<ManagedChannel> shared = resources.leaseChannels(2, Arrays.asList(held, other));
+    assertEquals(MAX_CHANNELS, resources.getOpenChannels());
+    assertEquals(2, distinct(shared));
+  }
+
+  @Test
+  public void testReleaseChannel_closesChannelWithoutLeases() {
+    ManagedChannel channel = resources.leaseChannel();
+    assertSame(channel, resources.leaseChannel());
+
+    resources.releaseChannel(channel);
+    Mockito.verify(channel, Mockito.never()).shutdown();
+    assertEquals(1, resources.getOpenChannels());
+
+    resources.releaseChannel(channel);
+    Mockito.verify(channel).shutdown();
+    assertEquals(0, resources.getOpenChannels());
+
+    try {
+      resources.releaseChannel(channel);
+      fail("Must have thrown an illegal argument error");
+    } catch (IllegalArgumentException expected) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testAcquire_sharedUntilLastRelease() {
+    SharedResources first = SharedResources.acquire();
+    SharedResources second = SharedResources.acquire();
+    assertSame(first, second);
+
+    first.release();
+    assertTrue(!second.getExecutor().isShutdown());
+
+    second.release();
+    assertTrue(second.getExecutor().isShutdown());
+    assertTrue(second.getLifecycleExecutor().isShutdown());
+
+    SharedResources third = SharedResources.acquire();
+    assertNotSame(first, third);
+    third.release();
+  }
+
+  private static int distinct(List<ManagedChannel> channels) {
+    Set<ManagedChannel> distinct =
+        Collections.newSetFromMap(new IdentityHashMap<ManagedChannel, Boolean>());
+    distinct.addAll(channels);
+    return distinct.size();
+  }
+}
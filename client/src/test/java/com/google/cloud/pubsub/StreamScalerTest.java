@@ -0,0 +1,62 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link StreamScaler}. */
+@RunWith(JUnit4.class)
+public class StreamScalerTest {
+  private final StreamScaler scaler = new StreamScaler(2, 16);
+
+  @Test
+  public void testFullResponses_doubleStreamsUpToMax() {
+    assertEquals(8, scaler.nextStreamCount(4, 10, 2000, true, 0, 0));
+    assertEquals(16, scaler.nextStreamCount(8, 10, 2000, true, 0, 0));
+    assertEquals(16, scaler.nextStreamCount(16, 10, 2000, true, 0, 0));
+  }
+
+  @Test
+  public void testFullResponses_overFlowControlLimits_keepStreams() {
+    assertEquals(4, scaler.nextStreamCount(4, 10, 2000, false, 0, 0));
+  }
+
+  @Test
+  public void testFullResponses_saturatedReceivers_keepStreams() {
+    long saturatedQueueMicros = 100 * StreamScaler.SATURATED_RECEIVER_QUEUE_MICROS;
+    assertEquals(4, scaler.nextStreamCount(4, 10, 2000, true, 100, saturatedQueueMicros));
+    // Receivers that barely wait for a thread keep up.
+    assertEquals(8, scaler.nextStreamCount(4, 10, 2000, true, 100, 100));
+  }
+
+  @Test
+  public void testIdleStreams_closeAQuarterDownToMin() {
+    assertEquals(12, scaler.nextStreamCount(16, 10, 10, true, 0, 0));
+    assertEquals(3, scaler.nextStreamCount(4, 0, 0, true, 0, 0));
+    assertEquals(2, scaler.nextStreamCount(3, 0, 0, false, 0, 0));
+    assertEquals(2, scaler.nextStreamCount(2, 0, 0, true, 0, 0));
+  }
+
+  @Test
+  public void testSteadyLoad_keepsStreams() {
+    assertEquals(4, scaler.nextStreamCount(4, 10, 500, true, 0, 0));
+  }
+}
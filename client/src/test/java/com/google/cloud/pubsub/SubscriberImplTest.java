@@ -17,8 +17,12 @@
 package com.google.cloud.pubsub;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
 
 import com.google.cloud.pubsub.FakeSubscriberServiceImpl.ModifyAckDeadline;
+import com.google.cloud.pubsub.MessageTraceListener.Event;
+import com.google.cloud.pubsub.Subscriber.BatchMessageReceiver;
 import com.google.cloud.pubsub.Subscriber.Builder;
 import com.google.cloud.pubsub.Subscriber.MessageReceiver;
 import com.google.cloud.pubsub.Subscriber.MessageReceiver.AckReply;
@@ -26,10 +30,12 @@ import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.Service.State;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.pubsub.v1.PubsubMessage;
+import com.google.pubsub.v1.PullRequest;
 import com.google.pubsub.v1.PullResponse;
 import com.google.pubsub.v1.ReceivedMessage;
 import com.google.pubsub.v1.StreamingPullResponse;
@@ -42,11 +48,14 @@ import io.grpc.internal.ServerImpl;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import org.joda.time.Duration;
 import org.junit.After;
 import org.junit.Before;
@@ -195,6 +204,66 @@ public class SubscriberImplTest {
     assertEquivalent(testAckIds, fakeSubscriberServiceImpl.waitAndConsumeReceivedAcks(1));
   }
 
+  @Test
+  public void testPolling_retriesFailedAcks() throws Exception {
+    if (isStreamingTest) {
+      // This test is not applicable to streaming.
+      return;
+    }
+
+    Subscriber subscriber = startSubscriber(getTestSubscriberBuilder(testReceiver));
+    fakeSubscriberServiceImpl.failNextAcknowledge(Status.UNAVAILABLE);
+
+    List<String> testAckIds = ImmutableList.of("A");
+    sendMessages(testAckIds);
+
+    // Trigger ack sending, stopping waits for the retry.
+    subscriber.stopAsync();
+
+    while (subscriber.getStats().getRetriedAckRequests() == 0) {
+      Thread.sleep(10);
+    }
+    fakeExecutor.advanceTime(Duration.standardSeconds(1));
+    subscriber.awaitTerminated();
+
+    assertEquivalent(testAckIds, fakeSubscriberServiceImpl.waitAndConsumeReceivedAcks(1));
+    assertEquals(0, subscriber.getStats().getFailedAcks());
+  }
+
+  @Test
+  public void testPolling_stopWaitsForQueuedAcks() throws Exception {
+    if (isStreamingTest) {
+      // This test is not applicable to streaming.
+      return;
+    }
+
+    Subscriber subscriber = startSubscriber(getTestSubscriberBuilder(testReceiver));
+    testReceiver.setExplicitAck(true);
+    fakeSubscriberServiceImpl.holdAcknowledges();
+
+    // One ack request per message, more than can be in flight at once.
+    List<String> testAckIds = ImmutableList.of("A", "B", "C", "D", "E", "F", "G", "H", "I", "J");
+    sendMessages(testAckIds);
+    for (int i = 0; i < testAckIds.size(); i++) {
+      testReceiver.replyNextOutstandingMessage();
+      fakeExecutor.advanceTime(StreamingSubscriberConnection.PENDING_ACKS_SEND_DELAY);
+    }
+
+    subscriber.stopAsync();
+    try {
+      subscriber.awaitTerminated(100, TimeUnit.MILLISECONDS);
+      fail("Stopped with ack requests still queued.");
+    } catch (TimeoutException expected) {
+      // Expected, the acks are held.
+    }
+
+    fakeSubscriberServiceImpl.releaseAcknowledges();
+    subscriber.awaitTerminated();
+
+    assertEquivalent(
+        testAckIds, fakeSubscriberServiceImpl.waitAndConsumeReceivedAcks(testAckIds.size()));
+  }
+
   @Test
   public void testNackSingleMessage() throws Exception {
     Subscriber subscriber = startSubscriber(getTestSubscriberBuilder(testReceiver));
@@ -210,6 +279,50 @@ public class SubscriberImplTest {
         fakeSubscriberServiceImpl.waitAndConsumeModifyAckDeadlines(1));
   }
 
+  @Test
+  public void testStats_countsNackedMessages() throws Exception {
+    Subscriber subscriber = startSubscriber(getTestSubscriberBuilder(testReceiver));
+
+    testReceiver.setReply(AckReply.NACK);
+    sendMessages(ImmutableList.of("A", "B"));
+
+    subscriber.stopAsync().awaitTerminated();
+
+    SubscriberStats stats = subscriber.getStats();
+    assertEquals(2, stats.getReceivedMessages());
+    assertEquals(2, stats.getNackedMessages());
+    assertEquals(0, stats.getAckedMessages());
+    assertEquals(2, stats.getReceiverLatencies().getCount());
+    // The test messages have no publish time.
+    assertEquals(0, stats.getEndToEndLatencies().getCount());
+  }
+
+  @Test
+  public void testTraceListener_reportsEachStep() throws Exception {
+    final Deque<Event> events = new ConcurrentLinkedDeque<>();
+    Subscriber subscriber =
+        startSubscriber(
+            getTestSubscriberBuilder(testReceiver)
+                .setTraceListener(
+                    new MessageTraceListener() {
+                      @Override
+                      public void onEvent(long spanId, Event event, long nanoTime) {
+                        events.add(event);
+                      }
+                    },
+                    1));
+
+    sendMessages(ImmutableList.of("A"));
+
+    // Trigger ack sending
+    subscriber.stopAsync().awaitTerminated();
+
+    assertEquals(
+        ImmutableList.of(
+            Event.RECEIVED, Event.DISPATCHED, Event.RECEIVER_DONE, Event.ACK_FLUSHED),
+        ImmutableList.copyOf(events));
+  }
+
   @Test
   public void testReceiverError_NacksMessage() throws Exception {
     testReceiver.setErrorReply(new Exception("Can't process message"));
@@ -226,6 +339,68 @@ public class SubscriberImplTest {
         fakeSubscriberServiceImpl.getModifyAckDeadlines());
   }
 
+  @Test
+  public void testVirtualThreadDispatch_blockingReceiversRunConcurrently() throws Exception {
+    final CountDownLatch allReceived = new CountDownLatch(2);
+    MessageReceiver blockingReceiver =
+        new MessageReceiver() {
+          @Override
+          public ListenableFuture<AckReply> receiveMessage(PubsubMessage message) {
+            // Blocks until the other message is received, which needs a receiver call in flight.
+            allReceived.countDown();
+            try {
+              allReceived.await();
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            return testReceiver.receiveMessage(message);
+          }
+        };
+    Subscriber subscriber =
+        startSubscriber(getTestSubscriberBuilder(blockingReceiver).setVirtualThreadDispatch(2));
+
+    List<String> testAckIds = ImmutableList.of("A", "B");
+    sendMessages(testAckIds);
+
+    // Trigger ack sending
+    subscriber.stopAsync().awaitTerminated();
+
+    assertEquivalent(testAckIds, fakeSubscriberServiceImpl.waitAndConsumeReceivedAcks(2));
+  }
+
+  @Test
+  public void testBatchMessageReceiver_repliesPerMessage() throws Exception {
+    BatchMessageReceiver batchReceiver =
+        new BatchMessageReceiver() {
+          @Override
+          public ListenableFuture<List<AckReply>> receiveMessages(List<PubsubMessage> messages) {
+            assertEquals(2, messages.size());
+            for (PubsubMessage message : messages) {
+              testReceiver.receiveMessage(message);
+            }
+            return Futures.<List<AckReply>>immediateFuture(
+                ImmutableList.of(AckReply.ACK, AckReply.NACK));
+          }
+        };
+    Subscriber subscriber =
+        startSubscriber(
+            Subscriber.Builder.newBuilder(TEST_SUBSCRIPTION, batchReceiver)
+                .setExecutor(fakeExecutor)
+                .setCredentials(testCredentials)
+                .setChannelBuilder(testChannelBuilder));
+
+    sendMessages(ImmutableList.of("A", "B"));
+
+    // Trigger ack sending
+    subscriber.stopAsync().awaitTerminated();
+
+    assertEquivalent(
+        ImmutableList.of("A"), fakeSubscriberServiceImpl.waitAndConsumeReceivedAcks(1));
+    assertEquivalent(
+        ImmutableList.of(new ModifyAckDeadline("B", 0)),
+        fakeSubscriberServiceImpl.waitAndConsumeModifyAckDeadlines(1));
+  }
+
   @Test
   public void testBatchAcks() throws Exception {
     Subscriber subscriber = startSubscriber(getTestSubscriberBuilder(testReceiver));
@@ -249,6 +424,20 @@ public class SubscriberImplTest {
     subscriber.stopAsync().awaitTerminated();
   }
 
+  @Test
+  public void testMaxAckBatchSize_sendsAcksRightAway() throws Exception {
+    Subscriber subscriber =
+        startSubscriber(getTestSubscriberBuilder(testReceiver).setMaxAckBatchSize(3));
+
+    List<String> testAckIds = ImmutableList.of("A", "B", "C");
+    sendMessages(testAckIds);
+
+    // Sent without waiting for the ack batch delay.
+    assertEquivalent(testAckIds, fakeSubscriberServiceImpl.waitAndConsumeReceivedAcks(3));
+
+    subscriber.stopAsync().awaitTerminated();
+  }
+
   @Test
   public void testBatchAcksAndNacks() throws Exception {
     Subscriber subscriber = startSubscriber(getTestSubscriberBuilder(testReceiver));
@@ -381,6 +570,91 @@ public class SubscriberImplTest {
     subscriber.stopAsync().awaitTerminated();
   }
 
+  @Test
+  public void testStreamCount_startsWithMinStreams() throws Exception {
+    if (!isStreamingTest) {
+      // This test is not applicable to polling.
+      return;
+    }
+
+    Subscriber subscriber =
+        startSubscriber(getTestSubscriberBuilder(testReceiver).setStreamCount(2, 4));
+
+    assertEquals(2, fakeSubscriberServiceImpl.waitForOpenedStreams(2));
+
+    subscriber.stopAsync().awaitTerminated();
+  }
+
+  @Test
+  public void testStats_countsStreamRestartsByConnection() throws Exception {
+    if (!isStreamingTest) {
+      // This test is not applicable to polling.
+      return;
+    }
+
+    Subscriber subscriber =
+        startSubscriber(getTestSubscriberBuilder(testReceiver).setStreamCount(2, 4));
+    assertEquals(2, fakeSubscriberServiceImpl.waitForOpenedStreams(2));
+
+    // Recoverable error, the connection reopens its stream.
+    fakeSubscriberServiceImpl.sendError(new StatusException(Status.INTERNAL));
+    while (subscriber.getStats().getStreamRestarts() == 0) {
+      Thread.sleep(10);
+    }
+
+    List<Long> restarts = subscriber.getStats().getStreamRestartsByConnection();
+    assertEquals(4, restarts.size());
+    assertEquals(1, Collections.frequency(restarts, 1L));
+    assertEquals(3, Collections.frequency(restarts, 0L));
+
+    subscriber.stopAsync().awaitTerminated();
+  }
+
+  @Test
+  public void testPolling_keepsLongPollsInFlight() throws Exception {
+    if (isStreamingTest) {
+      // This test is not applicable to streaming.
+      return;
+    }
+
+    Subscriber subscriber =
+        startSubscriber(getTestSubscriberBuilder(testReceiver).setStreamCount(1, 1));
+
+    List<PullRequest> pullRequests =
+        fakeSubscriberServiceImpl.waitForPullRequests(
+            PollingSubscriberConnection.MAX_PULLS_IN_FLIGHT);
+    for (PullRequest pullRequest : pullRequests) {
+      assertFalse(pullRequest.getReturnImmediately());
+    }
+
+    subscriber.stopAsync().awaitTerminated();
+  }
+
+  @Test
+  public void testPolling_fewerPullsUnderSmallFlowControlLimits() throws Exception {
+    if (isStreamingTest) {
+      // This test is not applicable to streaming.
+      return;
+    }
+
+    Subscriber subscriber =
+        startSubscriber(
+            getTestSubscriberBuilder(testReceiver)
+                .setStreamCount(1, 1)
+                .setMaxOutstandingMessages(2));
+
+    fakeSubscriberServiceImpl.waitForPullRequests(2);
+    // Gives a third pull the time to start, if any would.
+    Thread.sleep(100);
+    List<PullRequest> pullRequests = fakeSubscriberServiceImpl.waitForPullRequests(2);
+    assertEquals(2, pullRequests.size());
+    for (PullRequest pullRequest : pullRequests) {
+      assertEquals(1, pullRequest.getMaxMessages());
+    }
+
+    subscriber.stopAsync().awaitTerminated();
+  }
+
   @Test
   public void testFailedChannel_recoverableError_channelReopened() throws Exception {
     if (!isStreamingTest) {
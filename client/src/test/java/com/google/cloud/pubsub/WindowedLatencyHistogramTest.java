@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.cloud.pubsub;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link WindowedLatencyHistogram}. */
+@RunWith(JUnit4.class)
+public class WindowedLatencyHistogramTest {
+  private static final long NOW = 1_000_000;
+
+  @Test
+  public void testSnapshot_includesValuesRecordedBeforeTheFirstRead() {
+    WindowedLatencyHistogram histogram = new WindowedLatencyHistogram(3, 1000);
+    histogram.record(5);
+
+    assertEquals(1, histogram.snapshot(NOW).getCount());
+    assertEquals(5, histogram.snapshot(NOW).getMax());
+  }
+
+  @Test
+  public void testSnapshot_rotatesOncePerWindow() {
+    WindowedLatencyHistogram histogram = new WindowedLatencyHistogram(3, 1000);
+    histogram.snapshot(NOW);
+    histogram.record(5);
+
+    // Held back until the window is rotated.
+    assertEquals(0, histogram.snapshot(NOW + 999).getCount());
+    assertEquals(1, histogram.snapshot(NOW + 1000).getCount());
+  }
+
+  @Test
+  public void testSnapshot_forgetsOldWindows() {
+    WindowedLatencyHistogram histogram = new WindowedLatencyHistogram(3, 1000);
+    histogram.record(20);
+    histogram.snapshot(NOW);
+    for (int i = 1; i <= 3; i++) {
+      histogram.record(10);
+      histogram.snapshot(NOW + i * 1000);
+    }
+
+    HistogramSnapshot snapshot = histogram.snapshot(NOW + 3000);
+    assertEquals(3, snapshot.getCount());
+    assertEquals(10, snapshot.getMax());
+  }
+}